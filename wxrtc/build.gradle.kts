@@ -55,6 +55,10 @@ dependencies {
     implementation(libs.kotlinx.coroutines.android)
     implementation(libs.annotation)
     implementation(libs.okhttp)
+
+    testImplementation(libs.junit)
+    // android.jar only has stubs of org.json, the reference decoder needs the real one.
+    testImplementation(libs.json)
 }
 
 
@@ -68,6 +68,48 @@ abstract class WXRTC {
 
     abstract fun endProcess()
 
+    abstract fun setProcessResultConflation(enabled: Boolean)
+
+    abstract fun getSignalEventStats(): WXRTCDef.SignalEventStats
+
+    abstract fun setStatsInterval(intervalMs: Int)
+
+    /**
+     * 视频帧内存缓存池的复用统计
+     */
+    abstract fun getBufferPoolStats(): WXRTCDef.BufferPoolStats
+
+    /**
+     * 推拉流 HTTP 请求的重试统计，累计本实例的所有连接
+     */
+    abstract fun getRetryStats(): WXRTCDef.RetryStats
+
+    abstract fun setAdaptivePublishQuality(param: WXRTCDef.WXRTCAdaptiveParam?)
+
+    abstract fun enableSimulcast(enable: Boolean)
+
+    abstract fun setRemoteVideoLayer(userId: String, layer: Int)
+
+    /**
+     * 按远端渲染控件大小和可见性降低渲染帧率，param 为空时关闭
+     */
+    abstract fun setRenderPolicy(param: WXRTCDef.WXRTCRenderPolicyParam?)
+
+    /**
+     * 按 param 的帧率和尺寸回调本地或远端视频帧，param 或 listener 为空时取消
+     */
+    abstract fun setVideoFrameTap(
+        userId: String,
+        param: WXRTCDef.WXRTCFrameTapParam?,
+        listener: WXRTCFrameTapListener?)
+
+    /**
+     * 添加本地采集画面滤镜，按添加顺序处理，采集中可随时添加
+     */
+    abstract fun addVideoFilter(filter: WXRTCVideoFilter)
+
+    abstract fun removeVideoFilter(filter: WXRTCVideoFilter)
+
     fun startRecord() {
         startRecord(null)
     }
@@ -160,6 +202,11 @@ abstract class WXRTC {
 
     abstract fun startRemoteVideo(userId: String, renderer: SurfaceViewRenderer?)
 
+    /**
+     * 将用户视频绘制到合成控件 view 的第 tileIndex 个画面
+     */
+    abstract fun startRemoteVideo(userId: String, view: WXRTCCompositeView, tileIndex: Int)
+
     abstract fun updateRemoteVideo(userId: String, renderer: SurfaceViewRenderer?)
 
     abstract fun stopRemoteVideo(userId: String)
@@ -211,7 +258,14 @@ abstract class WXRTC {
 
     abstract var cameraZoom: Int
 
-    abstract fun snapshotVideo(userId: String, listener: WXRTCSnapshotListener?): Boolean
+    fun snapshotVideo(userId: String, listener: WXRTCSnapshotListener?): Boolean {
+        return snapshotVideo(userId, WXRTCDef.WXRTCSnapshotParam(), listener)
+    }
+
+    abstract fun snapshotVideo(
+        userId: String,
+        param: WXRTCDef.WXRTCSnapshotParam,
+        listener: WXRTCSnapshotListener?): Boolean
 
     abstract fun destory()
 
@@ -0,0 +1,79 @@
+package com.wx.rtc
+
+import android.content.Context
+import android.util.AttributeSet
+import android.view.SurfaceHolder
+import android.view.SurfaceView
+import com.wx.rtc.rtc.VideoCompositor
+import org.webrtc.EglBase
+import org.webrtc.VideoSink
+
+/**
+ * 多人画面合成控件，在一个 Surface、一个渲染线程中按布局绘制多路远端视频，
+ * 通过 WXRTC.startRemoteVideo(userId, view, tileIndex) 将用户绑定到指定画面。
+ */
+class WXRTCCompositeView @JvmOverloads constructor(
+    context: Context, attrs: AttributeSet? = null
+) : SurfaceView(context, attrs), SurfaceHolder.Callback {
+    private val compositor = VideoCompositor()
+    private var layout = WXRTCDef.WXRTCCompositeLayout.grid(1, 1)
+    private var initialized = false
+
+    init {
+        holder.addCallback(this)
+    }
+
+    /**
+     * 设置画面布局，可随时修改
+     */
+    fun setLayout(layout: WXRTCDef.WXRTCCompositeLayout) {
+        this.layout = layout
+        compositor.setLayout(layout)
+    }
+
+    /**
+     * 各画面的渲染统计，下标为画面序号
+     */
+    fun getTileStats(): List<WXRTCDef.CompositeTileStats> {
+        return compositor.getTileStats()
+    }
+
+    /**
+     * 释放渲染线程，之后再次绑定用户时自动重新初始化
+     */
+    fun release() {
+        if (!initialized) {
+            return
+        }
+        initialized = false
+        compositor.release()
+    }
+
+    internal fun init(sharedContext: EglBase.Context) {
+        if (initialized) {
+            return
+        }
+        initialized = true
+        compositor.init(sharedContext, layout.renderFps)
+        compositor.setLayout(layout)
+        if (holder.surface?.isValid == true) {
+            compositor.createSurface(holder.surface)
+        }
+    }
+
+    internal fun tileSink(index: Int): VideoSink {
+        return compositor.tileSink(index)
+    }
+
+    override fun surfaceCreated(holder: SurfaceHolder) {
+        compositor.createSurface(holder.surface)
+    }
+
+    override fun surfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {
+        compositor.surfaceChanged()
+    }
+
+    override fun surfaceDestroyed(holder: SurfaceHolder) {
+        compositor.releaseSurface()
+    }
+}
@@ -1,6 +1,10 @@
 package com.wx.rtc
 
+import android.graphics.Color
+import android.graphics.RectF
 import org.webrtc.SurfaceViewRenderer
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  * @author Administrator
@@ -58,6 +62,27 @@ class WXRTCDef {
 
         const val WXRTC_VIDEO_RESOLUTION_MODE_PORTRAIT: Int = 1
 
+        /**
+         * 远端视频层级：按渲染控件大小自动选择
+         */
+        const val WXRTC_VIDEO_LAYER_AUTO: Int = 0
+
+        const val WXRTC_VIDEO_LAYER_HIGH: Int = 1
+
+        const val WXRTC_VIDEO_LAYER_MEDIUM: Int = 2
+
+        const val WXRTC_VIDEO_LAYER_LOW: Int = 3
+
+        /**
+         * 视频帧格式：Y、U、V 三个平面紧密排列
+         */
+        const val WXRTC_VIDEO_FRAME_FORMAT_I420: Int = 0
+
+        /**
+         * 视频帧格式：每像素 4 字节，行宽 width * 4
+         */
+        const val WXRTC_VIDEO_FRAME_FORMAT_RGBA: Int = 1
+
         const val WXRTC_VIDEO_RENDER_MODE_FILL: Int = 0
 
         const val WXRTC_VIDEO_RENDER_MODE_FIT: Int = 1
@@ -152,6 +177,16 @@ class WXRTCDef {
          * 床头屏
          */
         const val WXRTC_PROCESS_DATA_RST_BEDHEAD_SCREEN: Int = 15
+
+        /**
+         * 推拉流请求重试次数用尽，媒体服务器不可达，SDK 冷却后会继续重试
+         */
+        const val WXRTC_ERR_MEDIA_SERVER_UNREACHABLE: Int = -1001
+
+        /**
+         * 推拉流连接出错
+         */
+        const val WXRTC_ERR_PEER_CONNECTION: Int = -1002
     }
 
     /**
@@ -211,6 +246,147 @@ class WXRTCDef {
         var videoMaxBitrate: Int = 2500,
     )
 
+    class WXRTCAdaptiveParam(
+        @JvmField
+        var ladder: List<WXRTCVideoEncParam>? = null, //档位表，从高到低排列；为空时按当前编码参数自动生成
+
+        @JvmField
+        var floorLevel: Int = -1, //最低可降到的档位下标，-1 表示档位表最后一档
+
+        @JvmField
+        var downgradeSamples: Int = 2, //连续拥塞的统计次数达到后降一档
+
+        @JvmField
+        var upgradeSamples: Int = 5, //连续空闲的统计次数达到后升一档
+    )
+
+    class WXRTCSnapshotParam(
+        @JvmField
+        var maxSize: Int = 1280, //截图长边最大像素，0 表示保持原始大小
+
+        @JvmField
+        var quality: Int = 80, //JPEG 压缩质量 1-100
+
+        @JvmField
+        var saveToFile: Boolean = true, //true 回调文件（每个用户一个文件，下次截图时覆盖），false 回调 JPEG 数据
+    )
+
+    class WXRTCFrameTapParam(
+        @JvmField
+        var fps: Int = 5, //每秒回调帧数，最大 30
+
+        @JvmField
+        var width: Int = 320, //目标宽，等比缩放到不超过 width x height，不放大
+
+        @JvmField
+        var height: Int = 320, //目标高
+
+        @JvmField
+        var format: Int = WXRTC_VIDEO_FRAME_FORMAT_I420, //I420 或 RGBA
+
+        @JvmField
+        var bufferCount: Int = 3, //缓冲池大小，未释放的帧达到该数量时丢帧
+    )
+
+    class WXRTCVideoFrame internal constructor(
+        @JvmField
+        val format: Int, //帧格式 I420/RGBA
+
+        @JvmField
+        val width: Int, //宽，已按画面方向旋转
+
+        @JvmField
+        val height: Int, //高
+
+        @JvmField
+        val timestampNs: Long, //采集时间戳
+
+        @JvmField
+        val data: ByteBuffer, //帧数据，release 后不可再访问
+
+        private val releaseCallback: () -> Unit,
+    ) {
+        private val released = AtomicBoolean(false)
+
+        fun release() {
+            if (released.compareAndSet(false, true)) {
+                releaseCallback()
+            }
+        }
+    }
+
+    class WXRTCRenderPolicyParam(
+        @JvmField
+        var reducedFps: Float = 15f, //小窗口或大部分被遮挡时的渲染帧率
+
+        @JvmField
+        var smallTileSize: Int = 240, //渲染控件短边小于该像素时视为小窗口
+
+        @JvmField
+        var minVisibleRatio: Float = 0.5f, //可见面积比例低于该值时视为大部分被遮挡
+
+        @JvmField
+        var hiddenStopVideoMs: Long = 5000, //完全不可见超过该时长后停止接收该用户视频，<=0 表示不停止
+    )
+
+    class WXRTCCompositeLayout(
+        @JvmField
+        var tiles: List<RectF> = emptyList(), //各画面位置，按控件宽高归一化到 0-1，下标即画面序号
+
+        @JvmField
+        var fillMode: Int = WXRTC_VIDEO_RENDER_MODE_FILL, //画面填充模式
+
+        @JvmField
+        var backgroundColor: Int = Color.BLACK, //背景色
+
+        @JvmField
+        var renderFps: Float = 30f, //合成画面的最大刷新帧率，初始化后修改无效
+    ) {
+        companion object {
+            /**
+             * rows 行 columns 列的宫格布局，spacing 为画面间距（归一化）
+             */
+            @JvmStatic
+            @JvmOverloads
+            fun grid(rows: Int, columns: Int, spacing: Float = 0f): WXRTCCompositeLayout {
+                val width = (1f - spacing * (columns - 1)) / columns
+                val height = (1f - spacing * (rows - 1)) / rows
+                val tiles = ArrayList<RectF>(rows * columns)
+                for (row in 0 until rows) {
+                    for (column in 0 until columns) {
+                        val left = column * (width + spacing)
+                        val top = row * (height + spacing)
+                        tiles.add(RectF(left, top, left + width, top + height))
+                    }
+                }
+                return WXRTCCompositeLayout(tiles)
+            }
+        }
+    }
+
+    class CompositeTileStats {
+        @JvmField
+        var index: Int = 0 //画面序号
+
+        @JvmField
+        var frameWidth: Int = 0 //最近一帧视频宽
+
+        @JvmField
+        var frameHeight: Int = 0 //最近一帧视频高
+
+        @JvmField
+        var framesReceived: Long = 0 //收到的帧数
+
+        @JvmField
+        var framesRendered: Long = 0 //绘制的帧数
+
+        @JvmField
+        var framesDropped: Long = 0 //绘制前被新帧覆盖丢弃的帧数
+
+        @JvmField
+        var averageRenderTimeUs: Long = 0 //每帧平均绘制耗时 us
+    }
+
     class WXRTCRenderParams(
         @JvmField
         var rotation: Int = WXRTC_VIDEO_ROTATION_0,
@@ -230,6 +406,98 @@ class WXRTCDef {
         var spkName: String? = null
     }
 
+    class SignalEventStats {
+        @JvmField
+        var queueDepth: Int = 0 //待分发的信令消息数
+
+        @JvmField
+        var maxQueueDepth: Int = 0 //待分发消息数峰值
+
+        @JvmField
+        var dispatchedCount: Long = 0 //已分发消息数
+
+        @JvmField
+        var conflatedCount: Long = 0 //被新结果合并丢弃的识别结果数
+    }
+
+    class BufferPoolStats {
+        @JvmField
+        var hits: Long = 0 //从缓存池复用视频帧内存的次数
+
+        @JvmField
+        var misses: Long = 0 //缓存池无可用内存而新分配的次数
+
+        @JvmField
+        var evictions: Long = 0 //因超出内存上限或系统内存紧张释放的缓存数
+
+        @JvmField
+        var pooledBytes: Long = 0 //当前缓存的空闲内存字节数
+    }
+
+    class RetryStats {
+        @JvmField
+        var offerAttempts: Int = 0 //推拉流 offer 请求次数
+
+        @JvmField
+        var offerRetries: Int = 0 //offer 请求失败后的重试次数
+
+        @JvmField
+        var offerGiveUps: Int = 0 //offer 重试用尽的次数，冷却后会重新开始重试
+
+        @JvmField
+        var unpublishAttempts: Int = 0 //停止推拉流请求次数
+
+        @JvmField
+        var unpublishRetries: Int = 0 //停止推拉流请求的重试次数
+
+        @JvmField
+        var unpublishGiveUps: Int = 0 //停止推拉流重试用尽后放弃的次数
+    }
+
+    class UserQuality {
+        @JvmField
+        var userId: String = "" //用户ID
+
+        @JvmField
+        var isLocal: Boolean = false //是否为本地推流
+
+        @JvmField
+        var videoBitrate: Int = 0 //视频码率 kbps
+
+        @JvmField
+        var audioBitrate: Int = 0 //音频码率 kbps
+
+        @JvmField
+        var frameRate: Int = 0 //视频帧率
+
+        @JvmField
+        var frameWidth: Int = 0 //视频宽
+
+        @JvmField
+        var frameHeight: Int = 0 //视频高
+
+        @JvmField
+        var packetLoss: Int = 0 //丢包率 0-100
+
+        @JvmField
+        var jitter: Int = 0 //抖动 ms
+
+        @JvmField
+        var rtt: Int = 0 //往返时延 ms
+
+        @JvmField
+        var freezeCount: Int = 0 //累计卡顿次数（仅远端）
+
+        @JvmField
+        var qualityLimitationReason: String? = null //编码受限原因 none/cpu/bandwidth/other（仅本地）
+
+        @JvmField
+        var captureDroppedFrames: Long = 0 //采集端按编码限制累计丢弃的帧数（仅本地）
+
+        @JvmField
+        var capturePixelsSaved: Long = 0 //采集端按编码限制累计少送入编码的像素数（仅本地）
+    }
+
     class ProcessData {
         @JvmField
         var rst: Int? = null //0 没有关心的物体  1 气囊 2 温度计 3条形码 4二维码 5血压仪 6腰椎穿刺 7眼科标记 8人脸 9语音识别
@@ -0,0 +1,8 @@
+package com.wx.rtc
+
+interface WXRTCFrameTapListener {
+    /**
+     * 在独立线程回调缩放后的视频帧，处理完成后必须调用 frame.release() 归还缓冲区
+     */
+    fun onVideoFrame(userId: String, frame: WXRTCDef.WXRTCVideoFrame)
+}
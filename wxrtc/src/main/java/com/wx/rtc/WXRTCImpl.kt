@@ -12,7 +12,7 @@ import com.wx.rtc.WXRTCDef.Speaker
 import com.wx.rtc.bean.CallCommand
 import com.wx.rtc.bean.ProcessCommand
 import com.wx.rtc.bean.RecordCommand
-import com.wx.rtc.bean.SignalCommand
+import com.wx.rtc.bean.SendCommand
 import com.wx.rtc.rtc.RTCListener
 import com.wx.rtc.rtc.RTCManager
 import com.wx.rtc.socket.SocketListener
@@ -69,29 +69,27 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
 
         mSocketManager.startConnect()
 
-        val message = mNetworkType?.let {
-            "{\"signal\":\"${SignalCommand.LOGIN}\", \"app_id\":\"$appId\", \"user_id\":\"$userId\", \"connect_url\":\"$mSocketUrl\", \"network_type\":$it}"
-        } ?: "{\"signal\":\"${SignalCommand.LOGIN}\", \"app_id\":\"$appId\", \"user_id\":\"$userId\", \"connect_url\":\"$mSocketUrl\"}"
-
-        mSocketManager.sendWebSocketMessage(message)
+        mSocketManager.sendCommand(
+            SendCommand.Login(appId, userId, mSocketUrl ?: Config.WS_URL, mNetworkType)
+        )
     }
 
     override fun logout() {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.LOGOUT}\"}")
+        mSocketManager.sendCommand(SendCommand.Logout)
     }
 
     override fun enterRoom(roomId: String) {
         this.mRoomId = roomId
 
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.ENTER_ROOM}\", \"room_id\":\"$roomId\"}")
+        mSocketManager.sendCommand(SendCommand.EnterRoom(roomId))
     }
 
     override fun exitRoom() {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.EXIT_ROOM}\"}")
+        mSocketManager.sendCommand(SendCommand.ExitRoom)
     }
 
     override fun inviteCall(inviteId: String, roomId: String) {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.CALL_CMD}\", \"call_cmd\":{\"cmd\":\"${CallCommand.INVITE}\",\"user_id\":\"$inviteId\",\"room_id\":\"$roomId\"}}")
+        mSocketManager.sendCommand(SendCommand.Call(CallCommand.INVITE, inviteId, roomId))
 
         this.mInviteId = inviteId
         this.callStatus = WXRTCDef.Status.Calling
@@ -105,7 +103,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
     }
 
     override fun cancelInvitation(inviteId: String) {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.CALL_CMD}\",\"call_cmd\":{\"cmd\":\"${CallCommand.CANCEL}\", \"user_id\":\"$inviteId\"}}")
+        mSocketManager.sendCommand(SendCommand.Call(CallCommand.CANCEL, inviteId))
 
         this.callStatus = WXRTCDef.Status.None
         this.callRole = WXRTCDef.Role.None
@@ -117,7 +115,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
     }
 
     override fun acceptInvitation(inviteId: String) {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.CALL_CMD}\",\"call_cmd\":{\"cmd\":\"${CallCommand.ACCEPT}\", \"user_id\":\"$inviteId\"}}")
+        mSocketManager.sendCommand(SendCommand.Call(CallCommand.ACCEPT, inviteId))
 
         this.callStatus = WXRTCDef.Status.Connected
     }
@@ -129,7 +127,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
     }
 
     override fun rejectInvitation(inviteId: String) {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.CALL_CMD}\",\"call_cmd\":{\"cmd\":\"${CallCommand.REJECT}\", \"user_id\":\"$inviteId\"}}")
+        mSocketManager.sendCommand(SendCommand.Call(CallCommand.REJECT, inviteId))
 
         this.callStatus = WXRTCDef.Status.None
         this.callRole = WXRTCDef.Role.None
@@ -137,7 +135,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
     }
 
     override fun invitationLineBusy(inviteId: String) {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.CALL_CMD}\",\"call_cmd\":{\"cmd\":\"${CallCommand.LINE_BUSY}\", \"user_id\":\"$inviteId\"}}")
+        mSocketManager.sendCommand(SendCommand.Call(CallCommand.LINE_BUSY, inviteId))
     }
 
     override fun hangupCall(){
@@ -147,7 +145,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
     }
 
     override fun hangupCall(inviteId: String) {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.CALL_CMD}\",\"call_cmd\":{\"cmd\":\"${CallCommand.HANG_UP}\", \"user_id\":\"$inviteId\"}}")
+        mSocketManager.sendCommand(SendCommand.Call(CallCommand.HANG_UP, inviteId))
 
         this.callStatus = WXRTCDef.Status.None
         this.callRole = WXRTCDef.Role.None
@@ -155,7 +153,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
     }
 
     override fun sendP2PMsg(userId: String, msg: String) {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.SEND_P2P_MSG}\",\"p2p_msg\":{\"from\":\"$mUserId\", \"to\":\"$userId\", \"message\":\"$msg\"}}")
+        mSocketManager.sendCommand(SendCommand.P2PMessage(mUserId, userId, msg))
     }
 
     override fun sendRoomMsg(cmd: String, msg: String) {
@@ -164,65 +162,71 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
             return
         }
 
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.SEND_ROOM_MSG}\",\"room_msg\":{\"cmd\":\"$cmd\", \"message\":\"$msg\"}}")
+        mSocketManager.sendCommand(SendCommand.RoomMessage(cmd, msg))
     }
 
     override fun startProcess() {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.START_PROCESS}\"}")
+        mSocketManager.sendCommand(SendCommand.StartProcess)
     }
 
     override fun endProcess() {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.END_PROCESS}\"}")
+        mSocketManager.sendCommand(SendCommand.EndProcess)
     }
 
-    private fun getRecordCommand(
-        cmd: String,
-        mixId: String?,
-        extraData: String?,
-        needAfterAsr: Boolean?,
-        hospitalId: String?,
-        spkList: List<Speaker>?
-    ): String {
-        val sb = StringBuilder()
-        sb.append("{\"cmd\":\"$cmd\"")
-        currentRecordFile?.let {
-            sb.append(",\"end_file_name\":\"$it\"")
-        }
-        mixId?.let {
-            sb.append(",\"mix_id\":\"$it\"")
-        }
-        extraData?.let {
-            sb.append(",\"extra_data\":\"${it.replace("\"", "\\\"")}\"")
-        }
-        needAfterAsr?.let {
-            sb.append(",\"need_after_asr\":$it")
-        }
-        hospitalId?.let {
-            sb.append(",\"hospital_id\":\"$it\"")
-        }
-        spkList?.let { list->
-            sb.append(",\"spk_list\":[")
-            list.forEachIndexed { index, item ->
-                if (index > 0){
-                    sb.append(",")
-                }
-                sb.append("{")
-                item.spkId?.let {
-                    sb.append("\"spk_id\":\"${item.spkId}\"")
-                }
-                item.spkName?.let {
-                    if (item.spkId != null) {
-                        sb.append(",")
-                    }
-                    sb.append("\"spk_name\":\"${item.spkName}\"")
-                }
-                sb.append("}")
-            }
-            sb.append("]")
-        }
-        sb.append("}")
+    override fun setProcessResultConflation(enabled: Boolean) {
+        mSocketManager.setResultConflation(enabled)
+    }
+
+    override fun getSignalEventStats(): WXRTCDef.SignalEventStats {
+        return mSocketManager.eventStats
+    }
+
+    override fun getBufferPoolStats(): WXRTCDef.BufferPoolStats {
+        return mRTCManager.getBufferPoolStats()
+    }
+
+    override fun getRetryStats(): WXRTCDef.RetryStats {
+        return mRTCManager.getRetryStats()
+    }
+
+    override fun setStatsInterval(intervalMs: Int) {
+        mRTCManager.setStatsInterval(intervalMs)
+    }
+
+    override fun setAdaptivePublishQuality(param: WXRTCDef.WXRTCAdaptiveParam?) {
+        mRTCManager.setAdaptiveQuality(param)
+    }
+
+    override fun enableSimulcast(enable: Boolean) {
+        mRTCManager.enableSimulcast(enable)
+    }
+
+    override fun setRemoteVideoLayer(userId: String, layer: Int) {
+        mRTCManager.setRemoteVideoLayer(userId, layer)
+    }
+
+    override fun setRenderPolicy(param: WXRTCDef.WXRTCRenderPolicyParam?) {
+        mRTCManager.setRenderPolicy(param)
+    }
+
+    override fun addVideoFilter(filter: WXRTCVideoFilter) {
+        mRTCManager.addVideoFilter(filter)
+    }
 
-        return sb.toString()
+    override fun removeVideoFilter(filter: WXRTCVideoFilter) {
+        mRTCManager.removeVideoFilter(filter)
+    }
+
+    override fun setVideoFrameTap(
+        userId: String,
+        param: WXRTCDef.WXRTCFrameTapParam?,
+        listener: WXRTCFrameTapListener?
+    ) {
+        if (userId == this.mUserId) {
+            mRTCManager.setLocalFrameTap(userId, param, listener)
+        } else {
+            mRTCManager.setRemoteFrameTap(userId, param, listener)
+        }
     }
 
     override fun startRecord(
@@ -232,16 +236,17 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         hospitalId: String?,
         spkList: List<Speaker>?
     ) {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.RECORD_CMD}\", \"record_cmd\":${
-            getRecordCommand(
+        mSocketManager.sendCommand(
+            SendCommand.Record(
                 RecordCommand.START_RECORD,
+                currentRecordFile,
                 mixId,
                 extraData,
                 needAfterAsr,
                 hospitalId,
                 spkList
             )
-        }}")
+        )
     }
 
     override fun endAndStartRecord(
@@ -251,88 +256,37 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         hospitalId: String?,
         spkList: List<Speaker>?
     ) {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.RECORD_CMD}\", \"record_cmd\":${
-            getRecordCommand(
+        mSocketManager.sendCommand(
+            SendCommand.Record(
                 RecordCommand.END_AND_START_RECORD,
+                currentRecordFile,
                 mixId,
                 extraData,
                 needAfterAsr,
                 hospitalId,
                 spkList
             )
-        }}")
+        )
     }
 
     override fun endRecord() {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.RECORD_CMD}\", \"record_cmd\":{\"cmd\":\"${RecordCommand.END_RECORD}\"}}")
+        mSocketManager.sendCommand(SendCommand.Record(RecordCommand.END_RECORD))
     }
 
     override fun startAsr(hospitalId: String?, spkList: List<Speaker>?) {
-        val sb = StringBuilder()
-        sb.append("{\"signal\":\"${SignalCommand.PROCESS_CMD}\"")
-        sb.append(", \"process_cmd_list\":[{\"type\":\"audio\", \"cmd\":\"${ProcessCommand.START_ASR}\"")
-        hospitalId?.let {
-            sb.append(",\"hospital_id\":\"$it\"")
-        }
-        spkList?.let { list->
-            sb.append(",\"spk_list\":[")
-            list.forEachIndexed { index, item ->
-                if (index > 0){
-                    sb.append(",")
-                }
-                sb.append("{")
-                item.spkId?.let {
-                    sb.append("\"spk_id\":\"${item.spkId}\"")
-                }
-                item.spkName?.let {
-                    if (item.spkId != null) {
-                        sb.append(",")
-                    }
-                    sb.append("\"spk_name\":\"${item.spkName}\"")
-                }
-                sb.append("}")
-            }
-            sb.append("]")
-        }
-        sb.append("}]}")
-
-        mSocketManager.sendWebSocketMessage(sb.toString())
+        mSocketManager.sendCommand(
+            SendCommand.Process(PROCESS_TYPE_AUDIO, ProcessCommand.START_ASR, hospitalId, spkList)
+        )
     }
 
     override fun endAndStartAsr(hospitalId: String?, spkList: List<Speaker>?) {
-        val sb = StringBuilder()
-        sb.append("{\"signal\":\"${SignalCommand.PROCESS_CMD}\"")
-        sb.append(", \"process_cmd_list\":[{\"type\":\"audio\", \"cmd\":\"${ProcessCommand.END_AND_START_ASR}\"")
-        hospitalId?.let {
-            sb.append(",\"hospital_id\":\"$it\"")
-        }
-        spkList?.let { list->
-            sb.append(",\"spk_list\":[")
-            list.forEachIndexed { index, item ->
-                if (index > 0){
-                    sb.append(",")
-                }
-                sb.append("{")
-                item.spkId?.let {
-                    sb.append("\"spk_id\":\"${item.spkId}\"")
-                }
-                item.spkName?.let {
-                    if (item.spkId != null) {
-                        sb.append(",")
-                    }
-                    sb.append("\"spk_name\":\"${item.spkName}\"")
-                }
-                sb.append("}")
-            }
-            sb.append("]")
-        }
-        sb.append("}]}")
-
-        mSocketManager.sendWebSocketMessage(sb.toString())
+        mSocketManager.sendCommand(
+            SendCommand.Process(PROCESS_TYPE_AUDIO, ProcessCommand.END_AND_START_ASR, hospitalId, spkList)
+        )
     }
 
     override fun endAsr() {
-        mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.PROCESS_CMD}\",\"process_cmd_list\":[{\"type\":\"audio\", \"cmd\":\"${ProcessCommand.END_ASR}\"}]}")
+        mSocketManager.sendCommand(SendCommand.Process(PROCESS_TYPE_AUDIO, ProcessCommand.END_ASR))
     }
 
     override fun startLocalVideo(frontCamera: Boolean, renderer: SurfaceViewRenderer?) {
@@ -340,7 +294,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.startLocalVideo(frontCamera, renderer)
 
         if (mRoomId.isNotEmpty()) {
-            mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.VIDEO_AVAILABLE}\",\"available\":true}")
+            mSocketManager.sendCommand(SendCommand.VideoAvailable(true))
         }
     }
 
@@ -353,7 +307,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.stopLocalVideo()
 
         if (mRoomId.isNotEmpty()) {
-            mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.VIDEO_AVAILABLE}\",\"available\":false}")
+            mSocketManager.sendCommand(SendCommand.VideoAvailable(false))
         }
     }
 
@@ -361,7 +315,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.muteLocalVideo(mute)
 
         if (mRoomId.isNotEmpty()) {
-            mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.VIDEO_AVAILABLE}\",\"available\":${!mute}}")
+            mSocketManager.sendCommand(SendCommand.VideoAvailable(!mute))
         }
     }
 
@@ -370,6 +324,11 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.startRemoteVideo(userId, renderer)
     }
 
+    override fun startRemoteVideo(userId: String, view: WXRTCCompositeView, tileIndex: Int) {
+        view.visibility = View.VISIBLE
+        mRTCManager.startRemoteVideo(userId, view, tileIndex)
+    }
+
     override fun updateRemoteVideo(userId: String, renderer: SurfaceViewRenderer?) {
         renderer?.visibility = View.VISIBLE
         mRTCManager.updateRemoteVideo(userId, renderer)
@@ -404,7 +363,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.startLocalAudio()
 
         if (mRoomId.isNotEmpty()) {
-            mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.AUDIO_AVAILABLE}\",\"available\":${true}}")
+            mSocketManager.sendCommand(SendCommand.AudioAvailable(true))
         }
     }
 
@@ -412,7 +371,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.stopLocalAudio()
 
         if (mRoomId.isNotEmpty()) {
-            mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.AUDIO_AVAILABLE}\",\"available\":${false}}")
+            mSocketManager.sendCommand(SendCommand.AudioAvailable(false))
         }
     }
 
@@ -420,7 +379,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.muteLocalAudio(mute)
 
         if (mRoomId.isNotEmpty()) {
-            mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.AUDIO_AVAILABLE}\",\"available\":${!mute}}")
+            mSocketManager.sendCommand(SendCommand.AudioAvailable(!mute))
         }
     }
 
@@ -444,7 +403,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.startScreenCapture(encParam, renderer)
 
         if (mRoomId.isNotEmpty()) {
-            mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.VIDEO_AVAILABLE}\",\"available\":${true}}")
+            mSocketManager.sendCommand(SendCommand.VideoAvailable(true))
         }
     }
 
@@ -452,7 +411,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.stopScreenCapture()
 
         if (mRoomId.isNotEmpty()) {
-            mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.VIDEO_AVAILABLE}\",\"available\":${false}}")
+            mSocketManager.sendCommand(SendCommand.VideoAvailable(false))
         }
     }
 
@@ -460,7 +419,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.pauseScreenCapture()
 
         if (mRoomId.isNotEmpty()) {
-            mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.VIDEO_AVAILABLE}\",\"available\":${false}}")
+            mSocketManager.sendCommand(SendCommand.VideoAvailable(false))
         }
     }
 
@@ -468,7 +427,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mRTCManager.resumeScreenCapture()
 
         if (mRoomId.isNotEmpty()) {
-            mSocketManager.sendWebSocketMessage("{\"signal\":\"${SignalCommand.VIDEO_AVAILABLE}\",\"available\":${true}}")
+            mSocketManager.sendCommand(SendCommand.VideoAvailable(true))
         }
     }
 
@@ -497,12 +456,16 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
             mRTCManager.cameraZoom = value
         }
 
-    override fun snapshotVideo(userId: String, listener: WXRTCSnapshotListener?): Boolean {
+    override fun snapshotVideo(
+        userId: String,
+        param: WXRTCDef.WXRTCSnapshotParam,
+        listener: WXRTCSnapshotListener?
+    ): Boolean {
         this.mSnapshotlistener = listener
         if (userId == this.mUserId) {
-            return mRTCManager.snapshotLocalVideo(userId)
+            return mRTCManager.snapshotLocalVideo(userId, param)
         }
-        return mRTCManager.snapshotRemoteVideo(userId)
+        return mRTCManager.snapshotRemoteVideo(userId, param)
     }
 
     private fun onCallCancelled(userId: String) {
@@ -587,7 +550,7 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         }
     }
 
-    override fun onEnterRoom(publishUrl: String) {
+    override fun onEnterRoom(publishUrl: String, subscribeUrl: String?) {
         var needOnEnterRoom = true
         if (isEnterRoom) {
             needOnEnterRoom = false
@@ -595,6 +558,8 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
 
         isEnterRoom = true
 
+        mRTCManager.setSubscribeUrl(subscribeUrl)
+
         mUserId?.let {
             mRTCManager.startPublish(publishUrl, it)
         }
@@ -720,8 +685,33 @@ class WXRTCImpl : WXRTC(), SocketListener, RTCListener {
         mSnapshotlistener?.onSnapshot(userId, file)
     }
 
+    override fun onSnapshotData(userId: String, data: ByteArray) {
+        mSnapshotlistener?.onSnapshotData(userId, data)
+    }
+
+    override fun onSnapshotFailed(userId: String) {
+        mSnapshotlistener?.onSnapshotFailed(userId)
+    }
+
+    override fun onUserQuality(quality: WXRTCDef.UserQuality) {
+        mRTCListener?.onUserQuality(quality)
+    }
+
+    override fun onPublishQualityChanged(level: Int, param: WXRTCVideoEncParam) {
+        mRTCListener?.onPublishQualityChanged(level, param)
+    }
+
+    override fun onIceRestart(isLocal: Boolean, attempt: Int, reason: String) {
+        mRTCListener?.onIceRestart(isLocal, attempt, reason)
+    }
+
+    override fun onIceRestartResult(isLocal: Boolean, attempt: Int, success: Boolean, elapsedMs: Long) {
+        mRTCListener?.onIceRestartResult(isLocal, attempt, success, elapsedMs)
+    }
+
     companion object {
         private val TAG: String = WXRTCImpl::class.java.name
+        private const val PROCESS_TYPE_AUDIO = "audio"
 
         private var INSTANCE: WXRTCImpl? = null
         private var mSocketUrl: String? = null
@@ -15,4 +15,8 @@ interface WXRTCListener {
     fun onProcessResult(processData: WXRTCDef.ProcessData) {}
     fun onRecordStart(fileName: String) {}
     fun onRecordEnd(fileName: String) {}
+    fun onUserQuality(quality: WXRTCDef.UserQuality) {}
+    fun onPublishQualityChanged(level: Int, param: WXRTCDef.WXRTCVideoEncParam) {}
+    fun onIceRestart(isLocal: Boolean, attempt: Int, reason: String) {}
+    fun onIceRestartResult(isLocal: Boolean, attempt: Int, success: Boolean, elapsedMs: Long) {}
 }
@@ -0,0 +1,49 @@
+package com.wx.rtc
+
+import org.webrtc.GlGenericDrawer
+import org.webrtc.GlShader
+
+/**
+ * 基于片元着色器的滤镜。着色器通过 sample(tc) 读取输入画面，例如：
+ *
+ * void main() {
+ *   gl_FragColor = sample(tc);
+ * }
+ *
+ * 需要设置 uniform 时重写 onNewShader / onPrepareShader。
+ */
+open class WXRTCShaderFilter(private val fragmentShader: String) : WXRTCVideoFilter {
+    private var drawer: GlGenericDrawer? = null
+
+    override fun onCreate() {
+        drawer = GlGenericDrawer(fragmentShader, object : GlGenericDrawer.ShaderCallbacks {
+            override fun onNewShader(shader: GlShader) {
+                this@WXRTCShaderFilter.onNewShader(shader)
+            }
+
+            override fun onPrepareShader(
+                shader: GlShader, texMatrix: FloatArray, frameWidth: Int, frameHeight: Int,
+                viewportWidth: Int, viewportHeight: Int
+            ) {
+                this@WXRTCShaderFilter.onPrepareShader(shader, frameWidth, frameHeight)
+            }
+        })
+    }
+
+    override fun onDraw(textureId: Int, width: Int, height: Int, rotation: Int, timestampNs: Long) {
+        drawer?.drawRgb(textureId, IDENTITY_MATRIX, width, height, 0, 0, width, height)
+    }
+
+    override fun onRelease() {
+        drawer?.release()
+        drawer = null
+    }
+
+    protected open fun onNewShader(shader: GlShader) {}
+
+    protected open fun onPrepareShader(shader: GlShader, width: Int, height: Int) {}
+
+    companion object {
+        private val IDENTITY_MATRIX = FloatArray(16).also { android.opengl.Matrix.setIdentityM(it, 0) }
+    }
+}
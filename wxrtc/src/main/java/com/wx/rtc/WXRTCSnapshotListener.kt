@@ -4,4 +4,14 @@ import java.io.File
 
 interface WXRTCSnapshotListener {
     fun onSnapshot(userId: String, file: File)
+
+    /**
+     * 截图参数 saveToFile 为 false 时回调 JPEG 数据
+     */
+    fun onSnapshotData(userId: String, data: ByteArray) {}
+
+    /**
+     * 截图失败，如画面读取、JPEG 编码或写文件出错
+     */
+    fun onSnapshotFailed(userId: String) {}
 }
\ No newline at end of file
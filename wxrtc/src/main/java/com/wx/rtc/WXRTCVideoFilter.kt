@@ -0,0 +1,30 @@
+package com.wx.rtc
+
+/**
+ * 采集画面的 GPU 滤镜，按添加顺序依次处理本地推流画面。
+ *
+ * 所有回调都在采集线程执行，此时采集的 EGL 上下文已是当前上下文。
+ */
+interface WXRTCVideoFilter {
+    /**
+     * 首次处理画面前调用，可在此创建 GL 资源
+     */
+    fun onCreate() {}
+
+    /**
+     * 将 GL_TEXTURE_2D 纹理 textureId 处理后绘制到当前绑定的 framebuffer，视口已设为 width x height。
+     * width、height 为未旋转的画面尺寸，rotation 为画面需顺时针旋转的角度
+     */
+    fun onDraw(textureId: Int, width: Int, height: Int, rotation: Int, timestampNs: Long)
+
+    /**
+     * 每帧处理耗时。支持 GL_EXT_disjoint_timer_query 时 isGpuTime 为 true，为 GPU 耗时，
+     * 会延迟若干帧回调；否则为 onDraw 的 CPU 耗时
+     */
+    fun onDrawTime(timeNs: Long, isGpuTime: Boolean) {}
+
+    /**
+     * 移除滤镜或停止采集时调用，需在此释放 GL 资源
+     */
+    fun onRelease() {}
+}
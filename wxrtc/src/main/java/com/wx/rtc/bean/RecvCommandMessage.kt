@@ -18,6 +18,9 @@ internal class RecvCommandMessage {
     @JvmField
     var unpublishUrl: String? = null
 
+    @JvmField
+    var subscribeUrl: String? = null
+
     @JvmField
     var userId: String? = null
 
@@ -0,0 +1,166 @@
+package com.wx.rtc.bean
+
+import com.wx.rtc.WXRTCDef.Speaker
+import com.wx.rtc.utils.JsonWriter
+
+/**
+ * Outbound signaling message, one class per [SignalCommand].
+ */
+internal sealed class SendCommand(val signal: String) {
+    /**
+     * Control signals (login, logout, enter and exit room) are never dropped from the send
+     * queue; other messages may be dropped when it overflows.
+     */
+    open val control: Boolean
+        get() = false
+
+    /**
+     * Writes the fields following `signal` into the open message object.
+     */
+    open fun writeFields(writer: JsonWriter) {
+    }
+
+    class Login(
+        private val appId: String, private val userId: String,
+        private val connectUrl: String, private val networkType: Int?
+    ) : SendCommand(SignalCommand.LOGIN) {
+        override val control: Boolean
+            get() = true
+
+        override fun writeFields(writer: JsonWriter) {
+            writer.name("app_id").value(appId)
+            writer.name("user_id").value(userId)
+            writer.name("connect_url").value(connectUrl)
+            networkType?.let {
+                writer.name("network_type").value(it.toLong())
+            }
+        }
+    }
+
+    object Logout : SendCommand(SignalCommand.LOGOUT) {
+        override val control: Boolean
+            get() = true
+    }
+
+    class EnterRoom(private val roomId: String) : SendCommand(SignalCommand.ENTER_ROOM) {
+        override val control: Boolean
+            get() = true
+
+        override fun writeFields(writer: JsonWriter) {
+            writer.name("room_id").value(roomId)
+        }
+    }
+
+    object ExitRoom : SendCommand(SignalCommand.EXIT_ROOM) {
+        override val control: Boolean
+            get() = true
+    }
+
+    class Call(
+        private val cmd: String, private val userId: String, private val roomId: String? = null
+    ) : SendCommand(SignalCommand.CALL_CMD) {
+        override fun writeFields(writer: JsonWriter) {
+            writer.name("call_cmd").beginObject()
+                .name("cmd").value(cmd)
+                .name("user_id").value(userId)
+                .optField("room_id", roomId)
+                .endObject()
+        }
+    }
+
+    class P2PMessage(
+        private val from: String?, private val to: String, private val message: String
+    ) : SendCommand(SignalCommand.SEND_P2P_MSG) {
+        override fun writeFields(writer: JsonWriter) {
+            writer.name("p2p_msg").beginObject()
+                .name("from").value(from)
+                .name("to").value(to)
+                .name("message").value(message)
+                .endObject()
+        }
+    }
+
+    class RoomMessage(
+        private val cmd: String, private val message: String
+    ) : SendCommand(SignalCommand.SEND_ROOM_MSG) {
+        override fun writeFields(writer: JsonWriter) {
+            writer.name("room_msg").beginObject()
+                .name("cmd").value(cmd)
+                .name("message").value(message)
+                .endObject()
+        }
+    }
+
+    object StartProcess : SendCommand(SignalCommand.START_PROCESS)
+
+    object EndProcess : SendCommand(SignalCommand.END_PROCESS)
+
+    class Record(
+        private val cmd: String,
+        private val endFileName: String? = null,
+        private val mixId: String? = null,
+        private val extraData: String? = null,
+        private val needAfterAsr: Boolean? = null,
+        private val hospitalId: String? = null,
+        private val spkList: List<Speaker>? = null
+    ) : SendCommand(SignalCommand.RECORD_CMD) {
+        override fun writeFields(writer: JsonWriter) {
+            writer.name("record_cmd").beginObject()
+                .name("cmd").value(cmd)
+                .optField("end_file_name", endFileName)
+                .optField("mix_id", mixId)
+                .optField("extra_data", extraData)
+            needAfterAsr?.let {
+                writer.name("need_after_asr").value(it)
+            }
+            writer.optField("hospital_id", hospitalId)
+            writeSpeakers(writer, spkList)
+            writer.endObject()
+        }
+    }
+
+    class Process(
+        private val type: String,
+        private val cmd: String,
+        private val hospitalId: String? = null,
+        private val spkList: List<Speaker>? = null
+    ) : SendCommand(SignalCommand.PROCESS_CMD) {
+        override fun writeFields(writer: JsonWriter) {
+            writer.name("process_cmd_list").beginArray().beginObject()
+                .name("type").value(type)
+                .name("cmd").value(cmd)
+                .optField("hospital_id", hospitalId)
+            writeSpeakers(writer, spkList)
+            writer.endObject().endArray()
+        }
+    }
+
+    class VideoAvailable(private val available: Boolean) : SendCommand(SignalCommand.VIDEO_AVAILABLE) {
+        override fun writeFields(writer: JsonWriter) {
+            writer.name("available").value(available)
+        }
+    }
+
+    class AudioAvailable(private val available: Boolean) : SendCommand(SignalCommand.AUDIO_AVAILABLE) {
+        override fun writeFields(writer: JsonWriter) {
+            writer.name("available").value(available)
+        }
+    }
+
+    protected fun writeSpeakers(writer: JsonWriter, spkList: List<Speaker>?) {
+        if (spkList == null) {
+            return
+        }
+        writer.name("spk_list").beginArray()
+        for (speaker in spkList) {
+            writer.beginObject()
+            // spk_id is sent as a string.
+            speaker.spkId?.let {
+                writer.name("spk_id").value(it.toString())
+            }
+            writer.optField("spk_name", speaker.spkName)
+            writer.endObject()
+        }
+        writer.endArray()
+    }
+}
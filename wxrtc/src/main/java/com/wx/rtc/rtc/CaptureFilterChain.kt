@@ -0,0 +1,280 @@
+package com.wx.rtc.rtc
+
+import android.graphics.Matrix
+import android.opengl.EGL14
+import android.opengl.EGLContext
+import android.opengl.GLES20
+import android.opengl.GLES30
+import android.os.Handler
+import android.util.Log
+import com.wx.rtc.WXRTCVideoFilter
+import org.webrtc.GlRectDrawer
+import org.webrtc.GlTextureFrameBuffer
+import org.webrtc.GlUtil
+import org.webrtc.RendererCommon
+import org.webrtc.TextureBufferImpl
+import org.webrtc.VideoFrame
+import org.webrtc.YuvConverter
+import java.util.ArrayDeque
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Runs captured texture frames through an ordered list of [WXRTCVideoFilter]s on the capture
+ * thread, in the EGL context of its SurfaceTextureHelper.
+ *
+ * The input frame is drawn once into an RGBA texture, then every filter draws from the previous
+ * texture into the next one. The last texture is wrapped in a TextureBufferImpl, so the frame
+ * never leaves the GPU; the texture returns to the pool when the encoder and renderers have
+ * released the frame. Filters can be added and removed from any thread, the change is applied
+ * on the capture thread before the next frame. Frames that are not texture frames are passed on
+ * unfiltered.
+ */
+internal class CaptureFilterChain {
+    private class FilterState(val filter: WXRTCVideoFilter) {
+        // Ring of GL_TIME_ELAPSED_EXT queries, empty without GL_EXT_disjoint_timer_query.
+        var queries = IntArray(0)
+        var firstQuery = 0
+        var pendingQueries = 0
+    }
+
+    private val filters = CopyOnWriteArrayList<WXRTCVideoFilter>()
+    @Volatile
+    private var filtersChanged = false
+
+    // Only accessed on the capture thread.
+    private val active = ArrayList<FilterState>()
+    private var eglContext: EGLContext? = null
+    private var drawer: GlRectDrawer? = null
+    private var yuvConverter: YuvConverter? = null
+    private var timerQueries = false
+    private val queryResult = IntArray(1)
+
+    // Returned from the threads releasing the frames, synchronized on |freeFrameBuffers|. All of
+    // them belong to |poolContext|.
+    private val freeFrameBuffers = ArrayDeque<GlTextureFrameBuffer>()
+    private var poolContext: EGLContext? = null
+
+    val isEmpty: Boolean
+        get() = filters.isEmpty() && !filtersChanged
+
+    fun add(filter: WXRTCVideoFilter) {
+        if (filters.addIfAbsent(filter)) {
+            filtersChanged = true
+        }
+    }
+
+    fun remove(filter: WXRTCVideoFilter) {
+        if (filters.remove(filter)) {
+            filtersChanged = true
+        }
+    }
+
+    /**
+     * Filters |frame| and returns the new frame, which the caller must release, or null if
+     * |frame| is to be used as it is. |toI420Handler| is the handler of the capture thread.
+     */
+    fun process(frame: VideoFrame, toI420Handler: Handler): VideoFrame? {
+        syncFilters()
+        val buffer = frame.buffer
+        if (active.isEmpty() || buffer !is VideoFrame.TextureBuffer) {
+            return null
+        }
+        val width = buffer.width
+        val height = buffer.height
+
+        var input = obtainFrameBuffer(width, height)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, input.frameBufferId)
+        val texMatrix = RendererCommon.convertMatrixFromAndroidGraphicsMatrix(buffer.transformMatrix)
+        if (buffer.type == VideoFrame.TextureBuffer.Type.OES) {
+            drawer!!.drawOes(buffer.textureId, texMatrix, width, height, 0, 0, width, height)
+        } else {
+            drawer!!.drawRgb(buffer.textureId, texMatrix, width, height, 0, 0, width, height)
+        }
+
+        for (state in active) {
+            val output = obtainFrameBuffer(width, height)
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, output.frameBufferId)
+            GLES20.glViewport(0, 0, width, height)
+            drawFilter(state, input.textureId, width, height, frame)
+            recycleFrameBuffer(input, eglContext)
+            input = output
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+        // The texture is read from the encoder's and renderers' contexts.
+        GLES20.glFlush()
+        GlUtil.checkNoGLES2Error("CaptureFilterChain.process")
+
+        val result = input
+        val context = eglContext
+        val filtered = TextureBufferImpl(
+            width, height, VideoFrame.TextureBuffer.Type.RGB, result.textureId, Matrix(),
+            toI420Handler, yuvConverter!!
+        ) { recycleFrameBuffer(result, context) }
+        return VideoFrame(filtered, frame.rotation, frame.timestampNs)
+    }
+
+    /**
+     * Releases the filters and GL resources. Must run on the capture thread before its
+     * SurfaceTextureHelper is disposed. The filters stay in the chain and are created again
+     * for the next capture.
+     */
+    fun releaseGl() {
+        for (state in active) {
+            releaseFilter(state)
+        }
+        active.clear()
+        drawer?.release()
+        drawer = null
+        yuvConverter?.release()
+        yuvConverter = null
+        releaseFreeFrameBuffers(null)
+        eglContext = null
+    }
+
+    private fun syncFilters() {
+        val context = EGL14.eglGetCurrentContext()
+        if (context != eglContext) {
+            // Capture restarted on a new SurfaceTextureHelper, the old GL objects are gone with
+            // their context.
+            for (state in active) {
+                state.filter.onRelease()
+            }
+            active.clear()
+            releaseFreeFrameBuffers(context)
+            eglContext = context
+            drawer = GlRectDrawer()
+            yuvConverter = YuvConverter()
+            timerQueries = hasTimerQueries()
+            filtersChanged = true
+        }
+        if (!filtersChanged) {
+            return
+        }
+        filtersChanged = false
+        val wanted = filters.toList()
+        val iterator = active.iterator()
+        while (iterator.hasNext()) {
+            val state = iterator.next()
+            if (state.filter !in wanted) {
+                releaseFilter(state)
+                iterator.remove()
+            }
+        }
+        val ordered = ArrayList<FilterState>(wanted.size)
+        for (filter in wanted) {
+            val state = active.firstOrNull { it.filter === filter } ?: FilterState(filter).also {
+                filter.onCreate()
+                if (timerQueries) {
+                    it.queries = IntArray(QUERY_RING_SIZE)
+                    GLES30.glGenQueries(QUERY_RING_SIZE, it.queries, 0)
+                }
+            }
+            ordered.add(state)
+        }
+        active.clear()
+        active.addAll(ordered)
+        Log.d(TAG, "Capture filters: ${active.size}, GPU timing: $timerQueries")
+    }
+
+    private fun drawFilter(state: FilterState, textureId: Int, width: Int, height: Int, frame: VideoFrame) {
+        if (state.queries.isEmpty()) {
+            val startNs = System.nanoTime()
+            state.filter.onDraw(textureId, width, height, frame.rotation, frame.timestampNs)
+            state.filter.onDrawTime(System.nanoTime() - startNs, false)
+            return
+        }
+        collectQueryResults(state)
+        if (state.pendingQueries == state.queries.size) {
+            // The GPU is behind by a whole ring, skip timing this frame.
+            state.filter.onDraw(textureId, width, height, frame.rotation, frame.timestampNs)
+            return
+        }
+        val query = state.queries[(state.firstQuery + state.pendingQueries) % state.queries.size]
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, query)
+        state.filter.onDraw(textureId, width, height, frame.rotation, frame.timestampNs)
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT)
+        state.pendingQueries++
+    }
+
+    private fun collectQueryResults(state: FilterState) {
+        while (state.pendingQueries > 0) {
+            val query = state.queries[state.firstQuery]
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, queryResult, 0)
+            if (queryResult[0] == 0) {
+                return
+            }
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, queryResult, 0)
+            state.firstQuery = (state.firstQuery + 1) % state.queries.size
+            state.pendingQueries--
+            val elapsedNs = queryResult[0].toLong() and 0xffffffffL
+            GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, queryResult, 0)
+            // A disjoint event (e.g. frequency change) makes the result meaningless.
+            if (queryResult[0] == 0) {
+                state.filter.onDrawTime(elapsedNs, true)
+            }
+        }
+    }
+
+    private fun releaseFilter(state: FilterState) {
+        if (state.queries.isNotEmpty()) {
+            GLES30.glDeleteQueries(state.queries.size, state.queries, 0)
+        }
+        try {
+            state.filter.onRelease()
+        } catch (e: RuntimeException) {
+            Log.e(TAG, "Filter release failed", e)
+        }
+    }
+
+    private fun obtainFrameBuffer(width: Int, height: Int): GlTextureFrameBuffer {
+        val frameBuffer = synchronized(freeFrameBuffers) {
+            freeFrameBuffers.poll()
+        } ?: GlTextureFrameBuffer(GLES20.GL_RGBA)
+        frameBuffer.setSize(width, height)
+        return frameBuffer
+    }
+
+    private fun recycleFrameBuffer(frameBuffer: GlTextureFrameBuffer, context: EGLContext?) {
+        synchronized(freeFrameBuffers) {
+            // Otherwise the frame was released after its capture context was torn down, and the
+            // texture went with the context.
+            if (context != null && context === poolContext) {
+                freeFrameBuffers.add(frameBuffer)
+            }
+        }
+    }
+
+    /**
+     * Releases the pooled frame buffers and pools frame buffers of |newContext| from now on. Their
+     * names can only be deleted in the context that created them; if another context is current,
+     * that context is gone or not ours to touch, so they are dropped.
+     */
+    private fun releaseFreeFrameBuffers(newContext: EGLContext?) {
+        synchronized(freeFrameBuffers) {
+            if (poolContext === EGL14.eglGetCurrentContext()) {
+                for (frameBuffer in freeFrameBuffers) {
+                    frameBuffer.release()
+                }
+            } else if (freeFrameBuffers.isNotEmpty()) {
+                Log.w(TAG, "Dropping ${freeFrameBuffers.size} frame buffers of a released context")
+            }
+            freeFrameBuffers.clear()
+            poolContext = newContext
+        }
+    }
+
+    companion object {
+        private const val TAG = "CaptureFilterChain"
+        private const val QUERY_RING_SIZE = 4
+        private const val GL_TIME_ELAPSED_EXT = 0x88BF
+        private const val GL_GPU_DISJOINT_EXT = 0x8FBB
+
+        private fun hasTimerQueries(): Boolean {
+            val version = GLES20.glGetString(GLES20.GL_VERSION) ?: return false
+            val extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS) ?: return false
+            // "OpenGL ES <major>.<minor> <vendor-specific information>"
+            return version.startsWith("OpenGL ES ") && version.length > 10 && version[10] >= '3' &&
+                    extensions.contains("GL_EXT_disjoint_timer_query")
+        }
+    }
+}
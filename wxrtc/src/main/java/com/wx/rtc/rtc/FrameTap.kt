@@ -0,0 +1,241 @@
+package com.wx.rtc.rtc
+
+import android.graphics.Matrix
+import android.opengl.GLES20
+import android.os.Handler
+import android.os.HandlerThread
+import android.util.Log
+import com.wx.rtc.WXRTCDef
+import com.wx.rtc.WXRTCFrameTapListener
+import org.webrtc.EglBase
+import org.webrtc.GlRectDrawer
+import org.webrtc.GlTextureFrameBuffer
+import org.webrtc.GlUtil
+import org.webrtc.VideoFrame
+import org.webrtc.VideoFrameDrawer
+import org.webrtc.YuvHelper
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+
+/**
+ * Hands downscaled copies of a video stream to a [WXRTCFrameTapListener] at a fixed rate.
+ *
+ * Frames are picked on the producer thread by timestamp only; everything else runs on the tap
+ * thread. At most one frame waits for that thread, a newer frame replaces it (drop-oldest), so a
+ * slow listener never holds decoder or camera buffers. I420 output is scaled by the frame buffer
+ * itself (on the GPU for texture frames) before it is converted, so full-size frames are never
+ * copied; RGBA output is drawn at the target size on the tap thread's own EGL context. Both end
+ * up upright in direct buffers from a pool of |bufferCount| entries. When the listener still
+ * holds all of them the frame is dropped.
+ */
+internal class FrameTap(
+    private val userId: String,
+    param: WXRTCDef.WXRTCFrameTapParam,
+    private val sharedContext: EglBase.Context,
+    private val listener: WXRTCFrameTapListener
+) {
+    private val intervalNs = NANOS_PER_SECOND / param.fps.coerceIn(1, MAX_FPS)
+    private val maxWidth = maxOf(2, param.width)
+    private val maxHeight = maxOf(2, param.height)
+    private val format = param.format
+    private val bufferCount = maxOf(1, param.bufferCount)
+
+    private val thread = HandlerThread(TAG).apply { start() }
+    private val handler = Handler(thread.looper)
+
+    // Guarded by |lock|.
+    private val lock = Any()
+    private var pendingFrame: VideoFrame? = null
+    private var nextFrameTimeNs = 0L
+    @Volatile
+    private var released = false
+
+    // Guarded by |freeBuffers|.
+    private val freeBuffers = ArrayDeque<ByteBuffer>(bufferCount)
+    private var allocatedBuffers = 0
+
+    @Volatile
+    var droppedFrames = 0
+        private set
+
+    // GL state for RGBA output, only touched on the tap thread.
+    private var eglBase: EglBase? = null
+    private var frameBuffer: GlTextureFrameBuffer? = null
+    private var drawer: GlRectDrawer? = null
+    private var frameDrawer: VideoFrameDrawer? = null
+    private val drawMatrix = Matrix().apply {
+        // glReadPixels returns rows bottom-up, draw upside down to get top-down rows.
+        preTranslate(0.5f, 0.5f)
+        preScale(1f, -1f)
+        preTranslate(-0.5f, -0.5f)
+    }
+
+    private val processRunnable = Runnable { processPendingFrame() }
+
+    /**
+     * Called on the producer thread for every frame. Cheap when the frame is not picked.
+     */
+    fun onFrame(frame: VideoFrame) {
+        val timestampNs = frame.timestampNs
+        synchronized(lock) {
+            if (released || timestampNs < nextFrameTimeNs) {
+                return
+            }
+            // Catch up after a gap instead of letting a burst of frames through.
+            nextFrameTimeNs = maxOf(nextFrameTimeNs, timestampNs - intervalNs) + intervalNs
+            frame.retain()
+            val dropped = pendingFrame
+            pendingFrame = frame
+            if (dropped != null) {
+                dropped.release()
+                droppedFrames++
+            } else {
+                handler.post(processRunnable)
+            }
+        }
+    }
+
+    fun release() {
+        synchronized(lock) {
+            released = true
+            pendingFrame?.release()
+            pendingFrame = null
+        }
+        handler.post {
+            frameDrawer?.release()
+            frameDrawer = null
+            drawer?.release()
+            drawer = null
+            frameBuffer?.release()
+            frameBuffer = null
+            eglBase?.release()
+            eglBase = null
+            synchronized(freeBuffers) {
+                freeBuffers.clear()
+            }
+            thread.quitSafely()
+        }
+    }
+
+    private fun processPendingFrame() {
+        val frame = synchronized(lock) {
+            pendingFrame.also { pendingFrame = null }
+        } ?: return
+        try {
+            val rotatedWidth = frame.rotatedWidth
+            val rotatedHeight = frame.rotatedHeight
+            if (rotatedWidth <= 0 || rotatedHeight <= 0) {
+                return
+            }
+            val scale = minOf(1f, maxWidth.toFloat() / rotatedWidth, maxHeight.toFloat() / rotatedHeight)
+            // Even sizes keep the I420 chroma planes exact.
+            val width = maxOf(2, (rotatedWidth * scale).toInt() and 1.inv())
+            val height = maxOf(2, (rotatedHeight * scale).toInt() and 1.inv())
+
+            val rgba = format == WXRTCDef.WXRTC_VIDEO_FRAME_FORMAT_RGBA
+            val output = obtainBuffer(if (rgba) width * height * 4 else width * height * 3 / 2)
+            if (output == null) {
+                droppedFrames++
+                return
+            }
+            try {
+                if (rgba) {
+                    drawRgba(frame, width, height, output)
+                } else {
+                    scaleI420(frame, width, height, output)
+                }
+            } catch (e: RuntimeException) {
+                recycleBuffer(output)
+                throw e
+            }
+            listener.onVideoFrame(
+                userId,
+                WXRTCDef.WXRTCVideoFrame(format, width, height, frame.timestampNs, output) {
+                    recycleBuffer(output)
+                })
+        } catch (e: RuntimeException) {
+            Log.e(TAG, "Frame tap failed", e)
+        } finally {
+            frame.release()
+        }
+    }
+
+    private fun scaleI420(frame: VideoFrame, width: Int, height: Int, output: ByteBuffer) {
+        val buffer = frame.buffer
+        val rotated = frame.rotation % 180 != 0
+        val scaled = buffer.cropAndScale(
+            0, 0, buffer.width, buffer.height,
+            if (rotated) height else width, if (rotated) width else height
+        )
+        val i420 = scaled.toI420()
+        scaled.release()
+        if (i420 == null) {
+            throw IllegalStateException("Can not convert frame to I420")
+        }
+        try {
+            YuvHelper.I420Rotate(
+                i420.dataY, i420.strideY, i420.dataU, i420.strideU, i420.dataV, i420.strideV,
+                output, i420.width, i420.height, frame.rotation
+            )
+            output.position(0)
+        } finally {
+            i420.release()
+        }
+    }
+
+    private fun drawRgba(frame: VideoFrame, width: Int, height: Int, output: ByteBuffer) {
+        if (eglBase == null) {
+            eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PIXEL_BUFFER).apply {
+                createDummyPbufferSurface()
+                makeCurrent()
+            }
+            frameBuffer = GlTextureFrameBuffer(GLES20.GL_RGBA)
+            drawer = GlRectDrawer()
+            frameDrawer = VideoFrameDrawer()
+        }
+        val frameBuffer = frameBuffer!!
+        frameBuffer.setSize(width, height)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.frameBufferId)
+        GLES20.glClearColor(0f, 0f, 0f, 0f)
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT)
+        frameDrawer!!.drawFrame(frame, drawer!!, drawMatrix, 0, 0, width, height)
+        GLES20.glViewport(0, 0, width, height)
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, output)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+        GlUtil.checkNoGLES2Error("FrameTap.drawRgba")
+    }
+
+    private fun obtainBuffer(byteCount: Int): ByteBuffer? {
+        synchronized(freeBuffers) {
+            var buffer = freeBuffers.poll()
+            while (buffer != null && buffer.capacity() < byteCount) {
+                allocatedBuffers--
+                buffer = freeBuffers.poll()
+            }
+            if (buffer == null) {
+                if (allocatedBuffers >= bufferCount) {
+                    return null
+                }
+                buffer = ByteBuffer.allocateDirect(byteCount)
+                allocatedBuffers++
+            }
+            buffer!!.clear()
+            buffer.limit(byteCount)
+            return buffer
+        }
+    }
+
+    private fun recycleBuffer(buffer: ByteBuffer) {
+        synchronized(freeBuffers) {
+            if (!released) {
+                freeBuffers.add(buffer)
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "FrameTap"
+        private const val NANOS_PER_SECOND = 1_000_000_000L
+        private const val MAX_FPS = 30
+    }
+}
@@ -0,0 +1,317 @@
+package com.wx.rtc.rtc
+
+/**
+ * Line-level model of a session description: the session section followed by one
+ * [MediaSection] per m= line. Lines that are not touched are kept verbatim, so
+ * [toString] reproduces the input apart from the edits made through the model.
+ */
+internal class ParsedSdp private constructor(
+    val sessionLines: MutableList<String>, val media: List<MediaSection>
+) {
+    class MediaSection(mLine: String, val lines: MutableList<String>) {
+        // m=<media> <port> <proto> <fmt> ...
+        val kind: String
+        private val header: String
+        val payloadTypes: MutableList<String>
+
+        init {
+            val parts = mLine.substring(2).split(' ')
+            kind = parts[0]
+            header = if (parts.size >= 3) "${parts[0]} ${parts[1]} ${parts[2]}" else mLine.substring(2)
+            payloadTypes = if (parts.size > 3) ArrayList(parts.subList(3, parts.size)) else ArrayList()
+        }
+
+        val mLine: String
+            get() {
+                val sb = StringBuilder(header.length + 2 + payloadTypes.size * 4)
+                sb.append("m=").append(header)
+                for (pt in payloadTypes) {
+                    sb.append(' ').append(pt)
+                }
+                return sb.toString()
+            }
+
+        /**
+         * The a=mid of the section, or null if it has none.
+         */
+        val mid: String?
+            get() {
+                for (line in lines) {
+                    if (line.startsWith(MID)) {
+                        return line.substring(MID.length)
+                    }
+                }
+                return null
+            }
+
+        /**
+         * Payload types mapped to |codec| by a=rtpmap, in line order.
+         */
+        fun payloadTypesOf(codec: String): List<String> {
+            var result: MutableList<String>? = null
+            for (line in lines) {
+                if (!line.startsWith(RTPMAP)) {
+                    continue
+                }
+                val space = line.indexOf(' ', RTPMAP.length)
+                val slash = line.indexOf('/', space + 1)
+                if (space < 0 || slash < 0 || slash - space - 1 != codec.length) {
+                    continue
+                }
+                if (line.regionMatches(space + 1, codec, 0, codec.length, ignoreCase = true)) {
+                    if (result == null) {
+                        result = ArrayList(2)
+                    }
+                    result.add(line.substring(RTPMAP.length, space))
+                }
+            }
+            return result ?: emptyList()
+        }
+
+        /**
+         * Moves the payload types of |codec| to the front of the m= line.
+         */
+        fun preferCodec(codec: String): Boolean {
+            val preferred = payloadTypesOf(codec)
+            if (preferred.isEmpty()) {
+                return false
+            }
+            payloadTypes.removeAll(preferred)
+            payloadTypes.addAll(0, preferred)
+            return true
+        }
+
+        /**
+         * Adds `|name|=|value|` to the a=fmtp line of every payload type of |codec|, creating
+         * the line after the a=rtpmap one if there is none.
+         */
+        fun addCodecParameter(codec: String, name: String, value: Int): Boolean {
+            val pts = payloadTypesOf(codec)
+            for (pt in pts) {
+                val fmtpIndex = indexOfAttribute(FMTP, pt)
+                if (fmtpIndex >= 0) {
+                    lines[fmtpIndex] = lines[fmtpIndex] + "; " + name + "=" + value
+                } else {
+                    val rtpmapIndex = indexOfAttribute(RTPMAP, pt)
+                    lines.add(rtpmapIndex + 1, "$FMTP$pt $name=$value")
+                }
+            }
+            return pts.isNotEmpty()
+        }
+
+        /**
+         * Removes |codecs| from the section, together with the RTX payload types that
+         * retransmit them.
+         */
+        fun removeCodecs(codecs: Collection<String>): Boolean {
+            val removed = HashSet<String>()
+            for (codec in codecs) {
+                removed.addAll(payloadTypesOf(codec))
+            }
+            if (removed.isEmpty()) {
+                return false
+            }
+            // a=fmtp:<rtx pt> apt=<pt>
+            for (line in lines) {
+                if (!line.startsWith(FMTP)) {
+                    continue
+                }
+                val space = line.indexOf(' ', FMTP.length)
+                val apt = line.indexOf("apt=", space + 1)
+                if (space < 0 || apt < 0) {
+                    continue
+                }
+                var end = apt + 4
+                while (end < line.length && line[end].isDigit()) {
+                    end++
+                }
+                if (line.substring(apt + 4, end) in removed) {
+                    removed.add(line.substring(FMTP.length, space))
+                }
+            }
+            payloadTypes.removeAll(removed)
+            lines.removeAll { line ->
+                val prefixLength = when {
+                    line.startsWith(RTPMAP) -> RTPMAP.length
+                    line.startsWith(FMTP) -> FMTP.length
+                    line.startsWith(RTCP_FB) -> RTCP_FB.length
+                    else -> return@removeAll false
+                }
+                val end = line.indexOf(' ', prefixLength)
+                end > 0 && line.substring(prefixLength, end) in removed
+            }
+            return true
+        }
+
+        private fun indexOfAttribute(prefix: String, pt: String): Int {
+            for (i in lines.indices) {
+                val line = lines[i]
+                if (line.startsWith(prefix) && line.startsWith(pt, prefix.length) &&
+                    line.length > prefix.length + pt.length && line[prefix.length + pt.length] == ' '
+                ) {
+                    return i
+                }
+            }
+            return -1
+        }
+    }
+
+    fun hasSessionAttribute(attribute: String): Boolean {
+        return sessionLines.any { it == attribute }
+    }
+
+    /**
+     * Inserts |line| before the first session line starting with |before|. Returns false
+     * when there is no such line.
+     */
+    fun insertSessionLine(line: String, before: String): Boolean {
+        val index = sessionLines.indexOfFirst { it.startsWith(before) }
+        if (index < 0) {
+            return false
+        }
+        sessionLines.add(index, line)
+        return true
+    }
+
+    fun mediaOf(kind: String): List<MediaSection> {
+        return media.filter { it.kind == kind }
+    }
+
+    /**
+     * Returns the first line starting with |prefix|, looking at the session section before
+     * the media sections.
+     */
+    fun findLine(prefix: String): String? {
+        for (line in sessionLines) {
+            if (line.startsWith(prefix)) {
+                return line
+            }
+        }
+        for (section in media) {
+            for (line in section.lines) {
+                if (line.startsWith(prefix)) {
+                    return line
+                }
+            }
+        }
+        return null
+    }
+
+    /**
+     * Replaces the a=ice-ufrag and a=ice-pwd lines of every section with the full lines
+     * |ufrag| and |pwd|. A null keeps the current lines.
+     */
+    fun replaceIceCredentials(ufrag: String?, pwd: String?) {
+        replaceIceCredentials(sessionLines, ufrag, pwd)
+        for (section in media) {
+            replaceIceCredentials(section.lines, ufrag, pwd)
+        }
+    }
+
+    /**
+     * The a=candidate and a=end-of-candidates lines of every section, in order.
+     */
+    fun candidateLines(): List<String> {
+        val candidates = sessionLines.filter(::isCandidateLine).toMutableList()
+        for (section in media) {
+            section.lines.filterTo(candidates, ::isCandidateLine)
+        }
+        return candidates
+    }
+
+    /**
+     * Replaces the candidates of every section with |candidates|, which go to the first
+     * m-section as it carries the bundled transport.
+     */
+    fun replaceCandidates(candidates: List<String>) {
+        sessionLines.removeAll(::isCandidateLine)
+        for (section in media) {
+            section.lines.removeAll(::isCandidateLine)
+        }
+        (media.firstOrNull()?.lines ?: sessionLines).addAll(candidates)
+    }
+
+    override fun toString(): String {
+        var length = 0
+        for (line in sessionLines) {
+            length += line.length + 2
+        }
+        for (section in media) {
+            length += section.lines.size * 32 + 64
+        }
+        val sb = StringBuilder(length)
+        for (line in sessionLines) {
+            sb.append(line).append(CRLF)
+        }
+        for (section in media) {
+            sb.append(section.mLine).append(CRLF)
+            for (line in section.lines) {
+                sb.append(line).append(CRLF)
+            }
+        }
+        return sb.toString()
+    }
+
+    companion object {
+        private const val CRLF = "\r\n"
+        private const val RTPMAP = "a=rtpmap:"
+        private const val FMTP = "a=fmtp:"
+        private const val RTCP_FB = "a=rtcp-fb:"
+        private const val MID = "a=mid:"
+        private const val CANDIDATE = "a=candidate:"
+        private const val END_OF_CANDIDATES = "a=end-of-candidates"
+        const val ICE_UFRAG = "a=ice-ufrag:"
+        const val ICE_PWD = "a=ice-pwd:"
+
+        private fun isCandidateLine(line: String): Boolean {
+            return line.startsWith(CANDIDATE) || line == END_OF_CANDIDATES
+        }
+
+        private fun replaceIceCredentials(lines: MutableList<String>, ufrag: String?, pwd: String?) {
+            for (i in lines.indices) {
+                if (ufrag != null && lines[i].startsWith(ICE_UFRAG)) {
+                    lines[i] = ufrag
+                } else if (pwd != null && lines[i].startsWith(ICE_PWD)) {
+                    lines[i] = pwd
+                }
+            }
+        }
+
+        /**
+         * Parses |sdp| in a single pass. Accepts both CRLF and bare LF line endings and skips
+         * empty lines.
+         */
+        fun parse(sdp: String): ParsedSdp {
+            val sessionLines = ArrayList<String>(16)
+            val media = ArrayList<MediaSection>(4)
+            var mLine: String? = null
+            var mediaLines: MutableList<String> = sessionLines
+            var start = 0
+            val length = sdp.length
+            while (start < length) {
+                var end = sdp.indexOf('\n', start)
+                if (end < 0) {
+                    end = length
+                }
+                val lineEnd = if (end > start && sdp[end - 1] == '\r') end - 1 else end
+                if (lineEnd > start) {
+                    val line = sdp.substring(start, lineEnd)
+                    if (line.startsWith("m=")) {
+                        if (mLine != null) {
+                            media.add(MediaSection(mLine, mediaLines))
+                        }
+                        mLine = line
+                        mediaLines = ArrayList(32)
+                    } else {
+                        mediaLines.add(line)
+                    }
+                }
+                start = end + 1
+            }
+            if (mLine != null) {
+                media.add(MediaSection(mLine, mediaLines))
+            }
+            return ParsedSdp(sessionLines, media)
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.wx.rtc.rtc
+
+import org.webrtc.VideoSink
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remote participants of the room, indexed by user id and by the renderer showing them.
+ *
+ * Lookups are lock-free and may run on any thread, e.g. from [PeerConnectionClient]
+ * callbacks. Renderer changes go through the methods below so that the renderer index stays
+ * consistent with the proxy sinks; they are serialized on the registry.
+ *
+ * A participant stays registered after leaving, so the mute flags and renderer the app set
+ * apply again when it rejoins; the registry is cleared on exiting the room.
+ */
+internal class ParticipantRegistry {
+    private val byUserId = ConcurrentHashMap<String, PeerConnectionManager>()
+    private val byRenderer = ConcurrentHashMap<VideoSink, PeerConnectionManager>()
+
+    /**
+     * Weakly consistent view of all participants.
+     */
+    val all: Collection<PeerConnectionManager>
+        get() = byUserId.values
+
+    fun get(userId: String): PeerConnectionManager? {
+        return byUserId[userId]
+    }
+
+    /**
+     * Returns the participant |renderer| currently shows.
+     */
+    fun getByRenderer(renderer: VideoSink): PeerConnectionManager? {
+        return byRenderer[renderer]
+    }
+
+    /**
+     * Returns the participant of |userId|, creating it with |init| if needed.
+     */
+    @Synchronized
+    fun getOrCreate(
+        userId: String, init: (PeerConnectionManager) -> Unit = {}
+    ): PeerConnectionManager {
+        byUserId[userId]?.let {
+            return it
+        }
+        val pcm = PeerConnectionManager()
+        pcm.userId = userId
+        init(pcm)
+        byUserId[userId] = pcm
+        return pcm
+    }
+
+    /**
+     * Returns the proxy sink of |pcm|, creating it if needed.
+     */
+    @Synchronized
+    fun videoSinkOf(pcm: PeerConnectionManager): ProxyVideoSink {
+        pcm.videoSink?.let {
+            return it
+        }
+        val videoSink = ProxyVideoSink()
+        pcm.videoSink = videoSink
+        return videoSink
+    }
+
+    /**
+     * Renders |pcm| on |renderer|, detaching the renderer from the participant it showed
+     * before. Returns that participant, or null.
+     */
+    @Synchronized
+    fun setRenderer(pcm: PeerConnectionManager, renderer: VideoSink?): PeerConnectionManager? {
+        val videoSink = videoSinkOf(pcm)
+        videoSink.target?.let { byRenderer.remove(it, pcm) }
+        var previous: PeerConnectionManager? = null
+        if (renderer != null) {
+            previous = detachRenderer(renderer)
+            byRenderer[renderer] = pcm
+        }
+        videoSink.setTarget(pcm.userId, renderer)
+        return previous?.takeIf { it !== pcm }
+    }
+
+    /**
+     * Stops rendering whichever participant |renderer| shows. Returns that participant,
+     * or null.
+     */
+    @Synchronized
+    fun detachRenderer(renderer: VideoSink): PeerConnectionManager? {
+        val pcm = byRenderer.remove(renderer) ?: return null
+        pcm.videoSink?.setTarget(pcm.userId, null)
+        return pcm
+    }
+
+    /**
+     * Releases the renderer of |pcm|.
+     */
+    @Synchronized
+    fun releaseVideo(pcm: PeerConnectionManager) {
+        pcm.videoSink?.let { videoSink ->
+            videoSink.target?.let { byRenderer.remove(it, pcm) }
+            videoSink.release()
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        byUserId.clear()
+        byRenderer.clear()
+    }
+}
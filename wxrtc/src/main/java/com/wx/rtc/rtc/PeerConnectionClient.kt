@@ -5,20 +5,28 @@ import android.content.Intent
 import android.media.projection.MediaProjection
 import android.os.Environment
 import android.os.ParcelFileDescriptor
+import android.os.SystemClock
 import android.util.Log
+import com.wx.rtc.WXRTCDef
 import com.wx.rtc.WXRTCDef.WXRTCVideoEncParam
 import com.wx.rtc.utils.ActivityUtils
+import com.wx.rtc.utils.HttpUtils
+import com.wx.rtc.utils.JsonWriter
 import com.wx.rtc.utils.RTCUtils
 import com.wx.rtc.utils.RTCUtils.getVideoResolution
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import okhttp3.Call
 import okhttp3.Callback
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import okhttp3.MediaType.Companion.toMediaType
-import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.RequestBody
 import okhttp3.RequestBody.Companion.toRequestBody
@@ -31,14 +39,14 @@ import org.webrtc.CameraEnumerator
 import org.webrtc.CameraVideoCapturer
 import org.webrtc.CandidatePairChangeEvent
 import org.webrtc.DataChannel
-import org.webrtc.DefaultVideoDecoderFactory
-import org.webrtc.DefaultVideoEncoderFactory
 import org.webrtc.EglBase
 import org.webrtc.IceCandidate
 import org.webrtc.Logging
 import org.webrtc.MediaConstraints
 import org.webrtc.MediaStream
 import org.webrtc.MediaStreamTrack
+import org.webrtc.NetworkChangeDetector
+import org.webrtc.NetworkMonitor
 import org.webrtc.PeerConnection
 import org.webrtc.PeerConnection.IceConnectionState
 import org.webrtc.PeerConnection.IceGatheringState
@@ -48,6 +56,7 @@ import org.webrtc.PeerConnection.RTCConfiguration
 import org.webrtc.PeerConnection.SdpSemantics
 import org.webrtc.PeerConnection.SignalingState
 import org.webrtc.PeerConnectionFactory
+import org.webrtc.RtpParameters
 import org.webrtc.RtpReceiver
 import org.webrtc.RtpSender
 import org.webrtc.RtpTransceiver
@@ -55,13 +64,9 @@ import org.webrtc.RtpTransceiver.RtpTransceiverInit
 import org.webrtc.ScreenCapturerAndroid
 import org.webrtc.SdpObserver
 import org.webrtc.SessionDescription
-import org.webrtc.SoftwareVideoDecoderFactory
-import org.webrtc.SoftwareVideoEncoderFactory
-import org.webrtc.StatsReport
 import org.webrtc.SurfaceTextureHelper
+import org.webrtc.ThreadUtils
 import org.webrtc.VideoCapturer
-import org.webrtc.VideoDecoderFactory
-import org.webrtc.VideoEncoderFactory
 import org.webrtc.VideoFrame
 import org.webrtc.VideoProcessor
 import org.webrtc.VideoProcessor.FrameAdaptationParameters
@@ -69,10 +74,6 @@ import org.webrtc.VideoSink
 import org.webrtc.VideoSource
 import org.webrtc.VideoTrack
 import org.webrtc.audio.JavaAudioDeviceModule
-import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordErrorCallback
-import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordStateCallback
-import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackErrorCallback
-import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackStateCallback
 import java.io.File
 import java.io.IOException
 import java.io.UnsupportedEncodingException
@@ -80,14 +81,12 @@ import java.nio.ByteBuffer
 import java.nio.charset.Charset
 import java.text.DateFormat
 import java.text.SimpleDateFormat
-import java.util.Arrays
+import java.util.Collections
 import java.util.Date
 import java.util.Locale
-import java.util.Timer
-import java.util.TimerTask
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
-import java.util.regex.Pattern
 
 
 /*
@@ -111,7 +110,8 @@ import java.util.regex.Pattern
 internal class PeerConnectionClient(
     private val appContext: Context, private val rootEglBase: EglBase,
     private val userId: String, private val sendSdpUrl: String,
-    private val isPublish: Boolean, private val events: PeerConnectionEvents
+    private val isPublish: Boolean, private val events: PeerConnectionEvents,
+    private val isMultiplex: Boolean = false
 ) {
     // Executor thread is started once in private ctor and is used for all
     // peer connection API calls to ensure new peer connection factory is
@@ -119,7 +119,18 @@ internal class PeerConnectionClient(
     private val executor: ExecutorService = Executors.newSingleThreadExecutor()
     private val pcObserver = PCObserver()
     private val sdpObserver = SDPObserver()
-    private val statsTimer = Timer()
+    // Owns every delayed retry, cancelled by close().
+    private val retryScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val retryPolicy = RetryPolicy()
+    private val pendingCalls: MutableSet<Call> = Collections.newSetFromMap(ConcurrentHashMap())
+    // Replaced by RTCManager with the counters shared by all of its connections.
+    var retryMetrics = RetryMetrics()
+    private val statsCollector = StatsCollector(isPublish)
+    private var statsJob: Job? = null
+    private var statsEnabled = false
+    private var statsIntervalMs = DEFAULT_STATS_INTERVAL_MS
+    private var adaptiveParam: WXRTCDef.WXRTCAdaptiveParam? = null
+    private var qualityController: PublishQualityController? = null
     private var factory: PeerConnectionFactory? = null
     private var peerConnection: PeerConnection? = null
     private var audioSource: AudioSource? = null
@@ -162,8 +173,31 @@ internal class PeerConnectionClient(
     private var iceTurnGet = false
     private var iceComplete = false
 
+    // Trickle ICE state: the offer is posted as soon as it is set and later candidates are
+    // sent with PATCH to the resource url returned by the server.
+    private var isTrickle = false
+    private var resourceUrl: String? = null
+    // Cleared once the server rejects renegotiating a session on its resource.
+    private var resourceRenegotiation = true
+    private val pendingTrickleCandidates: MutableList<IceCandidate> = ArrayList()
+    private var trickleGatheringComplete = false
+    // Trickle ICE support is a property of the media server, not of one stream url.
+    private val trickleServer: String =
+        sendSdpUrl.toHttpUrlOrNull()?.let { "${it.scheme}://${it.host}:${it.port}" } ?: sendSdpUrl
+
     private var frameVideoSink: VideoSink? = null
 
+    @Volatile
+    var frameTap: FrameTap? = null
+
+    var filterChain: CaptureFilterChain? = null
+
+    // Written on the capture thread only.
+    @Volatile
+    private var captureDroppedFrames = 0L
+    @Volatile
+    private var capturePixelsSaved = 0L
+
     private var remoteAudioEnabled = true
     private var remoteAudioVolume = -1
     private var callStartedTimeMs: Long = 0
@@ -174,11 +208,50 @@ internal class PeerConnectionClient(
 
     private val CAPTURE_PERMISSION_REQUEST_CODE = 1
 
+    // Remote users received over this connection when it is a multiplexed subscriber.
+    // Only touched on the executor thread.
+    private val subscriptions = LinkedHashMap<String, Subscription>()
+    private var isNegotiating = false
+    private var renegotiationNeeded = false
+    private var settingLocalSdp = false
+    @Volatile
+    private var subscriptionMapping: String? = null
+    private val midUserIds = HashMap<String, String>()
+
+    // ICE restart state. A restart keeps the connection (and its DTLS session) alive across
+    // network changes; the connection is only rebuilt when the restart times out.
+    private val networkObserver = NetworkMonitor.NetworkObserver { connectionType ->
+        executor.execute {
+            onNetworkChanged(connectionType)
+        }
+    }
+    private var networkObserverAdded = false
+    private var iceRestartJob: Job? = null
+    private var iceRestartAttempts = 0
+    private var iceRestartStartTimeMs = 0L
+    private var iceRestartAnswered = false
+
     var isNeedReconnect: Boolean = true
+    // Publish rid-based simulcast layers, set before the connection is created.
+    var simulcastEnabled: Boolean = false
+    private var layerUrl: String? = null
+    // Simulcast layer (rid) requested per remote user.
+    private val requestedLayers = HashMap<String, String>()
 //    var isPublish: Boolean = false
 //    private var sendSdpUrl: String? = null
     var unpublishUrl: String? = null
 
+    /**
+     * A remote user received over a multiplexed subscriber connection.
+     */
+    private class Subscription(val userId: String, val streamUrl: String, val sink: VideoSink) {
+        var videoTransceiver: RtpTransceiver? = null
+        var audioTransceiver: RtpTransceiver? = null
+        var videoEnabled = true
+        var audioEnabled = true
+        var audioVolume = -1
+    }
+
     /**
      * Peer connection parameters.
      */
@@ -207,6 +280,7 @@ internal class PeerConnectionClient(
         val disableBuiltInNS: Boolean = false,
         val disableWebRtcAGCAndHPF: Boolean = false,
         val enableRtcEventLog: Boolean = false,
+        val trickleIce: Boolean = true,
         val dataChannelParameters: DataChannelParameters? = null
     )
 
@@ -258,15 +332,38 @@ internal class PeerConnectionClient(
          */
         fun onDisconnected(pc: PeerConnectionClient)
 
+        /**
+         * Callback fired once an ICE restart is started on the existing connection.
+         */
+        fun onIceRestart(pc: PeerConnectionClient, attempt: Int, reason: String)
+
+        /**
+         * Callback fired once an ICE restart completed or timed out. A failed restart is
+         * followed by a rebuild of the peer connection.
+         */
+        fun onIceRestartResult(pc: PeerConnectionClient, attempt: Int, success: Boolean, elapsedMs: Long)
+
         /**
          * Callback fired once peer connection is closed.
          */
         fun onPeerConnectionClosed(pc: PeerConnectionClient)
 
         /**
-         * Callback fired once peer connection statistics is ready.
+         * Callback fired once peer connection statistics is ready, with one snapshot per user
+         * carried by the connection.
+         */
+        fun onPeerConnectionStatsReady(pc: PeerConnectionClient, qualities: List<WXRTCDef.UserQuality>)
+
+        /**
+         * Callback fired once the adaptive controller switched the publish quality level.
          */
-        fun onPeerConnectionStatsReady(pc: PeerConnectionClient, reports: Array<StatsReport>)
+        fun onPublishQualityChanged(pc: PeerConnectionClient, level: Int, param: WXRTCVideoEncParam)
+
+        /**
+         * Callback fired once the offer could not be delivered within the retry budget. The
+         * client retries again after |retryDelayMs|.
+         */
+        fun onOfferGiveUp(pc: PeerConnectionClient, attempts: Int, retryDelayMs: Long)
 
         /**
          * Callback fired once peer connection error happened.
@@ -282,16 +379,6 @@ internal class PeerConnectionClient(
      */
     init {
         Log.d(TAG, "Preferred video codec: ${getSdpVideoCodecName(peerConnectionParameters)}")
-        val fieldTrials = getFieldTrials(peerConnectionParameters)
-        executor.execute {
-            Log.d(TAG, "Initialize WebRTC. Field trials: $fieldTrials")
-            PeerConnectionFactory.initialize(
-                PeerConnectionFactory.InitializationOptions.builder(appContext)
-                    .setFieldTrials(fieldTrials)
-                    .setEnableInternalTracer(true)
-                    .createInitializationOptions()
-            )
-        }
     }
 
     fun setVideoEncParam(param: WXRTCVideoEncParam) {
@@ -304,6 +391,12 @@ internal class PeerConnectionClient(
         }
         videoParam = param
         screenVideoEncParam = param
+        executor.execute {
+            // The ladder starts from the new settings.
+            if (adaptiveParam != null) {
+                qualityController = PublishQualityController(param, adaptiveParam!!)
+            }
+        }
     }
 
     fun setScreenEncParamCapture(param: WXRTCVideoEncParam) {
@@ -433,6 +526,11 @@ internal class PeerConnectionClient(
     }
 
     fun close() {
+        retryScope.cancel()
+        for (call in pendingCalls) {
+            call.cancel()
+        }
+        pendingCalls.clear()
         executor.execute { this.closeInternal() }
     }
 
@@ -444,12 +542,6 @@ internal class PeerConnectionClient(
 
     private fun createPeerConnectionFactoryInternal(options: PeerConnectionFactory.Options?) {
         isError = false
-        if (peerConnectionParameters.tracing) {
-            PeerConnectionFactory.startInternalTracingCapture(
-                Environment.getExternalStorageDirectory().absolutePath + File.separator
-                        + "webrtc-trace.txt"
-            )
-        }
         // Check if ISAC is used by default.
         preferIsac =
             peerConnectionParameters.audioCodec != null && peerConnectionParameters.audioCodec == AUDIO_CODEC_ISAC
@@ -467,31 +559,11 @@ internal class PeerConnectionClient(
                 Log.e(TAG, "Recording of input audio is not supported for OpenSL ES")
             }
         }
-        audioDeviceModule = createJavaAudioDevice()
-        // Create peer connection factory.
-        if (options != null) {
-            Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask)
-        }
-        val enableH264HighProfile = VIDEO_CODEC_H264_HIGH == peerConnectionParameters.videoCodec
-        val encoderFactory: VideoEncoderFactory
-        val decoderFactory: VideoDecoderFactory
-        if (peerConnectionParameters.videoCodecHwAcceleration) {
-            encoderFactory = DefaultVideoEncoderFactory(
-                rootEglBase.eglBaseContext, false,  /* enableIntelVp8Encoder */enableH264HighProfile
-            )
-            decoderFactory = DefaultVideoDecoderFactory(rootEglBase.eglBaseContext)
-        } else {
-            encoderFactory = SoftwareVideoEncoderFactory()
-            decoderFactory = SoftwareVideoDecoderFactory()
-        }
-        factory = PeerConnectionFactory.builder()
-            .setOptions(options)
-            .setAudioDeviceModule(audioDeviceModule)
-            .setVideoEncoderFactory(encoderFactory)
-            .setVideoDecoderFactory(decoderFactory)
-            .createPeerConnectionFactory()
-
-        Log.d(TAG, "Peer connection factory created.")
+        // The factory and the audio device module are shared by every client in the process.
+        factory = PeerConnectionFactoryHolder.acquire(
+            appContext, rootEglBase, this, peerConnectionParameters, options
+        )
+        audioDeviceModule = PeerConnectionFactoryHolder.audioDeviceModule
 
         //        adm.release();
         val iceCandidates: List<IceCandidate> = ArrayList()
@@ -509,80 +581,6 @@ internal class PeerConnectionClient(
         createPeerConnection(params)
     }
 
-    private fun createJavaAudioDevice(): JavaAudioDeviceModule {
-        // Enable/disable OpenSL ES playback.
-        if (!peerConnectionParameters.useOpenSLES) {
-            Log.w(TAG, "External OpenSLES ADM not implemented yet.")
-        }
-        // Set audio record error callbacks.
-        val audioRecordErrorCallback: AudioRecordErrorCallback = object : AudioRecordErrorCallback {
-            override fun onWebRtcAudioRecordInitError(errorMessage: String) {
-                Log.e(TAG, "onWebRtcAudioRecordInitError: $errorMessage")
-                reportError(errorMessage)
-            }
-
-            override fun onWebRtcAudioRecordStartError(
-                errorCode: JavaAudioDeviceModule.AudioRecordStartErrorCode, errorMessage: String
-            ) {
-                Log.e(TAG, "onWebRtcAudioRecordStartError: $errorCode. $errorMessage")
-                reportError(errorMessage)
-            }
-
-            override fun onWebRtcAudioRecordError(errorMessage: String) {
-                Log.e(TAG, "onWebRtcAudioRecordError: $errorMessage")
-                reportError(errorMessage)
-            }
-        }
-        val audioTrackErrorCallback: AudioTrackErrorCallback = object : AudioTrackErrorCallback {
-            override fun onWebRtcAudioTrackInitError(errorMessage: String) {
-                Log.e(TAG, "onWebRtcAudioTrackInitError: $errorMessage")
-                reportError(errorMessage)
-            }
-
-            override fun onWebRtcAudioTrackStartError(
-                errorCode: JavaAudioDeviceModule.AudioTrackStartErrorCode, errorMessage: String
-            ) {
-                Log.e(TAG, "onWebRtcAudioTrackStartError: $errorCode. $errorMessage")
-                reportError(errorMessage)
-            }
-
-            override fun onWebRtcAudioTrackError(errorMessage: String) {
-                Log.e(TAG, "onWebRtcAudioTrackError: $errorMessage")
-                reportError(errorMessage)
-            }
-        }
-        // Set audio record state callbacks.
-        val audioRecordStateCallback: AudioRecordStateCallback = object : AudioRecordStateCallback {
-            override fun onWebRtcAudioRecordStart() {
-                Log.i(TAG, "Audio recording starts")
-            }
-
-            override fun onWebRtcAudioRecordStop() {
-                Log.i(TAG, "Audio recording stops")
-            }
-        }
-        // Set audio track state callbacks.
-        val audioTrackStateCallback: AudioTrackStateCallback = object : AudioTrackStateCallback {
-            override fun onWebRtcAudioTrackStart() {
-                Log.i(TAG, "Audio playout starts")
-            }
-
-            override fun onWebRtcAudioTrackStop() {
-                Log.i(TAG, "Audio playout stops")
-            }
-        }
-
-        return JavaAudioDeviceModule.builder(appContext)
-//                .setSamplesReadyCallback(saveRecordedAudioToFile)
-            .setUseHardwareAcousticEchoCanceler(!peerConnectionParameters.disableBuiltInAEC)
-            .setUseHardwareNoiseSuppressor(!peerConnectionParameters.disableBuiltInNS)
-            .setAudioRecordErrorCallback(audioRecordErrorCallback)
-            .setAudioTrackErrorCallback(audioTrackErrorCallback)
-            .setAudioRecordStateCallback(audioRecordStateCallback)
-            .setAudioTrackStateCallback(audioTrackStateCallback)
-            .createAudioDeviceModule()
-    }
-
     private fun createMediaConstraintsInternal() {
         // Create video constraints if video call is enabled.
         if (isPublish) {
@@ -610,8 +608,9 @@ internal class PeerConnectionClient(
         // Create SDP constraints.
         sdpMediaConstraints = MediaConstraints().apply {
             mandatory?.let {
-                it.add(MediaConstraints.KeyValuePair("OfferToReceiveAudio", (!isPublish).toString()))
-                it.add(MediaConstraints.KeyValuePair("OfferToReceiveVideo", (!isPublish).toString()))
+                // A multiplexed subscriber adds its recvonly transceivers explicitly per user.
+                it.add(MediaConstraints.KeyValuePair("OfferToReceiveAudio", (!isPublish && !isMultiplex).toString()))
+                it.add(MediaConstraints.KeyValuePair("OfferToReceiveVideo", (!isPublish && !isMultiplex).toString()))
             }
         }
     }
@@ -689,12 +688,30 @@ internal class PeerConnectionClient(
             })
         }
         isInitiator = false
+        isNegotiating = false
+        settingLocalSdp = false
+        resourceUrl?.let {
+            // The session of the closed connection, the rebuilt one posts a new session.
+            deleteResource(it)
+        }
+        resourceUrl = null
+        layerUrl = null
+        pendingTrickleCandidates.clear()
+        trickleGatheringComplete = false
+        iceRestartJob?.cancel()
+        iceRestartJob = null
+        if (!networkObserverAdded) {
+            // The native network monitor is started with the peer connection factory.
+            NetworkMonitor.getInstance().addObserver(networkObserver)
+            networkObserverAdded = true
+        }
         // Set INFO libjingle logging.
         // NOTE: this _must_ happen while |factory| is alive!
         Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO)
         val mediaStreamLabels = listOf("ARDAMS")
         if (isPublish) {
-            localVideoSender = peerConnection!!.addTransceiver(MediaStreamTrack.MediaType.MEDIA_TYPE_VIDEO, RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_ONLY, mediaStreamLabels)).sender
+            val sendEncodings = if (simulcastEnabled) simulcastEncodings() else emptyList()
+            localVideoSender = peerConnection!!.addTransceiver(MediaStreamTrack.MediaType.MEDIA_TYPE_VIDEO, RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_ONLY, mediaStreamLabels, sendEncodings)).sender
             localAudioSender = peerConnection!!.addTransceiver(MediaStreamTrack.MediaType.MEDIA_TYPE_AUDIO, RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_ONLY, mediaStreamLabels)).sender
 //            peerConnection!!.addTrack(createVideoTrack(false), mediaStreamLabels)
 //            peerConnection!!.addTrack(createAudioTrack(), mediaStreamLabels)
@@ -709,6 +726,10 @@ internal class PeerConnectionClient(
                     localAudioSender?.setTrack(it, true)
                 }
             }
+        } else if (isMultiplex) {
+            for (subscription in subscriptions.values) {
+                addSubscriptionTransceivers(subscription)
+            }
         } else {
             remoteVideoTrack = peerConnection!!.addTransceiver(MediaStreamTrack.MediaType.MEDIA_TYPE_VIDEO).receiver.track() as VideoTrack?
             // We can add the renderers right away because we don't need to wait for an
@@ -762,13 +783,18 @@ internal class PeerConnectionClient(
             factory?.stopAecDump()
         }
         Log.d(TAG, "Closing peer connection.")
-        statsTimer.cancel()
+        if (networkObserverAdded) {
+            NetworkMonitor.getInstance().removeObserver(networkObserver)
+            networkObserverAdded = false
+        }
+        iceRestartJob = null
+        enableStatsEvents(false)
+        statsCollector.clear()
         dataChannel?.dispose()
         dataChannel = null
         Log.d(TAG, "Closing audio source.")
         audioSource?.dispose()
         audioSource = null
-        audioDeviceModule?.release()
         audioDeviceModule = null
         Log.d(TAG, "Stopping capture.")
         try {
@@ -781,6 +807,13 @@ internal class PeerConnectionClient(
         Log.d(TAG, "Closing video source.")
         videoSource?.dispose()
         videoSource = null
+        filterChain?.let { chain ->
+            // dispose() tears down the EGL context and quits the capture thread, so release the
+            // filters on it first.
+            surfaceTextureHelper?.handler?.let { handler ->
+                ThreadUtils.invokeAtFrontUninterruptibly(handler) { chain.releaseGl() }
+            }
+        }
         surfaceTextureHelper?.dispose()
         surfaceTextureHelper = null
         localRender = null
@@ -790,66 +823,146 @@ internal class PeerConnectionClient(
         localAudioSender = null
         localVideoTrack = null
         localAudioTrack = null
-        Log.d(TAG, "Closing peer connection factory.")
-        factory?.dispose()
+        Log.d(TAG, "Releasing peer connection factory.")
         factory = null
+        PeerConnectionFactoryHolder.release(this)
         //        rootEglBase.release();
-        Log.d(TAG, "Closing peer connection done.")
+        Log.d(TAG, "Closing peer connection done. Total retry metrics: $retryMetrics")
         events.onPeerConnectionClosed(this)
-        PeerConnectionFactory.stopInternalTracingCapture()
-        PeerConnectionFactory.shutdownInternalTracer()
     }
 
-    private val stats: Unit
-        get() {
-            if (peerConnection == null || isError) {
-                return
+    private fun collectStats() {
+        val pc = peerConnection
+        if (pc == null || isError) {
+            return
+        }
+        pc.getStats { report ->
+            executor.execute {
+                if (peerConnection != null && statsEnabled) {
+                    val qualities = statsCollector.update(report, ::statsUserId)
+                    for (quality in qualities) {
+                        if (quality.isLocal) {
+                            quality.captureDroppedFrames = captureDroppedFrames
+                            quality.capturePixelsSaved = capturePixelsSaved
+                        }
+                    }
+                    if (qualities.isNotEmpty()) {
+                        qualityController?.let { adaptPublishQuality(it) }
+                        if (statsIntervalMs > 0) {
+                            events.onPeerConnectionStatsReady(this, qualities)
+                        }
+                    }
+                }
             }
-            val success = peerConnection!!.getStats({ reports ->
-                events.onPeerConnectionStatsReady(
-                    this@PeerConnectionClient,
-                    reports
-                )
-            }, null)
-            if (!success) {
-                Log.e(TAG, "getStats() returns false!")
+        }
+    }
+
+    private fun statsUserId(mid: String?): String? {
+        if (!isMultiplex) {
+            return userId
+        }
+        return mid?.let { midUserIds[it] }
+    }
+
+    private fun enableStatsEvents(enable: Boolean) {
+        statsEnabled = enable
+        statsJob?.cancel()
+        statsJob = null
+        // The quality controller keeps sampling when reporting is off.
+        val periodMs = when {
+            statsIntervalMs > 0 -> statsIntervalMs.toLong()
+            qualityController != null -> DEFAULT_STATS_INTERVAL_MS.toLong()
+            else -> 0L
+        }
+        if (!enable || periodMs <= 0) {
+            return
+        }
+        statsJob = retryScope.launch {
+            while (isActive) {
+                delay(periodMs)
+                executor.execute { collectStats() }
             }
         }
+    }
 
-    private fun enableStatsEvents(enable: Boolean, periodMs: Int) {
-        if (enable) {
-            try {
-                statsTimer.schedule(object : TimerTask() {
-                    override fun run() {
-                        executor.execute { stats }
-                    }
-                }, 0, periodMs.toLong())
-            } catch (e: Exception) {
-                Log.e(TAG, "Can not schedule statistics timer", e)
+    /**
+     * Sets how often quality snapshots are reported, 0 to stop reporting.
+     */
+    fun setStatsInterval(intervalMs: Int) {
+        executor.execute {
+            statsIntervalMs = intervalMs
+            if (statsEnabled) {
+                enableStatsEvents(true)
             }
-        } else {
-            statsTimer.cancel()
         }
     }
 
-    private fun sendOfferSdp(sdp: SessionDescription) {
+    /**
+     * Enables the adaptive publish quality controller, or disables it and restores the
+     * configured encoder settings when |param| is null.
+     */
+    fun setAdaptiveQuality(param: WXRTCDef.WXRTCAdaptiveParam?) {
+        executor.execute {
+            adaptiveParam = param
+            resetQualityController()
+            if (statsEnabled) {
+                enableStatsEvents(true)
+            }
+        }
+    }
+
+    private fun resetQualityController() {
+        val previous = qualityController
+        qualityController = adaptiveParam?.let { PublishQualityController(videoParam, it) }
+        if (previous != null && previous.level != 0) {
+            applyQualityLevel(0, videoParam)
+        }
+    }
+
+    private fun adaptPublishQuality(controller: PublishQualityController) {
+        val level = controller.onSample(
+            statsCollector.availableOutgoingBitrate,
+            statsCollector.qualityLimitationReason,
+            statsCollector.encodeTimeMs
+        )
+        if (level >= 0) {
+            applyQualityLevel(level, controller.ladder[level])
+        }
+    }
+
+    private fun applyQualityLevel(level: Int, param: WXRTCVideoEncParam) {
+        Log.d(TAG, "Publish quality level: $level, resolution: ${param.videoResolution}, fps: ${param.videoFps}")
+        val size = getVideoResolution(param.videoResolutionMode, param.videoResolution)
+        changeVideoSource(size.width, size.height, param.videoFps)
+        setVideoBitrate(param.videoMinBitrate, param.videoMaxBitrate)
+        events.onPublishQualityChanged(this, level, param)
+    }
+
+    private fun sendOfferSdp(
+        sdp: SessionDescription, retry: RetryPolicy.Session = retryPolicy.newSession()
+    ) {
+        if (!retryScope.isActive) {
+            return
+        }
+        retryMetrics.offerAttempts.incrementAndGet()
         val sdpDes = sdp.description
-        val client = OkHttpClient()
+        val client = HttpUtils.sdpClient
 
         val body: RequestBody = sdpDes.toRequestBody("application/sdp".toMediaType())
         val requst: Request = Request.Builder()
             .url(sendSdpUrl)
             .header("Content-type", "application/sdp")
+            .apply {
+                subscriptionMapping?.let {
+                    header(SUBSCRIBE_STREAMS_HEADER, it)
+                }
+            }
             .post(body)
             .build()
-        client.newCall(requst).enqueue(object : Callback {
+        enqueueCall(client.newCall(requst), object : Callback {
             override fun onFailure(call: Call, e: IOException) {
                 Log.e(TAG, "$sendSdpUrl onFailure: $e")
-                CoroutineScope(Dispatchers.IO).launch {
-                    delay(1000L)
-                    Log.e(TAG, "sendOfferSdp onResponse unsuccess sendOfferSdp")
-                    sendOfferSdp(sdp)
-                }
+                retrySendOfferSdp(sdp, retry)
             }
 
             @Throws(IOException::class)
@@ -858,25 +971,237 @@ internal class PeerConnectionClient(
                     val sdpString = response.body!!.string()
                     Log.e(TAG, "$sendSdpUrl onResponse: $sdpString")
 
+                    val layer = parseLinkUrl(response.headers("Link"), WHEP_LAYER_REL)?.let { link ->
+                        response.request.url.resolve(link)?.toString()
+                    }
+                    response.header("Location")?.let { location ->
+                        response.request.url.resolve(location)?.toString()
+                    }.let { url ->
+                        executor.execute {
+                            val previousUrl = resourceUrl
+                            resourceUrl = url
+                            if (previousUrl != null && previousUrl != url) {
+                                // This POST created a new session resource, the old one is
+                                // no longer used.
+                                deleteResource(previousUrl)
+                            }
+                            if (layer != null && layer != layerUrl) {
+                                layerUrl = layer
+                                for ((user, rid) in requestedLayers) {
+                                    sendLayerRequest(user, rid)
+                                }
+                            }
+                            if (url == null) {
+                                // The server answered without a resource url, so it cannot take candidates.
+                                onTrickleIceRejected("no resource url")
+                            } else {
+                                flushTrickleCandidates()
+                            }
+                        }
+                    }
+
                     val answerSdp = SessionDescription(
                         SessionDescription.Type.fromCanonicalForm("answer"),
                         sdpString
                     )
                     setRemoteDescription(answerSdp)
                 } else {
+                    // Release the connection back to the shared pool.
+                    response.close()
                     if (response.code == 502 && isPublish) {
                         Log.e(TAG, "sendOfferSdp 502 deletePublish")
                         deletePublish({
-                            CoroutineScope(Dispatchers.IO).launch {
-                                delay(200L)
-                                sendOfferSdp(sdp)
-                            }
+                            retrySendOfferSdp(sdp, retry)
+                        }, {
+                            retrySendOfferSdp(sdp, retry)
                         })
                     }else{
-                        CoroutineScope(Dispatchers.IO).launch {
-                            delay(1000L)
-                            Log.e(TAG, "sendOfferSdp onResponse unsuccess sendOfferSdp")
-                            sendOfferSdp(sdp)
+                        Log.e(TAG, "sendOfferSdp onResponse unsuccess ${response.code}")
+                        retrySendOfferSdp(sdp, retry)
+                    }
+                }
+            }
+        })
+    }
+
+    private fun retrySendOfferSdp(
+        sdp: SessionDescription, retry: RetryPolicy.Session,
+        send: (SessionDescription, RetryPolicy.Session) -> Unit = ::sendOfferSdp
+    ) {
+        var delayMs = retry.nextDelayMs()
+        if (delayMs == null) {
+            // Report the outage but keep trying: the connection is still wanted, and giving
+            // up would leave it dead after the server comes back.
+            retryMetrics.offerGiveUps.incrementAndGet()
+            val attempts = retry.attempts
+            delayMs = retry.restartAfterCooldown()
+            Log.e(TAG, "Failed to send offer to $sendSdpUrl after $attempts attempts, retrying in $delayMs ms")
+            events.onOfferGiveUp(this, attempts, delayMs)
+        } else {
+            retryMetrics.offerRetries.incrementAndGet()
+        }
+        retryScope.launch {
+            delay(delayMs)
+            Log.e(TAG, "sendOfferSdp retry ${retry.attempts}")
+            send(sdp, retry)
+        }
+    }
+
+    /**
+     * Sends the offer of a renegotiation to the session resource, see
+     * [SUBSCRIBE_STREAMS_HEADER]. Without a resource, or when the server cannot renegotiate
+     * one, a new session is posted and the old resource is deleted once it is answered.
+     */
+    private fun sendRenegotiationOffer(
+        sdp: SessionDescription, retry: RetryPolicy.Session = retryPolicy.newSession()
+    ) {
+        if (!retryScope.isActive) {
+            return
+        }
+        val url = resourceUrl
+        if (url == null || !resourceRenegotiation) {
+            sendOfferSdp(sdp, retry)
+            return
+        }
+        retryMetrics.offerAttempts.incrementAndGet()
+        val body: RequestBody = sdp.description.toRequestBody("application/sdp".toMediaType())
+        val requst: Request = Request.Builder()
+            .url(url)
+            .header("Content-type", "application/sdp")
+            .apply {
+                subscriptionMapping?.let {
+                    header(SUBSCRIBE_STREAMS_HEADER, it)
+                }
+            }
+            .patch(body)
+            .build()
+        enqueueCall(HttpUtils.sdpClient.newCall(requst), object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                Log.e(TAG, "$url renegotiation onFailure: $e")
+                retrySendOfferSdp(sdp, retry, ::sendRenegotiationOffer)
+            }
+
+            @Throws(IOException::class)
+            override fun onResponse(call: Call, response: Response) {
+                if (response.isSuccessful) {
+                    val sdpString = response.body!!.string()
+                    Log.d(TAG, "$url renegotiation onResponse: $sdpString")
+                    setRemoteDescription(
+                        SessionDescription(SessionDescription.Type.fromCanonicalForm("answer"), sdpString)
+                    )
+                    return
+                }
+                response.close()
+                Log.e(TAG, "$url renegotiation onResponse unsuccess ${response.code}")
+                when (response.code) {
+                    404 -> executor.execute {
+                        // The session is gone on the server, start a new one.
+                        if (resourceUrl == url) {
+                            resourceUrl = null
+                        }
+                        sendOfferSdp(sdp, retry)
+                    }
+                    405, 415, 501 -> executor.execute {
+                        Log.w(TAG, "$sendSdpUrl cannot renegotiate a session, posting new sessions")
+                        resourceRenegotiation = false
+                        sendOfferSdp(sdp, retry)
+                    }
+                    else -> retrySendOfferSdp(sdp, retry, ::sendRenegotiationOffer)
+                }
+            }
+        })
+    }
+
+    /**
+     * Deletes a session resource this client no longer uses. Best effort: the call is not
+     * cancelled by close(), and the server expires resources it does not hear from.
+     */
+    private fun deleteResource(url: String) {
+        val requst: Request = Request.Builder()
+            .url(url)
+            .delete()
+            .build()
+        HttpUtils.sdpClient.newCall(requst).enqueue(object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                Log.e(TAG, "delete resource $url onFailure: $e")
+            }
+
+            override fun onResponse(call: Call, response: Response) {
+                response.close()
+                Log.d(TAG, "delete resource $url: ${response.code}")
+            }
+        })
+    }
+
+    /**
+     * Enqueues |call| so that close() can cancel it; callbacks of cancelled calls are dropped.
+     */
+    private fun enqueueCall(call: Call, callback: Callback) {
+        pendingCalls.add(call)
+        call.enqueue(object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                pendingCalls.remove(call)
+                if (call.isCanceled() || !retryScope.isActive) {
+                    return
+                }
+                callback.onFailure(call, e)
+            }
+
+            @Throws(IOException::class)
+            override fun onResponse(call: Call, response: Response) {
+                pendingCalls.remove(call)
+                if (!retryScope.isActive) {
+                    response.close()
+                    return
+                }
+                callback.onResponse(call, response)
+            }
+        })
+    }
+
+    private val useTrickleIce: Boolean
+        get() = peerConnectionParameters.trickleIce && trickleServer !in trickleIceUnsupportedServers
+
+    private fun trickleCandidate(candidate: IceCandidate) {
+        pendingTrickleCandidates.add(candidate)
+        flushTrickleCandidates()
+    }
+
+    private fun flushTrickleCandidates() {
+        if (!isTrickle || peerConnection == null || (iceRestartJob != null && !iceRestartAnswered)) {
+            // Candidates of an ICE restart wait until the server knows the new credentials.
+            return
+        }
+        if (pendingTrickleCandidates.isEmpty() && !trickleGatheringComplete) {
+            return
+        }
+        val url = resourceUrl ?: return
+        val sdpFrag = buildSdpFrag(
+            peerConnection!!.localDescription?.description ?: return,
+            pendingTrickleCandidates,
+            trickleGatheringComplete
+        )
+        pendingTrickleCandidates.clear()
+
+        val body: RequestBody = sdpFrag.toRequestBody(TRICKLE_ICE_SDPFRAG.toMediaType())
+        val requst: Request = Request.Builder()
+            .url(url)
+            .header("Content-type", TRICKLE_ICE_SDPFRAG)
+            .patch(body)
+            .build()
+        enqueueCall(HttpUtils.sdpClient.newCall(requst), object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                // The connection can still come up through peer reflexive candidates.
+                Log.e(TAG, "trickle candidates onFailure: $e")
+            }
+
+            override fun onResponse(call: Call, response: Response) {
+                response.close()
+                if (!response.isSuccessful) {
+                    Log.e(TAG, "trickle candidates onResponse: ${response.code}")
+                    if (response.code in 400..599 && response.code != 429 && response.code != 503) {
+                        executor.execute {
+                            onTrickleIceRejected("PATCH returned ${response.code}")
                         }
                     }
                 }
@@ -884,23 +1209,164 @@ internal class PeerConnectionClient(
         })
     }
 
-    private fun deletePublish(successBlock: (()->Unit)? = null, failureBlock: (()->Unit)? = null) {
+    private fun onTrickleIceRejected(reason: String) {
+        if (!isTrickle) {
+            return
+        }
+        Log.w(TAG, "Trickle ICE not supported by $sendSdpUrl ($reason), falling back to full gathering")
+        trickleIceUnsupportedServers.add(trickleServer)
+        isTrickle = false
+        pendingTrickleCandidates.clear()
+        if (peerConnection?.connectionState() != PeerConnectionState.CONNECTED) {
+            // Rebuild the connection; the new offer waits for gathered candidates again.
+            peerConnection?.close()
+        }
+    }
+
+    private fun onNetworkChanged(connectionType: NetworkChangeDetector.ConnectionType) {
+        Log.d(TAG, "Network changed to $connectionType")
+        if (connectionType == NetworkChangeDetector.ConnectionType.CONNECTION_NONE) {
+            // Nothing to gather candidates on, restart once a network is back.
+            return
+        }
+        restartIce("network changed to $connectionType")
+    }
+
+    /**
+     * Restarts ICE on the established connection and exchanges new ICE credentials with the
+     * session resource, keeping the DTLS session, transceivers and tracks. Without a resource
+     * the connection is rebuilt instead. Returns false when neither is possible.
+     */
+    private fun restartIce(reason: String): Boolean {
+        val pc = peerConnection ?: return false
+        if (isError || isClosing) {
+            return false
+        }
+        if (iceRestartJob != null) {
+            Log.d(TAG, "ICE restart already in progress: $reason")
+            return true
+        }
+        if (pc.remoteDescription == null) {
+            // Still in the initial negotiation, the new network is used by its gathering.
+            return isNegotiating
+        }
+        if (resourceUrl == null) {
+            // The server gave no Location to PATCH, a restart could only POST a second
+            // session next to this one. Rebuild, see PeerConnectionState.CLOSED.
+            Log.d(TAG, "No session resource, rebuilding the connection: $reason")
+            pc.close()
+            return true
+        }
+        iceRestartAttempts++
+        iceRestartStartTimeMs = SystemClock.elapsedRealtime()
+        iceRestartAnswered = false
+        pendingTrickleCandidates.clear()
+        trickleGatheringComplete = false
+        val attempt = iceRestartAttempts
+        Log.d(TAG, "ICE restart $attempt: $reason")
+        events.onIceRestart(this, attempt, reason)
+        iceRestartJob = retryScope.launch {
+            delay(ICE_RESTART_TIMEOUT_MS)
+            executor.execute {
+                onIceRestartFailed(attempt, "timeout")
+            }
+        }
+        pc.restartIce()
+        renegotiate()
+        return true
+    }
+
+    private fun onIceRestartSucceeded() {
+        iceRestartJob?.cancel()
+        iceRestartJob = null
+        val elapsedMs = SystemClock.elapsedRealtime() - iceRestartStartTimeMs
+        Log.d(TAG, "ICE restart $iceRestartAttempts succeeded in $elapsedMs ms")
+        events.onIceRestartResult(this, iceRestartAttempts, true, elapsedMs)
+    }
+
+    private fun onIceRestartFailed(attempt: Int, reason: String) {
+        if (iceRestartJob == null || attempt != iceRestartAttempts) {
+            return
+        }
+        iceRestartJob?.cancel()
+        iceRestartJob = null
+        val elapsedMs = SystemClock.elapsedRealtime() - iceRestartStartTimeMs
+        Log.w(TAG, "ICE restart $attempt failed after $elapsedMs ms: $reason")
+        events.onIceRestartResult(this, attempt, false, elapsedMs)
+        // Rebuild the connection, see PeerConnectionState.CLOSED.
+        peerConnection?.close()
+    }
+
+    /**
+     * Sends the new ICE credentials of |sdp| to the session resource (RFC 9725 ICE restart)
+     * and applies the credentials and candidates of the answered sdpfrag to the remote
+     * description.
+     */
+    private fun sendIceRestartSdpFrag(sdp: SessionDescription, attempt: Int) {
+        val url = resourceUrl ?: return
+        val sdpFrag = buildSdpFrag(sdp.description, emptyList(), false)
+        val body: RequestBody = sdpFrag.toRequestBody(TRICKLE_ICE_SDPFRAG.toMediaType())
+        val requst: Request = Request.Builder()
+            .url(url)
+            .header("Content-type", TRICKLE_ICE_SDPFRAG)
+            .header("If-Match", "*")
+            .patch(body)
+            .build()
+        enqueueCall(HttpUtils.sdpClient.newCall(requst), object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                Log.e(TAG, "ICE restart onFailure: $e")
+                executor.execute {
+                    onIceRestartFailed(attempt, "PATCH failed: $e")
+                }
+            }
+
+            @Throws(IOException::class)
+            override fun onResponse(call: Call, response: Response) {
+                if (!response.isSuccessful) {
+                    response.close()
+                    Log.e(TAG, "ICE restart onResponse unsuccess ${response.code}")
+                    executor.execute {
+                        onIceRestartFailed(attempt, "PATCH returned ${response.code}")
+                    }
+                    return
+                }
+                val answerFrag = response.body!!.string()
+                Log.d(TAG, "ICE restart onResponse: $answerFrag")
+                executor.execute {
+                    if (attempt != iceRestartAttempts || iceRestartJob == null) {
+                        return@execute
+                    }
+                    val remoteSdp = peerConnection?.remoteDescription ?: return@execute
+                    setRemoteDescription(
+                        SessionDescription(
+                            remoteSdp.type,
+                            applyIceRestartSdpFrag(remoteSdp.description, answerFrag)
+                        )
+                    )
+                }
+            }
+        })
+    }
+
+    private fun deletePublish(
+        successBlock: (()->Unit)? = null, failureBlock: (()->Unit)? = null,
+        retry: RetryPolicy.Session = retryPolicy.newSession()
+    ) {
+        if (!retryScope.isActive) {
+            return
+        }
         unpublishUrl?.let{ url ->
-            val client = OkHttpClient()
+            retryMetrics.unpublishAttempts.incrementAndGet()
+            val client = HttpUtils.sdpClient
 
             val requst: Request = Request.Builder()
                 .url(url)
                 .delete()
                 .build()
-            client.newCall(requst).enqueue(object : Callback {
+            enqueueCall(client.newCall(requst), object : Callback {
                 override fun onFailure(call: Call, e: IOException) {
                     Log.e(TAG, "deletePublish onFailure: $e")
-                    failureBlock?.invoke()
-                    CoroutineScope(Dispatchers.IO).launch {
-                        delay(1000L)
-                        Log.e(TAG, "deletePublish onFailure deletePublish")
-                        deletePublish(successBlock, failureBlock)
-                    }
+                    retryDeletePublish(successBlock, failureBlock, retry)
                 }
 
                 @Throws(IOException::class)
@@ -909,20 +1375,33 @@ internal class PeerConnectionClient(
                         Log.e(TAG, "deletePublish onResponse: " + response.body!!.string())
                         successBlock?.invoke()
                     } else {
-                        failureBlock?.invoke()
-                        CoroutineScope(Dispatchers.IO).launch {
-                            delay(1000L)
-                            Log.e(TAG, "deletePublish onFailure deletePublish")
-                            deletePublish(successBlock, failureBlock)
-                        }
+                        response.close()
+                        Log.e(TAG, "deletePublish onResponse unsuccess ${response.code}")
+                        retryDeletePublish(successBlock, failureBlock, retry)
                     }
                 }
             })
         } ?: let {
-            CoroutineScope(Dispatchers.IO).launch {
-                delay(1000L)
-                deletePublish(successBlock, failureBlock)
-            }
+            // The unpublish url arrives with get_unpublish, wait for it with the same backoff.
+            retryDeletePublish(successBlock, failureBlock, retry)
+        }
+    }
+
+    private fun retryDeletePublish(
+        successBlock: (()->Unit)?, failureBlock: (()->Unit)?, retry: RetryPolicy.Session
+    ) {
+        val delayMs = retry.nextDelayMs()
+        if (delayMs == null) {
+            retryMetrics.unpublishGiveUps.incrementAndGet()
+            Log.e(TAG, "deletePublish give up after ${retry.attempts} attempts")
+            failureBlock?.invoke()
+            return
+        }
+        retryMetrics.unpublishRetries.incrementAndGet()
+        retryScope.launch {
+            delay(delayMs)
+            Log.e(TAG, "deletePublish retry ${retry.attempts}")
+            deletePublish(successBlock, failureBlock, retry)
         }
     }
 
@@ -1018,11 +1497,164 @@ internal class PeerConnectionClient(
             }
         }
 
+    /**
+     * Starts receiving [userId] over this multiplexed connection, renegotiating the
+     * existing ICE/DTLS session instead of creating a new one.
+     */
+    fun addSubscription(userId: String, streamUrl: String, sink: VideoSink) {
+        executor.execute {
+            subscriptions.remove(userId)?.let {
+                removeSubscriptionTransceivers(it)
+            }
+            val subscription = Subscription(userId, streamUrl, sink)
+            subscriptions[userId] = subscription
+            if (peerConnection != null) {
+                addSubscriptionTransceivers(subscription)
+                renegotiate()
+            }
+        }
+    }
+
+    /**
+     * Asks the server to forward simulcast layer |rid| of |userId|'s video. Uses the WHEP
+     * layer extension and is ignored by servers that do not advertise it.
+     */
+    fun setVideoLayer(userId: String, rid: String) {
+        executor.execute {
+            if (requestedLayers.put(userId, rid) != rid) {
+                sendLayerRequest(userId, rid)
+            }
+        }
+    }
+
+    private fun sendLayerRequest(userId: String, rid: String) {
+        val url = layerUrl ?: return
+        // A single-user connection has one video stream, the server picks it without a mid.
+        val mid = if (isMultiplex) subscriptions[userId]?.videoTransceiver?.mid ?: return else null
+        val json = JsonWriter(64).beginObject()
+            .optField("mediaId", mid)
+            .name("encodingId").value(rid)
+            .endObject()
+            .toString()
+        val requst: Request = Request.Builder()
+            .url(url)
+            .post(json.toRequestBody("application/json".toMediaType()))
+            .build()
+        enqueueCall(HttpUtils.sdpClient.newCall(requst), object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                Log.e(TAG, "layer request onFailure: $e")
+            }
+
+            override fun onResponse(call: Call, response: Response) {
+                response.close()
+                Log.d(TAG, "layer request $userId -> $rid: ${response.code}")
+            }
+        })
+    }
+
+    fun removeSubscription(userId: String) {
+        executor.execute {
+            requestedLayers.remove(userId)
+            subscriptions.remove(userId)?.let {
+                removeSubscriptionTransceivers(it)
+                renegotiate()
+            }
+        }
+    }
+
+    fun setSubscriptionVideoEnabled(userId: String, enable: Boolean) {
+        executor.execute {
+            subscriptions[userId]?.let {
+                it.videoEnabled = enable
+                it.videoTransceiver?.receiver?.track()?.setEnabled(enable)
+            }
+        }
+    }
+
+    fun setSubscriptionAudioEnabled(userId: String, enable: Boolean) {
+        executor.execute {
+            subscriptions[userId]?.let {
+                it.audioEnabled = enable
+                it.audioTransceiver?.receiver?.track()?.setEnabled(enable)
+            }
+        }
+    }
+
+    fun setSubscriptionAudioVolume(userId: String, volume: Int) {
+        executor.execute {
+            subscriptions[userId]?.let {
+                it.audioVolume = volume
+                (it.audioTransceiver?.receiver?.track() as AudioTrack?)?.setVolume(volume.toDouble())
+            }
+        }
+    }
+
+    private fun addSubscriptionTransceivers(subscription: Subscription) {
+        val pc = peerConnection ?: return
+        val init = RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.RECV_ONLY, listOf(subscription.userId))
+        subscription.videoTransceiver = pc.addTransceiver(MediaStreamTrack.MediaType.MEDIA_TYPE_VIDEO, init).apply {
+            (receiver.track() as VideoTrack?)?.let {
+                it.setEnabled(subscription.videoEnabled)
+                it.addSink(subscription.sink)
+            }
+        }
+        subscription.audioTransceiver = pc.addTransceiver(MediaStreamTrack.MediaType.MEDIA_TYPE_AUDIO, init).apply {
+            (receiver.track() as AudioTrack?)?.let {
+                it.setEnabled(subscription.audioEnabled)
+                if (subscription.audioVolume != -1) {
+                    it.setVolume(subscription.audioVolume.toDouble())
+                }
+            }
+        }
+        Log.d(TAG, "Add subscription ${subscription.userId}")
+    }
+
+    private fun removeSubscriptionTransceivers(subscription: Subscription) {
+        if (peerConnection != null) {
+            (subscription.videoTransceiver?.receiver?.track() as VideoTrack?)?.removeSink(subscription.sink)
+            subscription.videoTransceiver?.stopStandard()
+            subscription.audioTransceiver?.stopStandard()
+        }
+        subscription.videoTransceiver = null
+        subscription.audioTransceiver = null
+        Log.d(TAG, "Remove subscription ${subscription.userId}")
+    }
+
+    private fun renegotiate() {
+        if (peerConnection == null || isError) {
+            return
+        }
+        if (isNegotiating || peerConnection!!.remoteDescription == null) {
+            // Picked up once the answer for the offer in flight has been applied.
+            renegotiationNeeded = true
+            return
+        }
+        createOffer()
+    }
+
+    private fun updateSubscriptionMapping() {
+        if (!isMultiplex) {
+            return
+        }
+        midUserIds.clear()
+        for (subscription in subscriptions.values) {
+            subscription.videoTransceiver?.mid?.let { midUserIds[it] = subscription.userId }
+            subscription.audioTransceiver?.mid?.let { midUserIds[it] = subscription.userId }
+        }
+        subscriptionMapping = subscriptions.values.joinToString(", ") { subscription ->
+            "${subscription.videoTransceiver?.mid},${subscription.audioTransceiver?.mid}=${subscription.streamUrl}"
+        }
+    }
+
     private fun createOffer() {
         executor.execute {
             if (peerConnection != null && !isError) {
                 Log.d(TAG, "PC Create OFFER")
                 isInitiator = true
+                // The offer covers every transceiver added so far.
+                isNegotiating = true
+                isTrickle = useTrickleIce
+                renegotiationNeeded = false
                 peerConnection!!.createOffer(sdpObserver, sdpMediaConstraints)
             }
         }
@@ -1075,32 +1707,48 @@ internal class PeerConnectionClient(
             if (peerConnection == null || isError) {
                 return@execute
             }
-            var sdpDescription = sdp.description
-            if (preferIsac) {
-                sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true)
-            }
-            if (isPublish) {
-                sdpDescription =
-                    preferCodec(
-                        sdpDescription,
-                        getSdpVideoCodecName(peerConnectionParameters),
-                        false
-                    )
-            }
-            if (peerConnectionParameters.audioStartBitrate > 0) {
-                sdpDescription = setStartBitrate(
-                    AUDIO_CODEC_OPUS,
-                    false,
-                    sdpDescription,
-                    peerConnectionParameters.audioStartBitrate
-                )
-            }
+            val sdpDescription = mungeSdp(sdp.description, false)
             Log.d(TAG, "Set remote SDP.")
             val sdpRemote = SessionDescription(sdp.type, sdpDescription)
             peerConnection!!.setRemoteDescription(sdpObserver, sdpRemote)
         }
     }
 
+    /**
+     * Applies every rewrite of a local or remote description in one parse and serialize
+     * pass.
+     */
+    private fun mungeSdp(sdpDescription: String, local: Boolean): String {
+        val sdp = ParsedSdp.parse(sdpDescription)
+        if (local && !sdpDescription.contains(EXTMAP_ALLOW_MIXED)) {
+            sdp.insertSessionLine(EXTMAP_ALLOW_MIXED, "a=group")
+        }
+        for (section in sdp.media) {
+            when (section.kind) {
+                "audio" -> {
+                    if (preferIsac) {
+                        section.preferCodec(AUDIO_CODEC_ISAC)
+                    }
+                    if (!local && peerConnectionParameters.audioStartBitrate > 0) {
+                        section.addCodecParameter(
+                            AUDIO_CODEC_OPUS, AUDIO_CODEC_PARAM_BITRATE,
+                            peerConnectionParameters.audioStartBitrate * 1000
+                        )
+                    }
+                }
+                "video" -> {
+                    if (local && !peerConnectionParameters.videoFlexfecEnabled) {
+                        section.removeCodecs(VIDEO_FEC_CODECS)
+                    }
+                    if (isPublish && !section.preferCodec(getSdpVideoCodecName(peerConnectionParameters))) {
+                        Log.w(TAG, "No payload types with name ${getSdpVideoCodecName(peerConnectionParameters)}")
+                    }
+                }
+            }
+        }
+        return sdp.toString()
+    }
+
     fun startVideoSource(frontCamera: Boolean) {
         executor.execute {
 //            if (localVideoSender == null) {
@@ -1173,8 +1821,7 @@ internal class PeerConnectionClient(
             }
             for (encoding in parameters.encodings) {
                 // Null value means no limit.
-                encoding.maxBitrateBps =
-                    if (maxBitrateKbps == null) null else maxBitrateKbps * BPS_IN_KBPS
+                encoding.maxBitrateBps = layerBitrateBps(encoding, maxBitrateKbps)
             }
             if (!localVideoSender!!.setParameters(parameters)) {
                 Log.e(TAG, "RtpSender.setParameters failed.")
@@ -1201,8 +1848,9 @@ internal class PeerConnectionClient(
             }
             for (encoding in parameters.encodings) {
                 // Null value means no limit.
-                encoding.maxBitrateBps = if (maxBitrateKbps == null) null else maxBitrateKbps * BPS_IN_KBPS
-                encoding.minBitrateBps = if (minBitrateKbps == null) null else minBitrateKbps * BPS_IN_KBPS
+                encoding.maxBitrateBps = layerBitrateBps(encoding, maxBitrateKbps)
+                // A minimum on the lower layers would keep them sending at the top layer's floor.
+                encoding.minBitrateBps = if (minBitrateKbps == null || isLowerLayer(encoding)) null else minBitrateKbps * BPS_IN_KBPS
             }
             if (!localVideoSender!!.setParameters(parameters)) {
                 Log.e(TAG, "RtpSender.setParameters failed.")
@@ -1212,6 +1860,38 @@ internal class PeerConnectionClient(
         }
     }
 
+    /**
+     * Send encodings of a simulcast publish, lowest layer first. Every source size gets all
+     * three layers, so every rid a subscriber may request is published.
+     */
+    private fun simulcastEncodings(): List<RtpParameters.Encoding> {
+        return SIMULCAST_RIDS.indices.map { i ->
+            RtpParameters.Encoding(SIMULCAST_RIDS[i], true, SIMULCAST_SCALES[i]).apply {
+                maxBitrateBps = layerBitrateBps(this, videoParam.videoMaxBitrate)
+            }
+        }
+    }
+
+    private fun isLowerLayer(encoding: RtpParameters.Encoding): Boolean {
+        return (encoding.scaleResolutionDownBy ?: 1.0) > 1.0
+    }
+
+    private fun layerBitrateBps(encoding: RtpParameters.Encoding, maxBitrateKbps: Int?): Int? {
+        if (maxBitrateKbps == null) {
+            return null
+        }
+        if (!isLowerLayer(encoding)) {
+            return maxBitrateKbps * BPS_IN_KBPS
+        }
+        // Bitrate scales roughly with the pixel count.
+        val scale = encoding.scaleResolutionDownBy!!
+        return maxOf(MIN_LAYER_BITRATE_KBPS, (maxBitrateKbps / (scale * scale)).toInt()) * BPS_IN_KBPS
+    }
+
+    fun onAudioDeviceError(errorMessage: String) {
+        reportError(errorMessage)
+    }
+
     private fun reportError(errorMessage: String) {
         Log.e(TAG, "Peerconnection error: $errorMessage")
         executor.execute {
@@ -1231,8 +1911,8 @@ internal class PeerConnectionClient(
     }
 
     private fun createVideoTrack(isScreencast: Boolean): VideoTrack? {
-        surfaceTextureHelper =
-            SurfaceTextureHelper.create("CaptureThread", rootEglBase.eglBaseContext)
+        val textureHelper = SurfaceTextureHelper.create("CaptureThread", rootEglBase.eglBaseContext)
+        surfaceTextureHelper = textureHelper
         videoSource = factory!!.createVideoSource(isScreencast)
 
         localVideoTrack = factory!!.createVideoTrack(VIDEO_TRACK_ID, videoSource)
@@ -1241,11 +1921,29 @@ internal class PeerConnectionClient(
 
         videoSource?.setVideoProcessor(object : VideoProcessor {
             override fun onFrameCaptured(frame: VideoFrame, parameters: FrameAdaptationParameters) {
-//                applyFrameAdaptationParameters(frame, parameters)?.let {
-//                    this.onFrameCaptured(it)
-//                    it.release()
-//                }
-                this.onFrameCaptured(frame)
+                // Taps get the full camera frame, the encoder only what the adapter asks for.
+                frameTap?.onFrame(frame)
+                if (parameters.drop) {
+                    captureDroppedFrames++
+                    return
+                }
+                val buffer = frame.buffer
+                if (parameters.cropWidth == buffer.width && parameters.cropHeight == buffer.height &&
+                    parameters.scaleWidth == buffer.width && parameters.scaleHeight == buffer.height &&
+                    parameters.timestampNs == frame.timestampNs
+                ) {
+                    this.onFrameCaptured(frame)
+                    return
+                }
+                capturePixelsSaved += maxOf(
+                    0, buffer.width * buffer.height - parameters.scaleWidth * parameters.scaleHeight
+                )
+                // For texture frames this only changes the transform matrix, the scaling
+                // happens on the GPU when the frame is drawn or encoded.
+                VideoProcessor.applyFrameAdaptationParameters(frame, parameters)?.let {
+                    this.onFrameCaptured(it)
+                    it.release()
+                }
             }
 
             override fun setSink(videoSink: VideoSink?) {
@@ -1261,7 +1959,23 @@ internal class PeerConnectionClient(
             }
 
             override fun onFrameCaptured(videoFrame: VideoFrame) {
-                frameVideoSink?.onFrame(videoFrame)
+                val chain = filterChain
+                if (chain == null || chain.isEmpty) {
+                    frameVideoSink?.onFrame(videoFrame)
+                    return
+                }
+                val filtered = try {
+                    chain.process(videoFrame, textureHelper.handler)
+                } catch (e: RuntimeException) {
+                    Log.e(TAG, "Capture filters failed", e)
+                    null
+                }
+                if (filtered == null) {
+                    frameVideoSink?.onFrame(videoFrame)
+                    return
+                }
+                frameVideoSink?.onFrame(filtered)
+                filtered.release()
             }
         })
         return localVideoTrack
@@ -1456,6 +2170,11 @@ internal class PeerConnectionClient(
                 }
                 events.onIceCandidate(this@PeerConnectionClient, candidate)
 
+                if (isTrickle) {
+                    trickleCandidate(candidate)
+                    return@execute
+                }
+
                 if (candidate.sdp.contains("host")) {
                     iceHostGet = true
                 } else if (candidate.sdp.contains("srflx")) {
@@ -1463,9 +2182,13 @@ internal class PeerConnectionClient(
                 } else if (candidate.sdp.contains("relay")) {
                     iceTurnGet = true
                 }
+                if (peerConnection!!.remoteDescription != null) {
+                    // Candidates of an ICE restart, the offer has already been answered.
+                    return@execute
+                }
                 if (iceHostGet && (iceStunGet || iceTurnGet) && !iceComplete) {
                     iceComplete = true
-                    CoroutineScope(Dispatchers.Main).launch {
+                    retryScope.launch(Dispatchers.Main) {
                         delay(1000L)
                         sendOfferSdp(peerConnection!!.localDescription)
                         events.onIceGatheringComplete(
@@ -1497,7 +2220,8 @@ internal class PeerConnectionClient(
                 } else if (newState == IceConnectionState.DISCONNECTED) {
                     events.onIceDisconnected(this@PeerConnectionClient)
                 } else if (newState == IceConnectionState.FAILED) {
-                    reportError("ICE connection failed.")
+                    // Recovered (or given up) with the PeerConnectionState FAILED that follows.
+                    Log.w(TAG, "ICE connection failed.")
                 }
             }
         }
@@ -1505,25 +2229,36 @@ internal class PeerConnectionClient(
         override fun onConnectionChange(newState: PeerConnectionState) {
             executor.execute {
                 Log.d(TAG, "PeerConnectionState: $newState")
-                if (newState == PeerConnectionState.CONNECTED) {
+                if (newState == PeerConnectionState.CONNECTED && iceRestartJob != null) {
+                    // The existing session came back, nothing to set up again.
+                    onIceRestartSucceeded()
+                } else if (newState == PeerConnectionState.CONNECTED) {
                     iceHostGet = false
                     iceStunGet = false
                     iceTurnGet = false
                     iceComplete = false
-                    enableStatsEvents(true, 1000)
+                    enableStatsEvents(true)
                     if (!isPublish) {
                         stopVideoSource()
                     }
 
-                    setRemoteAudioTrackEnabled(remoteAudioEnabled)
+                    if (!isMultiplex) {
+                        setRemoteAudioTrackEnabled(remoteAudioEnabled)
+                    }
 
                     //                    setRemoteAudioTrackVolume(remoteAudioVolume);
                     events.onConnected(this@PeerConnectionClient)
                 } else if (newState == PeerConnectionState.DISCONNECTED) {
                     events.onDisconnected(this@PeerConnectionClient)
-                    peerConnection?.close()
+                    if (!restartIce("connection disconnected")) {
+                        peerConnection?.close()
+                    }
                 } else if (newState == PeerConnectionState.FAILED) {
-                    reportError("DTLS connection failed.")
+                    if (iceRestartJob != null) {
+                        onIceRestartFailed(iceRestartAttempts, "connection failed")
+                    } else if (!restartIce("connection failed")) {
+                        reportError("DTLS connection failed.")
+                    }
                 } else if (newState == PeerConnectionState.CLOSED) {
                     if (!isClosing) {
                         peerConnection?.dispose()
@@ -1531,19 +2266,20 @@ internal class PeerConnectionClient(
                     }
 
                     if (isNeedReconnect) {
+                        // Rebuilt on the executor like every other PeerConnection change, after
+                        // the tasks already queued by close or subscribe calls.
                         executor.execute {
-                            CoroutineScope(Dispatchers.IO).launch {
-                                withContext(Dispatchers.Main) {
-                                    isError = false
-                                    try {
-                                        createPeerConnectionInternal()
-                                    } catch (e: Exception) {
-                                        reportError("Failed to create peer connection: " + e.message)
-                                        throw e
-                                    }
-                                    startCall(localRender, remoteSink)
-                                }
+                            if (isClosing || !isNeedReconnect) {
+                                return@execute
+                            }
+                            isError = false
+                            try {
+                                createPeerConnectionInternal()
+                            } catch (e: Exception) {
+                                reportError("Failed to create peer connection: " + e.message)
+                                return@execute
                             }
+                            startCall(localRender, remoteSink)
                         }
                     }
                 }
@@ -1553,7 +2289,15 @@ internal class PeerConnectionClient(
         override fun onIceGatheringChange(newState: IceGatheringState) {
             executor.execute {
                 Log.d(TAG, "IceGatheringState: $newState")
-                if (newState == IceGatheringState.COMPLETE && !iceComplete) {
+                if (newState == IceGatheringState.COMPLETE && isTrickle) {
+                    trickleGatheringComplete = true
+                    flushTrickleCandidates()
+                    events.onIceGatheringComplete(
+                        this@PeerConnectionClient,
+                        peerConnection!!.localDescription
+                    )
+                } else if (newState == IceGatheringState.COMPLETE && !iceComplete
+                    && peerConnection!!.remoteDescription == null) {
                     iceComplete = true
                     sendOfferSdp(peerConnection!!.localDescription)
                     events.onIceGatheringComplete(
@@ -1570,6 +2314,12 @@ internal class PeerConnectionClient(
 
         override fun onSelectedCandidatePairChanged(event: CandidatePairChangeEvent) {
             Log.d(TAG, "Selected candidate pair changed because: $event")
+            executor.execute {
+                if (iceRestartJob != null && iceRestartAnswered) {
+                    // A pair of the new ICE generation has been selected.
+                    onIceRestartSucceeded()
+                }
+            }
         }
 
         override fun onAddStream(stream: MediaStream) {
@@ -1630,41 +2380,13 @@ internal class PeerConnectionClient(
 //                reportError("Multiple SDP create.")
 //                return
 //            }
-            var sdpDescription = origSdp.description
-            if (!sdpDescription.contains("a=extmap-allow-mixed")) {
-                val lines = sdpDescription.split("\r\n".toRegex()).dropLastWhile { it.isEmpty() }
-                    .toTypedArray()
-                var inertIndex = -1
-                for (i in lines.indices) {
-                    val line = lines[i]
-                    if (line.startsWith("a=group")) {
-                        inertIndex = i
-                    }
-                }
-                if (inertIndex >= 0) {
-                    val newLinesList: MutableList<String?> = ArrayList()
-                    newLinesList.addAll(Arrays.asList(*lines).subList(0, inertIndex))
-                    newLinesList.add("a=extmap-allow-mixed")
-                    newLinesList.addAll(Arrays.asList(*lines).subList(inertIndex, lines.size - 1))
-                    sdpDescription = joinString(newLinesList, "\r\n", true)
-                }
-            }
-            if (preferIsac) {
-                sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true)
-            }
-            if (isPublish) {
-                sdpDescription =
-                    preferCodec(
-                        sdpDescription,
-                        getSdpVideoCodecName(peerConnectionParameters),
-                        false
-                    )
-            }
+            val sdpDescription = mungeSdp(origSdp.description, true)
             val sdp = SessionDescription(origSdp.type, sdpDescription)
             localSdp = sdp
             executor.execute {
                 if (peerConnection != null && !isError) {
                     Log.d(TAG, "Set local SDP from " + sdp.type)
+                    settingLocalSdp = true
                     peerConnection!!.setLocalDescription(sdpObserver, sdp)
                 }
             }
@@ -1678,17 +2400,42 @@ internal class PeerConnectionClient(
                 if (isInitiator) {
                     // For offering peer connection we first create offer and set
                     // local SDP, then after receiving answer set remote SDP.
-                    if (peerConnection!!.remoteDescription == null) {
+                    if (settingLocalSdp) {
+                        settingLocalSdp = false
                         // We've just set our local SDP so time to send it.
                         Log.d(TAG, "Local SDP set succesfully")
+                        updateSubscriptionMapping()
                         localSdp?.let {
                             events.onLocalDescription(this@PeerConnectionClient, it)
                         }
+                        if (peerConnection!!.remoteDescription != null
+                            && iceRestartJob != null && resourceUrl != null) {
+                            // ICE restart of a WHIP/WHEP session: only the new ICE
+                            // credentials are exchanged with the resource. The streams of a
+                            // multiplexed subscriber are unchanged, so no mapping is sent.
+                            sendIceRestartSdpFrag(peerConnection!!.localDescription, iceRestartAttempts)
+                        } else if (peerConnection!!.remoteDescription != null) {
+                            // Renegotiating an established connection: candidates are
+                            // already gathered, so the offer goes out right away.
+                            sendRenegotiationOffer(peerConnection!!.localDescription)
+                        } else if (isTrickle && !iceComplete) {
+                            // Trickle ICE: post the offer now, candidates follow with PATCH.
+                            iceComplete = true
+                            sendOfferSdp(peerConnection!!.localDescription)
+                        }
                     } else {
                         // We've just set remote description, so drain remote
                         // and send local ICE candidates.
                         Log.d(TAG, "Remote SDP set succesfully")
                         drainCandidates()
+                        isNegotiating = false
+                        if (iceRestartJob != null) {
+                            iceRestartAnswered = true
+                            flushTrickleCandidates()
+                        }
+                        if (renegotiationNeeded) {
+                            renegotiate()
+                        }
                     }
                 } else {
                     // For answering peer connection we set remote SDP and then
@@ -1764,6 +2511,8 @@ internal class PeerConnectionClient(
         private const val DISABLE_WEBRTC_AGC_FIELDTRIAL =
             "WebRTC-Audio-MinimizeResamplingOnMobile/Enabled/"
         private const val AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate"
+        private const val EXTMAP_ALLOW_MIXED = "a=extmap-allow-mixed"
+        private val VIDEO_FEC_CODECS = listOf("flexfec-03")
         private const val AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation"
         private const val AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl"
         private const val AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter"
@@ -1772,7 +2521,37 @@ internal class PeerConnectionClient(
         private const val HD_VIDEO_WIDTH = 1280
         private const val HD_VIDEO_HEIGHT = 720
         private const val BPS_IN_KBPS = 1000
+        private const val MIN_LAYER_BITRATE_KBPS = 100
+        private val SIMULCAST_RIDS = arrayOf("l", "m", "h")
+        private val SIMULCAST_SCALES = doubleArrayOf(4.0, 2.0, 1.0)
         private const val RTCEVENTLOG_OUTPUT_DIR_NAME = "rtc_event_log"
+        /**
+         * Request header of the multiplexed subscriber. It is specific to this SDK's media
+         * server and not part of WHEP. It tells the server which pulled stream each
+         * transceiver of the one session carries:
+         *
+         *     X-Subscribe-Streams: <video mid>,<audio mid>=<pull url>[, <video mid>,<audio mid>=<pull url>]...
+         *
+         * The mids are those of the offer in the same request. The header lists every current
+         * subscription and replaces the previous list.
+         *
+         * Session lifetime: the POST of the first offer to the subscribe url creates the session
+         * resource returned in Location. Later offers, when users join or leave or for an ICE
+         * restart, PATCH that resource with the full application/sdp offer and this header,
+         * and the answer comes back in the body. Servers answering 405, 415 or 501 get a
+         * new POST instead. Any resource the client replaces, including the one of a rebuilt
+         * connection, is removed with DELETE.
+         */
+        private const val SUBSCRIBE_STREAMS_HEADER = "X-Subscribe-Streams"
+        private const val TRICKLE_ICE_SDPFRAG = "application/trickle-ice-sdpfrag"
+        private const val WHEP_LAYER_REL = "urn:ietf:params:whep:ext:core:layer"
+        private const val ICE_RESTART_TIMEOUT_MS = 8000L
+        private const val DEFAULT_STATS_INTERVAL_MS = 1000
+
+        // Media servers that rejected trickle ICE, later offers to them wait for gathering.
+        private val trickleIceUnsupportedServers: MutableSet<String> =
+            Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
+
         private fun getSdpVideoCodecName(parameters: PeerConnectionParameters): String {
             return when (parameters.videoCodec) {
                 VIDEO_CODEC_VP8 -> VIDEO_CODEC_VP8
@@ -1782,7 +2561,11 @@ internal class PeerConnectionClient(
             }
         }
 
-        private fun getFieldTrials(peerConnectionParameters: PeerConnectionParameters): String {
+        fun isH264HighProfile(parameters: PeerConnectionParameters): Boolean {
+            return VIDEO_CODEC_H264_HIGH == parameters.videoCodec
+        }
+
+        fun getFieldTrials(peerConnectionParameters: PeerConnectionParameters): String {
             var fieldTrials = ""
             if (peerConnectionParameters.videoFlexfecEnabled) {
                 fieldTrials += VIDEO_FLEXFEC_FIELDTRIAL
@@ -1796,152 +2579,66 @@ internal class PeerConnectionClient(
             return fieldTrials
         }
 
-        private fun setStartBitrate(
-            codec: String, isVideoCodec: Boolean, sdpDescription: String, bitrateKbps: Int
+        /**
+         * Builds a trickle-ice-sdpfrag body (RFC 8840) for |candidates| using the ICE
+         * credentials of |localSdp|.
+         */
+        private fun buildSdpFrag(
+            localSdp: String, candidates: List<IceCandidate>, endOfCandidates: Boolean
         ): String {
-            val lines =
-                sdpDescription.split("\r\n".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
-            var rtpmapLineIndex = -1
-            var sdpFormatUpdated = false
-            var codecRtpMap: String? = null
-            // Search for codec rtpmap in format
-            // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-            var regex = "^a=rtpmap:(\\d+) $codec(/\\d+)+[\r]?$"
-            var codecPattern = Pattern.compile(regex)
-            for (i in lines.indices) {
-                val codecMatcher = codecPattern.matcher(lines[i])
-                if (codecMatcher.matches()) {
-                    codecRtpMap = codecMatcher.group(1)
-                    rtpmapLineIndex = i
-                    break
-                }
-            }
-            if (codecRtpMap == null) {
-                Log.w(TAG, "No rtpmap for $codec codec")
-                return sdpDescription
-            }
-            Log.d(
-                TAG,
-                "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]
-            )
-            // Check if a=fmtp string already exist in remote SDP for this codec and
-            // update it with new bitrate parameter.
-            regex = "^a=fmtp:$codecRtpMap \\w+=\\d+.*[\r]?$"
-            codecPattern = Pattern.compile(regex)
-            for (i in lines.indices) {
-                val codecMatcher = codecPattern.matcher(lines[i])
-                if (codecMatcher.matches()) {
-                    Log.d(TAG, "Found " + codec + " " + lines[i])
-                    if (isVideoCodec) {
-                        lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps
-                    } else {
-                        lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000)
-                    }
-                    Log.d(TAG, "Update remote SDP line: " + lines[i])
-                    sdpFormatUpdated = true
-                    break
+            val sdp = ParsedSdp.parse(localSdp)
+            val firstMid = sdp.media.firstOrNull()?.mid
+            val sdpFrag = StringBuilder()
+            sdp.findLine(ParsedSdp.ICE_UFRAG)?.let { sdpFrag.append(it).append("\r\n") }
+            sdp.findLine(ParsedSdp.ICE_PWD)?.let { sdpFrag.append(it).append("\r\n") }
+            val candidatesByMid = candidates.groupBy { it.sdpMid ?: firstMid ?: "0" }
+            val mids = if (candidatesByMid.isEmpty()) listOf(firstMid ?: "0") else candidatesByMid.keys
+            for (mid in mids) {
+                sdpFrag.append("m=audio 9 UDP/TLS/RTP/SAVPF 0\r\n")
+                sdpFrag.append("a=mid:").append(mid).append("\r\n")
+                candidatesByMid[mid]?.forEach {
+                    sdpFrag.append("a=").append(it.sdp).append("\r\n")
                 }
-            }
-            val newSdpDescription = StringBuilder()
-            for (i in lines.indices) {
-                newSdpDescription.append(lines[i]).append("\r\n")
-                // Append new a=fmtp line if no such line exist for a codec.
-                if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-                    var bitrateSet = if (isVideoCodec) {
-                        "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps
-                    } else {
-                        ("a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-                                + (bitrateKbps * 1000))
-                    }
-                    Log.d(TAG, "Add remote SDP line: $bitrateSet")
-                    newSdpDescription.append(bitrateSet).append("\r\n")
+                if (endOfCandidates) {
+                    sdpFrag.append("a=end-of-candidates\r\n")
                 }
             }
-            return newSdpDescription.toString()
+            return sdpFrag.toString()
         }
 
         /**
-         * Returns the line number containing "m=audio|video", or -1 if no such line exists.
+         * Returns the target of the first Link header entry with relation |rel|.
          */
-        private fun findMediaDescriptionLine(isAudio: Boolean, sdpLines: Array<String>): Int {
-            val mediaDescription = if (isAudio) "m=audio " else "m=video "
-            for (i in sdpLines.indices) {
-                if (sdpLines[i].startsWith(mediaDescription)) {
-                    return i
+        private fun parseLinkUrl(links: List<String>, rel: String): String? {
+            for (header in links) {
+                for (link in header.split(',')) {
+                    val params = link.split(';')
+                    val target = params[0].trim()
+                    if (target.length < 2 || target[0] != '<' || target[target.length - 1] != '>') {
+                        continue
+                    }
+                    for (i in 1 until params.size) {
+                        val param = params[i].trim()
+                        if (param.startsWith("rel=") && param.substring(4).trim('"') == rel) {
+                            return target.substring(1, target.length - 1)
+                        }
+                    }
                 }
             }
-            return -1
+            return null
         }
 
-        private fun joinString(
-            s: Iterable<CharSequence?>, delimiter: String, delimiterAtEnd: Boolean
-        ): String {
-            val iter = s.iterator()
-            if (!iter.hasNext()) {
-                return ""
-            }
-            val buffer = StringBuilder(iter.next()!!)
-            while (iter.hasNext()) {
-                buffer.append(delimiter).append(iter.next())
-            }
-            if (delimiterAtEnd) {
-                buffer.append(delimiter)
-            }
-            return buffer.toString()
-        }
-
-        private fun movePayloadTypesToFront(
-            preferredPayloadTypes: List<String?>, mLine: String
-        ): String? {
-            // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
-            val origLineParts =
-                Arrays.asList(*mLine.split(" ".toRegex()).dropLastWhile { it.isEmpty() }
-                    .toTypedArray())
-            if (origLineParts.size <= 3) {
-                Log.e(TAG, "Wrong SDP media description format: $mLine")
-                return null
-            }
-            val header: List<String?> = origLineParts.subList(0, 3)
-            val unpreferredPayloadTypes: MutableList<String?> =
-                ArrayList(origLineParts.subList(3, origLineParts.size))
-            unpreferredPayloadTypes.removeAll(preferredPayloadTypes)
-            // Reconstruct the line with |preferredPayloadTypes| moved to the beginning of the payload
-            // types.
-            val newLineParts: MutableList<String?> = ArrayList()
-            newLineParts.addAll(header)
-            newLineParts.addAll(preferredPayloadTypes)
-            newLineParts.addAll(unpreferredPayloadTypes)
-            return joinString(newLineParts, " ", false /* delimiterAtEnd */)
-        }
-
-        private fun preferCodec(sdpDescription: String, codec: String, isAudio: Boolean): String {
-            val lines =
-                sdpDescription.split("\r\n".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
-            val mLineIndex = findMediaDescriptionLine(isAudio, lines)
-            if (mLineIndex == -1) {
-                Log.w(TAG, "No mediaDescription line, so can't prefer $codec")
-                return sdpDescription
-            }
-            // A list with all the payload types with name |codec|. The payload types are integers in the
-            // range 96-127, but they are stored as strings here.
-            val codecPayloadTypes: MutableList<String?> = ArrayList()
-            // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-            val codecPattern = Pattern.compile("^a=rtpmap:(\\d+) $codec(/\\d+)+[\r]?$")
-            for (line in lines) {
-                val codecMatcher = codecPattern.matcher(line)
-                if (codecMatcher.matches()) {
-                    codecPayloadTypes.add(codecMatcher.group(1))
-                }
-            }
-            if (codecPayloadTypes.isEmpty()) {
-                Log.w(TAG, "No payload types with name $codec")
-                return sdpDescription
-            }
-            val newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex])
-                ?: return sdpDescription
-            Log.d(TAG, "Change media description from: " + lines[mLineIndex] + " to " + newMLine)
-            lines[mLineIndex] = newMLine
-            return joinString(Arrays.asList(*lines), "\r\n", true /* delimiterAtEnd */)
+        /**
+         * Replaces the ICE credentials and candidates of |remoteSdp| with the ones of the
+         * |sdpFrag| answered to an ICE restart. New candidates go to the first m-section,
+         * which carries the bundled transport.
+         */
+        private fun applyIceRestartSdpFrag(remoteSdp: String, sdpFrag: String): String {
+            val frag = ParsedSdp.parse(sdpFrag)
+            val sdp = ParsedSdp.parse(remoteSdp)
+            sdp.replaceIceCredentials(frag.findLine(ParsedSdp.ICE_UFRAG), frag.findLine(ParsedSdp.ICE_PWD))
+            sdp.replaceCandidates(frag.candidateLines())
+            return sdp.toString()
         }
 
         var mediaProjectionPermissionResultData : Intent? = null
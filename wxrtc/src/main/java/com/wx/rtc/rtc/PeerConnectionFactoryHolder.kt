@@ -0,0 +1,210 @@
+package com.wx.rtc.rtc
+
+import android.content.Context
+import android.os.Environment
+import android.util.Log
+import com.wx.rtc.rtc.PeerConnectionClient.PeerConnectionParameters
+import org.webrtc.DefaultVideoDecoderFactory
+import org.webrtc.DefaultVideoEncoderFactory
+import org.webrtc.EglBase
+import org.webrtc.PeerConnectionFactory
+import org.webrtc.SoftwareVideoDecoderFactory
+import org.webrtc.SoftwareVideoEncoderFactory
+import org.webrtc.VideoDecoderFactory
+import org.webrtc.VideoEncoderFactory
+import org.webrtc.audio.JavaAudioDeviceModule
+import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordErrorCallback
+import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordStateCallback
+import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackErrorCallback
+import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackStateCallback
+import java.io.File
+import java.util.concurrent.CopyOnWriteArraySet
+
+/**
+ * Process-wide owner of the [PeerConnectionFactory] and its [JavaAudioDeviceModule].
+ *
+ * Publish and pull [PeerConnectionClient]s acquire the same factory, so joining a room
+ * only creates peer connections instead of a whole WebRTC stack per participant. The
+ * factory, the audio device module and the native threads are disposed when the last
+ * client releases its reference.
+ */
+internal object PeerConnectionFactoryHolder {
+    private const val TAG = "PCFactoryHolder"
+
+    private val clients = CopyOnWriteArraySet<PeerConnectionClient>()
+    private var factory: PeerConnectionFactory? = null
+    private var tracing = false
+
+    var audioDeviceModule: JavaAudioDeviceModule? = null
+        private set
+
+    val refCount: Int
+        get() = clients.size
+
+    /**
+     * Returns the shared factory, creating it for the first client. Parameters and options
+     * are only applied when the factory is created.
+     */
+    @Synchronized
+    fun acquire(
+        appContext: Context, rootEglBase: EglBase, client: PeerConnectionClient,
+        parameters: PeerConnectionParameters, options: PeerConnectionFactory.Options?
+    ): PeerConnectionFactory {
+        if (factory == null) {
+            createFactory(appContext, rootEglBase, parameters, options)
+        }
+        if (clients.add(client)) {
+            Log.d(TAG, "Acquire peer connection factory, refCount: ${clients.size}")
+        }
+        return factory!!
+    }
+
+    @Synchronized
+    fun release(client: PeerConnectionClient) {
+        if (!clients.remove(client)) {
+            return
+        }
+        Log.d(TAG, "Release peer connection factory, refCount: ${clients.size}")
+        if (clients.isNotEmpty()) {
+            return
+        }
+        Log.d(TAG, "Closing audio device module.")
+        audioDeviceModule?.release()
+        audioDeviceModule = null
+        Log.d(TAG, "Closing peer connection factory.")
+        factory?.dispose()
+        factory = null
+        if (tracing) {
+            PeerConnectionFactory.stopInternalTracingCapture()
+            tracing = false
+        }
+        PeerConnectionFactory.shutdownInternalTracer()
+    }
+
+    private fun createFactory(
+        appContext: Context, rootEglBase: EglBase,
+        parameters: PeerConnectionParameters, options: PeerConnectionFactory.Options?
+    ) {
+        val fieldTrials = PeerConnectionClient.getFieldTrials(parameters)
+        Log.d(TAG, "Initialize WebRTC. Field trials: $fieldTrials")
+        // Must not be called while a PeerConnectionFactory is alive.
+        PeerConnectionFactory.initialize(
+            PeerConnectionFactory.InitializationOptions.builder(appContext)
+                .setFieldTrials(fieldTrials)
+                .setEnableInternalTracer(true)
+                .createInitializationOptions()
+        )
+        if (parameters.tracing) {
+            tracing = PeerConnectionFactory.startInternalTracingCapture(
+                Environment.getExternalStorageDirectory().absolutePath + File.separator
+                        + "webrtc-trace.txt"
+            )
+        }
+        audioDeviceModule = createJavaAudioDevice(appContext, parameters)
+        if (options != null) {
+            Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask)
+        }
+        val enableH264HighProfile = PeerConnectionClient.isH264HighProfile(parameters)
+        val encoderFactory: VideoEncoderFactory
+        val decoderFactory: VideoDecoderFactory
+        if (parameters.videoCodecHwAcceleration) {
+            encoderFactory = DefaultVideoEncoderFactory(
+                rootEglBase.eglBaseContext, false,  /* enableIntelVp8Encoder */enableH264HighProfile
+            )
+            decoderFactory = DefaultVideoDecoderFactory(rootEglBase.eglBaseContext)
+        } else {
+            encoderFactory = SoftwareVideoEncoderFactory()
+            decoderFactory = SoftwareVideoDecoderFactory()
+        }
+        factory = PeerConnectionFactory.builder()
+            .setOptions(options)
+            .setAudioDeviceModule(audioDeviceModule)
+            .setVideoEncoderFactory(encoderFactory)
+            .setVideoDecoderFactory(decoderFactory)
+            .createPeerConnectionFactory()
+
+        Log.d(TAG, "Peer connection factory created.")
+    }
+
+    private fun reportError(errorMessage: String) {
+        for (client in clients) {
+            client.onAudioDeviceError(errorMessage)
+        }
+    }
+
+    private fun createJavaAudioDevice(
+        appContext: Context, parameters: PeerConnectionParameters
+    ): JavaAudioDeviceModule {
+        // Enable/disable OpenSL ES playback.
+        if (!parameters.useOpenSLES) {
+            Log.w(TAG, "External OpenSLES ADM not implemented yet.")
+        }
+        // Set audio record error callbacks.
+        val audioRecordErrorCallback: AudioRecordErrorCallback = object : AudioRecordErrorCallback {
+            override fun onWebRtcAudioRecordInitError(errorMessage: String) {
+                Log.e(TAG, "onWebRtcAudioRecordInitError: $errorMessage")
+                reportError(errorMessage)
+            }
+
+            override fun onWebRtcAudioRecordStartError(
+                errorCode: JavaAudioDeviceModule.AudioRecordStartErrorCode, errorMessage: String
+            ) {
+                Log.e(TAG, "onWebRtcAudioRecordStartError: $errorCode. $errorMessage")
+                reportError(errorMessage)
+            }
+
+            override fun onWebRtcAudioRecordError(errorMessage: String) {
+                Log.e(TAG, "onWebRtcAudioRecordError: $errorMessage")
+                reportError(errorMessage)
+            }
+        }
+        val audioTrackErrorCallback: AudioTrackErrorCallback = object : AudioTrackErrorCallback {
+            override fun onWebRtcAudioTrackInitError(errorMessage: String) {
+                Log.e(TAG, "onWebRtcAudioTrackInitError: $errorMessage")
+                reportError(errorMessage)
+            }
+
+            override fun onWebRtcAudioTrackStartError(
+                errorCode: JavaAudioDeviceModule.AudioTrackStartErrorCode, errorMessage: String
+            ) {
+                Log.e(TAG, "onWebRtcAudioTrackStartError: $errorCode. $errorMessage")
+                reportError(errorMessage)
+            }
+
+            override fun onWebRtcAudioTrackError(errorMessage: String) {
+                Log.e(TAG, "onWebRtcAudioTrackError: $errorMessage")
+                reportError(errorMessage)
+            }
+        }
+        // Set audio record state callbacks.
+        val audioRecordStateCallback: AudioRecordStateCallback = object : AudioRecordStateCallback {
+            override fun onWebRtcAudioRecordStart() {
+                Log.i(TAG, "Audio recording starts")
+            }
+
+            override fun onWebRtcAudioRecordStop() {
+                Log.i(TAG, "Audio recording stops")
+            }
+        }
+        // Set audio track state callbacks.
+        val audioTrackStateCallback: AudioTrackStateCallback = object : AudioTrackStateCallback {
+            override fun onWebRtcAudioTrackStart() {
+                Log.i(TAG, "Audio playout starts")
+            }
+
+            override fun onWebRtcAudioTrackStop() {
+                Log.i(TAG, "Audio playout stops")
+            }
+        }
+
+        return JavaAudioDeviceModule.builder(appContext)
+//                .setSamplesReadyCallback(saveRecordedAudioToFile)
+            .setUseHardwareAcousticEchoCanceler(!parameters.disableBuiltInAEC)
+            .setUseHardwareNoiseSuppressor(!parameters.disableBuiltInNS)
+            .setAudioRecordErrorCallback(audioRecordErrorCallback)
+            .setAudioTrackErrorCallback(audioTrackErrorCallback)
+            .setAudioRecordStateCallback(audioRecordStateCallback)
+            .setAudioTrackStateCallback(audioTrackStateCallback)
+            .createAudioDeviceModule()
+    }
+}
@@ -1,5 +1,6 @@
 package com.wx.rtc.rtc
 
+import com.wx.rtc.WXRTCDef
 import com.wx.rtc.WXRTCDef.WXRTCRenderParams
 
 internal class PeerConnectionManager {
@@ -22,5 +23,11 @@ internal class PeerConnectionManager {
     @JvmField
     var client: PeerConnectionClient? = null
     @JvmField
+    var subscribed: Boolean = false
+    @JvmField
     var renderParams: WXRTCRenderParams? = null
+    @JvmField
+    var videoLayer: Int = WXRTCDef.WXRTC_VIDEO_LAYER_AUTO
+    @JvmField
+    var videoHidden: Boolean = false
 }
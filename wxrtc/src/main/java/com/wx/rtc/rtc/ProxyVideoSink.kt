@@ -10,18 +10,37 @@ internal class ProxyVideoSink : VideoSink {
     var target: VideoSink? = null
         private set
 
-    var frame: VideoFrame? = null
-        private set
+    private var frameRequests: MutableList<(VideoFrame) -> Unit>? = null
+
+    @Volatile
+    var frameTap: FrameTap? = null
 
     @Synchronized
     override fun onFrame(frame: VideoFrame) {
-        this.frame = frame
+        frameRequests?.let { requests ->
+            frameRequests = null
+            for (request in requests) {
+                frame.retain()
+                request(frame)
+            }
+        }
+        frameTap?.onFrame(frame)
         if (target == null) {
             return
         }
         target!!.onFrame(frame)
     }
 
+    /**
+     * Hands the next frame to |request|, which must release it. Only one frame is held on
+     * request, so decoder and camera buffers are not kept from their pools in between.
+     */
+    @Synchronized
+    fun requestFrame(request: (VideoFrame) -> Unit) {
+        val requests = frameRequests ?: ArrayList<(VideoFrame) -> Unit>(1).also { frameRequests = it }
+        requests.add(request)
+    }
+
     @Synchronized
     fun setTarget(streamId: String?, target: VideoSink?) {
         this.streamId = streamId
@@ -35,6 +54,9 @@ internal class ProxyVideoSink : VideoSink {
             if (!renderer.isReleased) {
                 renderer.release()
             }
+        } else if (target is VideoCompositor.TileSink) {
+            // The view outlives its tiles, only drop the picture.
+            (target as VideoCompositor.TileSink).clear()
         }
         target = null
     }
@@ -0,0 +1,124 @@
+package com.wx.rtc.rtc
+
+import com.wx.rtc.WXRTCDef
+import com.wx.rtc.WXRTCDef.WXRTCAdaptiveParam
+import com.wx.rtc.WXRTCDef.WXRTCVideoEncParam
+import com.wx.rtc.utils.RTCUtils.getVideoResolution
+
+/**
+ * Steps the publish quality along a ladder of encoder settings from outbound stats.
+ *
+ * Level 0 is the highest setting. A level is dropped after [WXRTCAdaptiveParam.downgradeSamples]
+ * congested samples in a row and raised after [WXRTCAdaptiveParam.upgradeSamples] samples with
+ * headroom in a row, never going below the floor. An upgrade that is undone shortly after
+ * doubles the wait before the next one, so the level does not oscillate on a marginal link.
+ *
+ * Bandwidth headroom is measured against the current level: the estimate only grows to about
+ * 1.5x of what is sent and is not probed past the configured max, so it never reaches the
+ * rate of the next level while the current one is in use.
+ */
+internal class PublishQualityController(base: WXRTCVideoEncParam, param: WXRTCAdaptiveParam) {
+    val ladder: List<WXRTCVideoEncParam> = param.ladder?.takeIf { it.isNotEmpty() } ?: defaultLadder(base)
+    private val floorLevel = if (param.floorLevel in ladder.indices) param.floorLevel else ladder.lastIndex
+    private val downgradeSamples = maxOf(1, param.downgradeSamples)
+    private val upgradeSamples = maxOf(1, param.upgradeSamples)
+
+    var level = 0
+        private set
+    private var congestedSamples = 0
+    private var headroomSamples = 0
+    private var samplesSinceUpgrade = Int.MAX_VALUE
+    private var upgradeBackoff = 1
+
+    /**
+     * Feeds one stats sample. Returns the new level, or -1 if the level is unchanged.
+     *
+     * |availableKbps| is the estimated outgoing bandwidth, 0 if unknown. |encodeMs| is the
+     * average encode time per frame over the sample.
+     */
+    fun onSample(availableKbps: Int, limitationReason: String?, encodeMs: Double): Int {
+        val current = ladder[level]
+        val frameBudgetMs = 1000.0 / maxOf(1, current.videoFps)
+        if (samplesSinceUpgrade != Int.MAX_VALUE && ++samplesSinceUpgrade > upgradeSamples * upgradeBackoff) {
+            // The last upgrade held.
+            samplesSinceUpgrade = Int.MAX_VALUE
+            upgradeBackoff = 1
+        }
+
+        val congested = limitationReason == "bandwidth" || limitationReason == "cpu" ||
+                (availableKbps in 1 until current.videoMinBitrate) ||
+                encodeMs > frameBudgetMs * CPU_OVERUSE_RATIO
+
+        if (congested) {
+            headroomSamples = 0
+            if (++congestedSamples >= downgradeSamples && level < floorLevel) {
+                if (samplesSinceUpgrade != Int.MAX_VALUE) {
+                    upgradeBackoff = minOf(upgradeBackoff * 2, MAX_UPGRADE_BACKOFF)
+                }
+                samplesSinceUpgrade = Int.MAX_VALUE
+                return moveTo(level + 1)
+            }
+            return -1
+        }
+        congestedSamples = 0
+
+        if (level == 0) {
+            headroomSamples = 0
+            return -1
+        }
+        val next = ladder[level - 1]
+        val nextBudgetMs = 1000.0 / maxOf(1, next.videoFps)
+        val headroom = (availableKbps == 0 || availableKbps >= current.videoMaxBitrate * BANDWIDTH_HEADROOM) &&
+                encodeMs < nextBudgetMs * CPU_UNDERUSE_RATIO
+        if (!headroom) {
+            headroomSamples = 0
+            return -1
+        }
+        if (++headroomSamples >= upgradeSamples * upgradeBackoff) {
+            samplesSinceUpgrade = 0
+            return moveTo(level - 1)
+        }
+        return -1
+    }
+
+    private fun moveTo(newLevel: Int): Int {
+        level = newLevel
+        congestedSamples = 0
+        headroomSamples = 0
+        return newLevel
+    }
+
+    companion object {
+        private const val CPU_OVERUSE_RATIO = 0.85
+        private const val CPU_UNDERUSE_RATIO = 0.5
+        private const val BANDWIDTH_HEADROOM = 1.2
+        private const val MAX_UPGRADE_BACKOFF = 8
+
+        // resolution, fps, min kbps, max kbps
+        private val DEFAULT_STEPS = arrayOf(
+            intArrayOf(WXRTCDef.WXRTC_VIDEO_RESOLUTION_960_540, 20, 800, 1500),
+            intArrayOf(WXRTCDef.WXRTC_VIDEO_RESOLUTION_640_360, 15, 400, 800),
+            intArrayOf(WXRTCDef.WXRTC_VIDEO_RESOLUTION_480_270, 15, 250, 500),
+            intArrayOf(WXRTCDef.WXRTC_VIDEO_RESOLUTION_320_180, 10, 120, 300),
+        )
+
+        private fun defaultLadder(base: WXRTCVideoEncParam): List<WXRTCVideoEncParam> {
+            val baseSize = getVideoResolution(base.videoResolutionMode, base.videoResolution)
+            val ladder = ArrayList<WXRTCVideoEncParam>(DEFAULT_STEPS.size + 1)
+            ladder.add(base)
+            for (step in DEFAULT_STEPS) {
+                val size = getVideoResolution(base.videoResolutionMode, step[0])
+                if (size.width * size.height >= baseSize.width * baseSize.height) {
+                    continue
+                }
+                ladder.add(
+                    WXRTCVideoEncParam(
+                        step[0], base.videoResolutionMode, minOf(step[1], base.videoFps),
+                        minOf(step[2], base.videoMinBitrate), minOf(step[3], base.videoMaxBitrate)
+                    )
+                )
+            }
+            return ladder
+        }
+    }
+}
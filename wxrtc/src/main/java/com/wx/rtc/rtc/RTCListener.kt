@@ -1,9 +1,17 @@
 package com.wx.rtc.rtc
 
+import com.wx.rtc.WXRTCDef
 import java.io.File
 
 internal interface RTCListener {
     fun onConnected()
     fun onClose()
+    fun onError(errCode: Int, errMsg: String)
     fun onSnapshot(userId: String, file: File)
+    fun onSnapshotData(userId: String, data: ByteArray)
+    fun onSnapshotFailed(userId: String)
+    fun onUserQuality(quality: WXRTCDef.UserQuality)
+    fun onPublishQualityChanged(level: Int, param: WXRTCDef.WXRTCVideoEncParam)
+    fun onIceRestart(isLocal: Boolean, attempt: Int, reason: String)
+    fun onIceRestartResult(isLocal: Boolean, attempt: Int, success: Boolean, elapsedMs: Long)
 }
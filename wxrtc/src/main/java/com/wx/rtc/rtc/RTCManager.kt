@@ -1,34 +1,34 @@
 package com.wx.rtc.rtc
 
+import android.content.ComponentCallbacks2
 import android.content.Context
-import android.graphics.Bitmap
+import android.content.res.Configuration
 import android.util.Log
+import android.view.View
+import com.wx.rtc.WXRTCCompositeView
 import com.wx.rtc.WXRTCDef
 import com.wx.rtc.WXRTCDef.WXRTCRenderParams
 import com.wx.rtc.WXRTCDef.WXRTCVideoEncParam
+import com.wx.rtc.WXRTCFrameTapListener
+import com.wx.rtc.WXRTCVideoFilter
 import com.wx.rtc.rtc.PeerConnectionClient.PeerConnectionEvents
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.flow.flowOf
-import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.withContext
 import org.webrtc.EglBase
-import org.webrtc.EglRenderer
+import org.webrtc.I420BufferPool
 import org.webrtc.IceCandidate
 import org.webrtc.PeerConnectionFactory
 import org.webrtc.RendererCommon
 import org.webrtc.SessionDescription
-import org.webrtc.StatsReport
 import org.webrtc.SurfaceViewRenderer
-import com.wx.rtc.utils.luban.Luban
-import java.io.ByteArrayOutputStream
+import org.webrtc.VideoSink
 import java.io.File
-import java.io.FileOutputStream
-import java.io.IOException
 
 internal class RTCManager : PeerConnectionEvents {
     private var publishPCClient: PeerConnectionClient? = null
+    private var subscribePCClient: PeerConnectionClient? = null
+    private var subscribeUrl: String? = null
     private val callStartedTimeMs: Long = 0
     private var webRTCReconnectNum = 0
     private var publishUserId: String? = null
@@ -50,14 +50,59 @@ internal class RTCManager : PeerConnectionEvents {
 
     private val localProxyVideoSink = ProxyVideoSink()
 
-    private val pcManagers: MutableList<PeerConnectionManager> = ArrayList()
+    private val participants = ParticipantRegistry()
     private var localRenderer: SurfaceViewRenderer? = null
     private var mRTCListener: RTCListener? = null
     private var mStartPublish = false
+    private var statsIntervalMs = 1000
+    private var adaptiveParam: WXRTCDef.WXRTCAdaptiveParam? = null
+    private var simulcastEnabled = false
+    private var snapshotEngine: SnapshotEngine? = null
+    private var localFrameTap: FrameTap? = null
+    private val remoteFrameTaps = HashMap<String, FrameTap>()
+    private val captureFilterChain = CaptureFilterChain()
+    private var renderPolicy: RenderPolicy? = null
+    // Counts the http requests of every connection, the clients come and go.
+    private val retryMetrics = RetryMetrics()
+
+
+    private val trimMemoryCallbacks = object : ComponentCallbacks2 {
+        override fun onTrimMemory(level: Int) {
+            I420BufferPool.getDefault().trim(level)
+        }
+
+        override fun onConfigurationChanged(newConfig: Configuration) {}
 
+        override fun onLowMemory() {
+            I420BufferPool.getDefault().trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+        }
+    }
 
     fun init(context: Context) {
         this.mContext = context
+        context.applicationContext.unregisterComponentCallbacks(trimMemoryCallbacks)
+        context.applicationContext.registerComponentCallbacks(trimMemoryCallbacks)
+    }
+
+    fun getBufferPoolStats(): WXRTCDef.BufferPoolStats {
+        val stats = I420BufferPool.getDefault().stats
+        return WXRTCDef.BufferPoolStats().apply {
+            hits = stats.hits
+            misses = stats.misses
+            evictions = stats.evictions
+            pooledBytes = stats.pooledBytes
+        }
+    }
+
+    fun getRetryStats(): WXRTCDef.RetryStats {
+        return WXRTCDef.RetryStats().apply {
+            offerAttempts = retryMetrics.offerAttempts.get()
+            offerRetries = retryMetrics.offerRetries.get()
+            offerGiveUps = retryMetrics.offerGiveUps.get()
+            unpublishAttempts = retryMetrics.unpublishAttempts.get()
+            unpublishRetries = retryMetrics.unpublishRetries.get()
+            unpublishGiveUps = retryMetrics.unpublishGiveUps.get()
+        }
     }
 
     fun setRTCVideoParam(param: WXRTCVideoEncParam) {
@@ -71,6 +116,99 @@ internal class RTCManager : PeerConnectionEvents {
         this.mRTCListener = listener
     }
 
+    fun setAdaptiveQuality(param: WXRTCDef.WXRTCAdaptiveParam?) {
+        adaptiveParam = param
+        publishPCClient?.setAdaptiveQuality(param)
+    }
+
+    /**
+     * Takes effect on the next publish.
+     */
+    fun enableSimulcast(enable: Boolean) {
+        simulcastEnabled = enable
+    }
+
+    fun setRemoteVideoLayer(userId: String, layer: Int) {
+        val pcm = participants.getOrCreate(userId)
+        pcm.videoLayer = layer
+        applyVideoLayer(pcm)
+    }
+
+    fun setLocalFrameTap(
+        userId: String, param: WXRTCDef.WXRTCFrameTapParam?, listener: WXRTCFrameTapListener?
+    ) {
+        val previous = localFrameTap
+        localFrameTap = createFrameTap(userId, param, listener)
+        publishPCClient?.frameTap = localFrameTap
+        previous?.release()
+    }
+
+    fun setRemoteFrameTap(
+        userId: String, param: WXRTCDef.WXRTCFrameTapParam?, listener: WXRTCFrameTapListener?
+    ) {
+        val tap = createFrameTap(userId, param, listener)
+        participants.videoSinkOf(participants.getOrCreate(userId)).frameTap = tap
+        val previous = if (tap != null) remoteFrameTaps.put(userId, tap) else remoteFrameTaps.remove(userId)
+        previous?.release()
+    }
+
+    private fun createFrameTap(
+        userId: String, param: WXRTCDef.WXRTCFrameTapParam?, listener: WXRTCFrameTapListener?
+    ): FrameTap? {
+        if (param == null || listener == null) {
+            return null
+        }
+        return FrameTap(userId, param, eglBase.eglBaseContext, listener)
+    }
+
+    fun setRenderPolicy(param: WXRTCDef.WXRTCRenderPolicyParam?) {
+        renderPolicy?.release()
+        renderPolicy = param?.let { RenderPolicy(it, ::onTileHiddenChanged) }?.also { policy ->
+            for (pcm in participants.all) {
+                val renderer = pcm.videoSink?.target as? SurfaceViewRenderer ?: continue
+                policy.attach(pcm.userId!!, renderer)
+            }
+        }
+    }
+
+    private fun onTileHiddenChanged(userId: String, hidden: Boolean) {
+        val pcm = participants.get(userId) ?: return
+        pcm.videoHidden = hidden
+        if (pcm.videoRecvEnabled && !pcm.videoRecvMute) {
+            setRemoteVideoEnabled(pcm, !hidden)
+        }
+    }
+
+    /**
+     * Renders |pcm| on |renderer| and lets the render policy follow the change.
+     */
+    private fun setRemoteRenderer(pcm: PeerConnectionManager, renderer: VideoSink?) {
+        val previous = participants.setRenderer(pcm, renderer)
+        previous?.userId?.let { renderPolicy?.detach(it) }
+        if (renderer is SurfaceViewRenderer) {
+            renderPolicy?.attach(pcm.userId!!, renderer)
+        } else {
+            renderPolicy?.detach(pcm.userId!!)
+        }
+    }
+
+    fun addVideoFilter(filter: WXRTCVideoFilter) {
+        captureFilterChain.add(filter)
+    }
+
+    fun removeVideoFilter(filter: WXRTCVideoFilter) {
+        captureFilterChain.remove(filter)
+    }
+
+    fun setStatsInterval(intervalMs: Int) {
+        statsIntervalMs = intervalMs
+        publishPCClient?.setStatsInterval(intervalMs)
+        subscribePCClient?.setStatsInterval(intervalMs)
+        for (pcm in participants.all) {
+            pcm.client?.setStatsInterval(intervalMs)
+        }
+    }
+
     fun startPublish(publishUrl: String, userId: String) {
         if (mStartPublish && publishPCClient != null) {
             return
@@ -80,10 +218,11 @@ internal class RTCManager : PeerConnectionEvents {
         mStartPublish = true
 
         publishPCClient = PeerConnectionClient(
-            mContext!!.applicationContext,
+            mContext.applicationContext,
             eglBase, userId, publishUrl, true,
             this
         ).apply {
+            this.retryMetrics = this@RTCManager.retryMetrics
             val options = PeerConnectionFactory.Options()
 
             options.networkIgnoreMask = 0
@@ -92,6 +231,11 @@ internal class RTCManager : PeerConnectionEvents {
 //            this.setLocalVideoTrackEnabled(publishVideoSendEnabled)
 //            this.setLocalAudioTrackEnabled(publishAudioSendEnabled)
             this.setRemoteVideoTrackEnabled(false)
+            this.setStatsInterval(statsIntervalMs)
+            this.setAdaptiveQuality(adaptiveParam)
+            this.simulcastEnabled = this@RTCManager.simulcastEnabled
+            this.frameTap = localFrameTap
+            this.filterChain = captureFilterChain
             this.createPeerConnectionFactory(options)
 
 //            localProxyVideoSink.setTarget(userId, localRenderer)
@@ -110,6 +254,14 @@ internal class RTCManager : PeerConnectionEvents {
 
     }
 
+    /**
+     * Enables receiving every remote user over a single multiplexed connection when the
+     * server provides a subscribe endpoint, null falls back to one connection per user.
+     */
+    fun setSubscribeUrl(subscribeUrl: String?) {
+        this.subscribeUrl = subscribeUrl
+    }
+
     fun setUnpublishUrl(unpublishUrl: String) {
         this.unpublishUrl = unpublishUrl
         publishPCClient?.unpublishUrl = unpublishUrl
@@ -124,14 +276,16 @@ internal class RTCManager : PeerConnectionEvents {
     }
 
     fun startOnePull(pullUrl: String, userId: String) {
-        var pcm = getPeerConnectionManagerByUserId(userId)
+        if (subscribeUrl != null) {
+            startSubscribe(pullUrl, userId)
+            return
+        }
+        var pcm = participants.get(userId)
 
         val pc = startPull(userId, pullUrl)
 
         if (pcm == null) {
-            pcm = PeerConnectionManager()
-            pcm.userId = userId
-            pcManagers.add(pcm)
+            pcm = participants.getOrCreate(userId)
 
             if (remoteVideoAllMute) {
                 pc.setRemoteAudioTrackEnabled(remoteVideoAllMute)
@@ -145,8 +299,9 @@ internal class RTCManager : PeerConnectionEvents {
 
             if (pcm.videoRecvEnabled) {
                 pcm.videoSink?.let { videoSink ->
-                    videoSink.target?.let { target ->
-                        startRemoteVideo(userId, target as SurfaceViewRenderer)
+                    when (val target = videoSink.target) {
+                        is SurfaceViewRenderer -> startRemoteVideo(userId, target)
+                        is VideoCompositor.TileSink -> startRemoteTile(userId, target)
                     }
                 }
             }
@@ -162,12 +317,112 @@ internal class RTCManager : PeerConnectionEvents {
         pcm.sendSdpUrl = pullUrl
         pcm.client = pc
 
-        if (pcm.videoSink == null) {
-            pcm.videoSink = ProxyVideoSink()
+        pc.isNeedReconnect = pcm.needReconnect
+        pc.startCall(null, participants.videoSinkOf(pcm))
+        applyVideoLayer(pcm)
+    }
+
+    private fun startSubscribe(pullUrl: String, userId: String) {
+        var pcm = participants.get(userId)
+        if (pcm == null) {
+            pcm = participants.getOrCreate(userId) {
+                it.videoRecvMute = remoteVideoAllMute
+                it.audioRecvMute = remoteAudioAllMute
+            }
+        } else {
+            pcm.client?.let { client ->
+                stopPull(client)
+                pcm.client = null
+            }
+        }
+        pcm.sendSdpUrl = pullUrl
+        val videoSink = participants.videoSinkOf(pcm)
+
+        val client = subscribePCClient ?: PeerConnectionClient(
+            mContext.applicationContext,
+            eglBase, publishUserId ?: userId, subscribeUrl!!, false,
+            this, true
+        ).apply {
+            this.retryMetrics = this@RTCManager.retryMetrics
+            val options = PeerConnectionFactory.Options()
+
+            options.networkIgnoreMask = 0
+            this.setStatsInterval(statsIntervalMs)
+            this.createPeerConnectionFactory(options)
+            this.startCall(null, null)
+        }.also {
+            subscribePCClient = it
         }
+        client.addSubscription(userId, pullUrl, videoSink)
+        pcm.subscribed = true
+        applyVideoLayer(pcm)
 
-        pc.isNeedReconnect = pcm.needReconnect
-        pc.startCall(null, pcm.videoSink)
+        setRemoteVideoEnabled(pcm, !pcm.videoRecvMute)
+        setRemoteAudioEnabled(pcm, !pcm.audioRecvMute)
+    }
+
+    private fun setRemoteVideoEnabled(pcm: PeerConnectionManager, enable: Boolean) {
+        if (pcm.subscribed) {
+            subscribePCClient?.setSubscriptionVideoEnabled(pcm.userId!!, enable)
+        } else {
+            pcm.client?.setRemoteVideoTrackEnabled(enable)
+        }
+    }
+
+    /**
+     * Requests the simulcast layer of |pcm|; in auto mode it follows the renderer size.
+     */
+    private fun applyVideoLayer(pcm: PeerConnectionManager) {
+        val userId = pcm.userId ?: return
+        val rid = when (pcm.videoLayer) {
+            WXRTCDef.WXRTC_VIDEO_LAYER_HIGH -> "h"
+            WXRTCDef.WXRTC_VIDEO_LAYER_MEDIUM -> "m"
+            WXRTCDef.WXRTC_VIDEO_LAYER_LOW -> "l"
+            else -> {
+                val view = pcm.videoSink?.target as? View ?: return
+                if (view.width == 0 || view.height == 0) {
+                    view.addOnLayoutChangeListener(object : View.OnLayoutChangeListener {
+                        override fun onLayoutChange(
+                            v: View, left: Int, top: Int, right: Int, bottom: Int,
+                            oldLeft: Int, oldTop: Int, oldRight: Int, oldBottom: Int
+                        ) {
+                            v.removeOnLayoutChangeListener(this)
+                            if (v.width > 0 && v.height > 0 && pcm.videoSink?.target === v) {
+                                applyVideoLayer(pcm)
+                            }
+                        }
+                    })
+                    return
+                }
+                val shortSide = minOf(view.width, view.height)
+                when {
+                    shortSide > 360 -> "h"
+                    shortSide > 180 -> "m"
+                    else -> "l"
+                }
+            }
+        }
+        if (pcm.subscribed) {
+            subscribePCClient?.setVideoLayer(userId, rid)
+        } else {
+            pcm.client?.setVideoLayer(userId, rid)
+        }
+    }
+
+    private fun setRemoteAudioEnabled(pcm: PeerConnectionManager, enable: Boolean) {
+        if (pcm.subscribed) {
+            subscribePCClient?.setSubscriptionAudioEnabled(pcm.userId!!, enable)
+        } else {
+            pcm.client?.setRemoteAudioTrackEnabled(enable)
+        }
+    }
+
+    private fun setRemoteAudioVolume(pcm: PeerConnectionManager, volume: Int) {
+        if (pcm.subscribed) {
+            subscribePCClient?.setSubscriptionAudioVolume(pcm.userId!!, volume)
+        } else {
+            pcm.client?.setRemoteAudioTrackVolume(volume)
+        }
     }
 
     private fun setLocalRenderer(renderer: SurfaceViewRenderer?) {
@@ -178,11 +433,7 @@ internal class RTCManager : PeerConnectionEvents {
                 return
             }
 
-            for (pcm in this.pcManagers) {
-                if (pcm.videoSink != null && pcm.videoSink!!.target != null && pcm.videoSink!!.target === renderer) {
-                    pcm.videoSink!!.setTarget(pcm.userId, null)
-                }
-            }
+            participants.detachRenderer(renderer)?.userId?.let { renderPolicy?.detach(it) }
         }
 
         renderer?.apply {
@@ -224,18 +475,10 @@ internal class RTCManager : PeerConnectionEvents {
             setLocalRenderer(null)
         }
 
-        if (renderer != null) {
-            for (pcm in this.pcManagers) {
-                if (pcm.userId != userId && pcm.videoSink != null && pcm.videoSink!!.target != null && pcm.videoSink!!.target === renderer) {
-                    pcm.videoSink!!.setTarget(pcm.userId, null)
-                }
-            }
-        }
-
-        var pcm = getPeerConnectionManagerByUserId(userId)
+        var pcm = participants.get(userId)
 
         if (pcm != null) {
-            if (pcm.videoSink != null && pcm.videoSink!!.target != null && renderer != null && pcm.videoSink!!.target === renderer) {
+            if (renderer != null && participants.getByRenderer(renderer) === pcm) {
                 return
             }
 
@@ -246,13 +489,9 @@ internal class RTCManager : PeerConnectionEvents {
                 }
             }
 
-            if (pcm.videoSink == null) {
-                pcm.videoSink = ProxyVideoSink()
-            }
-            pcm.videoSink!!.setTarget(userId, renderer)
+            setRemoteRenderer(pcm, renderer)
         } else {
-            pcm = PeerConnectionManager()
-            pcm.userId = userId
+            pcm = participants.getOrCreate(userId)
 
             renderer?.apply {
                 if (!isInited || isReleased) {
@@ -261,12 +500,7 @@ internal class RTCManager : PeerConnectionEvents {
                 }
             }
 
-            val remoteVideoSink = ProxyVideoSink()
-            remoteVideoSink.setTarget(userId, renderer)
-
-            pcm.videoSink = remoteVideoSink
-
-            pcManagers.add(pcm)
+            setRemoteRenderer(pcm, renderer)
         }
 
         pcm.videoRecvEnabled = true
@@ -276,11 +510,34 @@ internal class RTCManager : PeerConnectionEvents {
         }
 
         if (!pcm.videoRecvMute) {
-            pcm.client?.setRemoteVideoTrackEnabled(true)
+            setRemoteVideoEnabled(pcm, true)
         }
 
         renderer?.let {
             setRendererRenderParams(false, it, pcm.renderParams!!)
+            applyVideoLayer(pcm)
+        }
+    }
+
+    fun startRemoteVideo(userId: String, view: WXRTCCompositeView, tileIndex: Int) {
+        view.init(eglBase.eglBaseContext)
+        startRemoteTile(userId, view.tileSink(tileIndex) as VideoCompositor.TileSink)
+    }
+
+    private fun startRemoteTile(userId: String, tile: VideoCompositor.TileSink) {
+        val pcm = participants.getOrCreate(userId)
+        if (participants.getByRenderer(tile) !== pcm) {
+            setRemoteRenderer(pcm, tile)
+        }
+
+        pcm.videoRecvEnabled = true
+
+        if (pcm.renderParams == null) {
+            pcm.renderParams = WXRTCRenderParams()
+        }
+
+        if (!pcm.videoRecvMute) {
+            setRemoteVideoEnabled(pcm, true)
         }
     }
 
@@ -289,18 +546,10 @@ internal class RTCManager : PeerConnectionEvents {
             setLocalRenderer(null)
         }
 
-        if (renderer != null) {
-            for (pcm in this.pcManagers) {
-                if (pcm.userId != userId && pcm.videoSink != null && pcm.videoSink!!.target != null && pcm.videoSink!!.target === renderer) {
-                    pcm.videoSink!!.setTarget(pcm.userId, null)
-                }
-            }
-        }
-
-        var pcm = getPeerConnectionManagerByUserId(userId)
+        var pcm = participants.get(userId)
 
         if (pcm != null) {
-            if (pcm.videoSink != null && pcm.videoSink!!.target != null && renderer != null && pcm.videoSink!!.target === renderer) {
+            if (renderer != null && participants.getByRenderer(renderer) === pcm) {
                 return
             }
 
@@ -311,10 +560,7 @@ internal class RTCManager : PeerConnectionEvents {
                 }
             }
 
-            if (pcm.videoSink == null) {
-                pcm.videoSink = ProxyVideoSink()
-            }
-            pcm.videoSink!!.setTarget(userId, renderer)
+            setRemoteRenderer(pcm, renderer)
 
             if (pcm.renderParams == null) {
                 pcm.renderParams = WXRTCRenderParams()
@@ -322,43 +568,44 @@ internal class RTCManager : PeerConnectionEvents {
 
             renderer?.let {
                 setRendererRenderParams(false, it, pcm.renderParams!!)
+                applyVideoLayer(pcm)
             }
         }
     }
 
     fun stopRemoteVideo(userId: String) {
-        getPeerConnectionManagerByUserId(userId)?.let { pcm ->
+        participants.get(userId)?.let { pcm ->
+            renderPolicy?.detach(userId)
             pcm.videoRecvEnabled = false
-            pcm.client?.setRemoteVideoTrackEnabled(false)
-            pcm.videoSink?.release()
+            setRemoteVideoEnabled(pcm, false)
+            participants.releaseVideo(pcm)
         }
     }
 
     fun stopAllRemoteVideo() {
-        for (pcm in pcManagers) {
+        renderPolicy?.release()
+        for (pcm in participants.all) {
             pcm.videoRecvEnabled = false
-            pcm.client?.setRemoteVideoTrackEnabled(false)
-            pcm.videoSink?.release()
+            setRemoteVideoEnabled(pcm, false)
+            participants.releaseVideo(pcm)
         }
     }
 
     fun muteRemoteVideo(userId: String, mute: Boolean) {
-        var pcm = getPeerConnectionManagerByUserId(userId)
+        var pcm = participants.get(userId)
         if (pcm != null) {
-            pcm.client?.setRemoteVideoTrackEnabled(!mute)
+            setRemoteVideoEnabled(pcm, !mute && !pcm.videoHidden)
         } else {
-            pcm = PeerConnectionManager()
-            pcm.userId = userId
-            pcManagers.add(pcm)
+            pcm = participants.getOrCreate(userId)
         }
         pcm.videoRecvMute = mute
     }
 
     fun muteAllRemoteVideo(mute: Boolean) {
         remoteVideoAllMute = mute
-        for (pcm in pcManagers) {
+        for (pcm in participants.all) {
             pcm.videoRecvMute = mute
-            pcm.client?.setRemoteVideoTrackEnabled(!mute)
+            setRemoteVideoEnabled(pcm, !mute && !pcm.videoHidden)
         }
     }
 
@@ -393,20 +640,19 @@ internal class RTCManager : PeerConnectionEvents {
     }
 
     fun setRemoteRenderParams(userId: String, params: WXRTCRenderParams) {
-        val pcm = getPeerConnectionManagerByUserId(userId)
+        val pcm = participants.get(userId)
         if (pcm != null) {
             pcm.renderParams = params
             pcm.videoSink?.let { videoSink ->
                 videoSink.target
             }?.let { renderer ->
-                setRendererRenderParams(false, renderer as SurfaceViewRenderer, params)
+                // Composite tiles take their fill mode from the layout.
+                (renderer as? SurfaceViewRenderer)?.let { setRendererRenderParams(false, it, params) }
             }
         } else {
-            val manager = PeerConnectionManager()
-            manager.userId = userId
-            manager.renderParams = params
-
-            pcManagers.add(manager)
+            participants.getOrCreate(userId) {
+                it.renderParams = params
+            }
         }
     }
 
@@ -426,44 +672,40 @@ internal class RTCManager : PeerConnectionEvents {
     }
 
     fun muteRemoteAudio(userId: String, mute: Boolean) {
-        var pcm = getPeerConnectionManagerByUserId(userId)
+        var pcm = participants.get(userId)
 
         if (pcm != null) {
-            pcm.client?.setRemoteAudioTrackEnabled(!mute)
+            setRemoteAudioEnabled(pcm, !mute)
         } else {
-            pcm = PeerConnectionManager()
-            pcm.userId = userId
-            pcManagers.add(pcm)
+            pcm = participants.getOrCreate(userId)
         }
         pcm.audioRecvMute = mute
     }
 
     fun muteAllRemoteAudio(mute: Boolean) {
         remoteAudioAllMute = mute
-        for (pcm in pcManagers) {
+        for (pcm in participants.all) {
             pcm.audioRecvMute = mute
-            pcm.client?.setRemoteAudioTrackEnabled(!mute)
+            setRemoteAudioEnabled(pcm, !mute)
         }
     }
 
     fun setRemoteAudioVolume(userId: String, volume: Int) {
-        var pcm = getPeerConnectionManagerByUserId(userId)
+        var pcm = participants.get(userId)
 
         if (pcm != null) {
-            pcm.client?.setRemoteAudioTrackVolume(volume)
+            setRemoteAudioVolume(pcm, volume)
         } else {
-            pcm = PeerConnectionManager()
-            pcm.userId = userId
-            pcManagers.add(pcm)
+            pcm = participants.getOrCreate(userId)
         }
         pcm.audioVolume = volume.toFloat()
     }
 
     fun setAllRemoteAudioVolume(volume: Int) {
         remoteAudioAllVolume = volume
-        for (pcm in pcManagers) {
+        for (pcm in participants.all) {
             pcm.audioVolume = volume.toFloat()
-            pcm.client?.setRemoteAudioTrackVolume(volume)
+            setRemoteAudioVolume(pcm, volume)
         }
     }
 
@@ -535,41 +777,45 @@ internal class RTCManager : PeerConnectionEvents {
             }
         }
 
-    fun snapshotLocalVideo(userId: String): Boolean {
-        return snapshotVideo(userId, localRenderer)
+    fun snapshotLocalVideo(userId: String, param: WXRTCDef.WXRTCSnapshotParam): Boolean {
+        if (localRenderer == null) {
+            return false
+        }
+        return snapshotVideo(userId, localProxyVideoSink, param)
     }
 
-    fun snapshotRemoteVideo(userId: String): Boolean {
-        val pcm = getPeerConnectionManagerByUserId(userId)
-        if (pcm?.videoSink == null || pcm.videoSink!!.target == null || pcm.client == null) {
+    fun snapshotRemoteVideo(userId: String, param: WXRTCDef.WXRTCSnapshotParam): Boolean {
+        val pcm = participants.get(userId)
+        val videoSink = pcm?.videoSink
+        if (videoSink?.target == null || (pcm.client == null && !pcm.subscribed)) {
             return false
         }
-        return snapshotVideo(userId, pcm.videoSink!!.target as SurfaceViewRenderer?)
+        return snapshotVideo(userId, videoSink, param)
     }
 
-    private fun snapshotVideo(userId: String, renderer: SurfaceViewRenderer?): Boolean {
-        if (renderer == null) {
-            return false
+    private fun snapshotVideo(
+        userId: String, videoSink: ProxyVideoSink, param: WXRTCDef.WXRTCSnapshotParam
+    ): Boolean {
+        val engine = snapshotEngine ?: SnapshotEngine(eglBase.eglBaseContext).also {
+            snapshotEngine = it
         }
-        renderer.addFrameListener(object : EglRenderer.FrameListener {
-            override fun onFrame(bitmap: Bitmap) {
-                renderer.post(Runnable {
-                    renderer.removeFrameListener(this)
-
-                    CoroutineScope(Dispatchers.IO).launch {
-                        flowOf(bitmap).map {
-                            saveImage(it)
-                        }.map {
-                            Luban.with(mContext).ignoreBy(100).get(it)
-                        }.collect() {
-                            withContext(Dispatchers.Main) {
-                                mRTCListener?.onSnapshot(userId, it)
-                            }
-                        }
+        val file = if (param.saveToFile) {
+            // One file per user, overwritten by the next snapshot.
+            File(mContext.applicationContext.cacheDir, "snapshot" + File.separator + userId + ".jpg")
+        } else null
+        videoSink.requestFrame { frame ->
+            engine.capture(frame, param.maxSize, param.quality.coerceIn(1, 100), file) { result, data ->
+                CoroutineScope(Dispatchers.Main).launch {
+                    if (result != null) {
+                        mRTCListener?.onSnapshot(userId, result)
+                    } else if (data != null) {
+                        mRTCListener?.onSnapshotData(userId, data)
+                    } else {
+                        mRTCListener?.onSnapshotFailed(userId)
                     }
-                })
+                }
             }
-        }, 1f)
+        }
         return true
     }
 
@@ -581,33 +827,25 @@ internal class RTCManager : PeerConnectionEvents {
 
         publishPCClient = null
 
+        snapshotEngine?.release()
+        snapshotEngine = null
+        localFrameTap?.release()
+        localFrameTap = null
+        renderPolicy = null
         eglBase.release()
-    }
-
-    private fun saveImage(bitmap: Bitmap): String {
-        val filePath = mContext!!.applicationContext.externalCacheDir!!.parentFile.absolutePath + File.separator + "shot.jpg"
-
-        val stream = ByteArrayOutputStream()
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, stream)
-
-        try {
-            val fos = FileOutputStream(filePath)
-            fos.write(stream.toByteArray())
-            fos.flush()
-            fos.close()
-        } catch (e: IOException) {
-            e.printStackTrace()
+        if (::mContext.isInitialized) {
+            mContext.applicationContext.unregisterComponentCallbacks(trimMemoryCallbacks)
         }
-
-        return filePath
+        I420BufferPool.getDefault().trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
     }
 
     private fun startPull(userId: String, streamUrl: String): PeerConnectionClient {
         return PeerConnectionClient(
-            mContext!!.applicationContext,
+            mContext.applicationContext,
             eglBase, userId, streamUrl, false,
             this
         ).apply {
+            this.retryMetrics = this@RTCManager.retryMetrics
             val options = PeerConnectionFactory.Options()
 
             options.networkIgnoreMask = 0
@@ -615,6 +853,7 @@ internal class RTCManager : PeerConnectionEvents {
 //        options.disableNetworkMonitor = true;
 //            this.setLocalVideoTrackEnabled(false)
 //            this.setLocalAudioTrackEnabled(false)
+            this.setStatsInterval(statsIntervalMs)
             this.createPeerConnectionFactory(options)
         }
     }
@@ -637,9 +876,13 @@ internal class RTCManager : PeerConnectionEvents {
     }
 
     fun stopPull(userId: String) {
-        getPeerConnectionManagerByUserId(userId)?.let { pcm ->
+        participants.get(userId)?.let { pcm ->
             pcm.needReconnect = false
-            pcm.videoSink?.release()
+            participants.releaseVideo(pcm)
+            if (pcm.subscribed) {
+                subscribePCClient?.removeSubscription(userId)
+                pcm.subscribed = false
+            }
             pcm.client?.let { client ->
                 stopPull(client)
                 pcm.client = null
@@ -655,16 +898,26 @@ internal class RTCManager : PeerConnectionEvents {
     private fun stopAllPull() {
         stopAllRemoteVideo()
 
-        for (pcm in pcManagers) {
-            pcm.videoSink?.release()
+        for (pcm in participants.all) {
+            participants.releaseVideo(pcm)
             pcm.needReconnect = false
             pcm.client?.let { client ->
                 client.isNeedReconnect = false
                 client.close()
                 pcm.client = null
             }
+            pcm.subscribed = false
+        }
+        participants.clear()
+        for (tap in remoteFrameTaps.values) {
+            tap.release()
+        }
+        remoteFrameTaps.clear()
+
+        subscribePCClient?.let { client ->
+            stopPull(client)
+            subscribePCClient = null
         }
-        pcManagers.clear()
     }
 
     override fun onLocalDescription(pc: PeerConnectionClient, sdp: SessionDescription) {
@@ -715,63 +968,66 @@ internal class RTCManager : PeerConnectionEvents {
     override fun onDisconnected(pc: PeerConnectionClient) {
     }
 
-    override fun onPeerConnectionClosed(pc: PeerConnectionClient) {
+    override fun onIceRestart(pc: PeerConnectionClient, attempt: Int, reason: String) {
+        Log.d(TAG, "onIceRestart publish: ${pc.isPublishClient}, attempt: $attempt, reason: $reason")
+        CoroutineScope(Dispatchers.Main).launch {
+            mRTCListener?.onIceRestart(pc.isPublishClient, attempt, reason)
+        }
     }
 
-    override fun onPeerConnectionStatsReady(
-        pc: PeerConnectionClient,
-        reports: Array<StatsReport>
+    override fun onIceRestartResult(
+        pc: PeerConnectionClient, attempt: Int, success: Boolean, elapsedMs: Long
     ) {
+        Log.d(TAG, "onIceRestartResult publish: ${pc.isPublishClient}, attempt: $attempt, success: $success, elapsed: $elapsedMs ms")
+        CoroutineScope(Dispatchers.Main).launch {
+            mRTCListener?.onIceRestartResult(pc.isPublishClient, attempt, success, elapsedMs)
+        }
     }
 
-    override fun onPeerConnectionError(pc: PeerConnectionClient, description: String) {
+    override fun onPeerConnectionClosed(pc: PeerConnectionClient) {
     }
 
-    override fun onDataChannelMessage(pc: PeerConnectionClient, message: String) {
+    override fun onPeerConnectionStatsReady(
+        pc: PeerConnectionClient,
+        qualities: List<WXRTCDef.UserQuality>
+    ) {
+        CoroutineScope(Dispatchers.Main).launch {
+            for (quality in qualities) {
+                mRTCListener?.onUserQuality(quality)
+            }
+        }
     }
 
-    fun switchPublishCamera(frontCamera: Boolean) {
-        if (useFrontCamera != frontCamera) {
-            useFrontCamera = frontCamera
-            publishPCClient?.switchCamera()
-            setLocalRenderParams(publishRenderParams)
+    override fun onPublishQualityChanged(pc: PeerConnectionClient, level: Int, param: WXRTCVideoEncParam) {
+        CoroutineScope(Dispatchers.Main).launch {
+            mRTCListener?.onPublishQualityChanged(level, param)
         }
     }
 
-    private fun getPeerConnectionManagerByUserId(userId: String): PeerConnectionManager? {
-        for (pcm in pcManagers) {
-            if (userId == pcm.userId) {
-                return pcm
-            }
+    override fun onOfferGiveUp(pc: PeerConnectionClient, attempts: Int, retryDelayMs: Long) {
+        CoroutineScope(Dispatchers.Main).launch {
+            mRTCListener?.onError(
+                WXRTCDef.WXRTC_ERR_MEDIA_SERVER_UNREACHABLE,
+                "Media server unreachable after $attempts attempts, retrying in $retryDelayMs ms"
+            )
         }
-        return null
     }
 
-    private fun getPeerConnectionManagerByStreamUrl(url: String): PeerConnectionManager? {
-        for (pcm in pcManagers) {
-            if (url == pcm.sendSdpUrl) {
-                return pcm
-            }
+    override fun onPeerConnectionError(pc: PeerConnectionClient, description: String) {
+        CoroutineScope(Dispatchers.Main).launch {
+            mRTCListener?.onError(WXRTCDef.WXRTC_ERR_PEER_CONNECTION, description)
         }
-        return null
     }
 
-    private fun getPeerConnectionManagerByVideoSink(videoSink: ProxyVideoSink): PeerConnectionManager? {
-        for (pcm in pcManagers) {
-            if (videoSink == pcm.videoSink) {
-                return pcm
-            }
-        }
-        return null
+    override fun onDataChannelMessage(pc: PeerConnectionClient, message: String) {
     }
 
-    private fun getPeerConnectionManagerByPc(pc: PeerConnectionClient?): PeerConnectionManager? {
-        for (pcm in pcManagers) {
-            if (pc == pcm.client) {
-                return pcm
-            }
+    fun switchPublishCamera(frontCamera: Boolean) {
+        if (useFrontCamera != frontCamera) {
+            useFrontCamera = frontCamera
+            publishPCClient?.switchCamera()
+            setLocalRenderParams(publishRenderParams)
         }
-        return null
     }
 
     companion object {
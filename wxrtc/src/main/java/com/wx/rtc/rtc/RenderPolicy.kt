@@ -0,0 +1,164 @@
+package com.wx.rtc.rtc
+
+import android.graphics.Rect
+import android.os.Handler
+import android.os.Looper
+import android.view.View
+import android.view.ViewTreeObserver
+import com.wx.rtc.WXRTCDef
+import org.webrtc.SurfaceViewRenderer
+
+/**
+ * Caps the render frame rate of remote video tiles by their on-screen size and visibility.
+ *
+ * Every attached renderer is re-evaluated on layout and scroll changes of its view tree. A
+ * tile that is small or mostly covered renders at [WXRTCDef.WXRTCRenderPolicyParam.reducedFps],
+ * a tile that is not visible at all is paused. When a tile stays hidden for
+ * [WXRTCDef.WXRTCRenderPolicyParam.hiddenStopVideoMs], |onHiddenChanged| is told to stop the
+ * video of that user, and told again once the tile shows up. Must be used on the main thread.
+ */
+internal class RenderPolicy(
+    private val param: WXRTCDef.WXRTCRenderPolicyParam,
+    private val onHiddenChanged: (userId: String, hidden: Boolean) -> Unit
+) {
+    private inner class Tile(val userId: String, val renderer: SurfaceViewRenderer) :
+        ViewTreeObserver.OnGlobalLayoutListener, ViewTreeObserver.OnScrollChangedListener,
+        View.OnAttachStateChangeListener {
+        var observer: ViewTreeObserver? = null
+        var fps = FULL_FPS
+        var hidden = false
+        val stopVideo = Runnable {
+            hidden = true
+            onHiddenChanged(userId, true)
+        }
+
+        fun start() {
+            renderer.addOnAttachStateChangeListener(this)
+            if (renderer.isAttachedToWindow) {
+                observe()
+            }
+            evaluate(this)
+        }
+
+        fun stop() {
+            renderer.removeOnAttachStateChangeListener(this)
+            unobserve()
+            handler.removeCallbacks(stopVideo)
+            applyFps(this, FULL_FPS)
+            if (hidden) {
+                hidden = false
+                onHiddenChanged(userId, false)
+            }
+        }
+
+        private fun observe() {
+            unobserve()
+            observer = renderer.viewTreeObserver.also {
+                it.addOnGlobalLayoutListener(this)
+                it.addOnScrollChangedListener(this)
+            }
+        }
+
+        private fun unobserve() {
+            observer?.takeIf { it.isAlive }?.let {
+                it.removeOnGlobalLayoutListener(this)
+                it.removeOnScrollChangedListener(this)
+            }
+            observer = null
+        }
+
+        override fun onGlobalLayout() {
+            evaluate(this)
+        }
+
+        override fun onScrollChanged() {
+            evaluate(this)
+        }
+
+        override fun onViewAttachedToWindow(v: View) {
+            observe()
+            evaluate(this)
+        }
+
+        override fun onViewDetachedFromWindow(v: View) {
+            unobserve()
+            evaluate(this)
+        }
+    }
+
+    private val tiles = HashMap<String, Tile>()
+    private val handler = Handler(Looper.getMainLooper())
+    private val visibleRect = Rect()
+
+    fun attach(userId: String, renderer: SurfaceViewRenderer) {
+        val tile = tiles[userId]
+        if (tile?.renderer === renderer) {
+            return
+        }
+        tile?.stop()
+        tiles[userId] = Tile(userId, renderer).also { it.start() }
+    }
+
+    fun detach(userId: String) {
+        tiles.remove(userId)?.stop()
+    }
+
+    /**
+     * Detaches every tile, restoring full rate rendering and the stopped videos.
+     */
+    fun release() {
+        val all = ArrayList(tiles.values)
+        tiles.clear()
+        for (tile in all) {
+            tile.stop()
+        }
+    }
+
+    private fun evaluate(tile: Tile) {
+        val view = tile.renderer
+        val area = view.width.toLong() * view.height
+        val visibleArea = if (area > 0 && view.isAttachedToWindow && view.isShown &&
+            view.getGlobalVisibleRect(visibleRect)
+        ) {
+            visibleRect.width().toLong() * visibleRect.height()
+        } else {
+            0L
+        }
+        val fps = when {
+            visibleArea == 0L -> 0f
+            minOf(view.width, view.height) < param.smallTileSize -> param.reducedFps
+            visibleArea < area * param.minVisibleRatio -> param.reducedFps
+            else -> FULL_FPS
+        }
+        val wasPaused = tile.fps == 0f
+        applyFps(tile, fps)
+
+        if (fps == 0f) {
+            if (!wasPaused && param.hiddenStopVideoMs > 0) {
+                handler.postDelayed(tile.stopVideo, param.hiddenStopVideoMs)
+            }
+            return
+        }
+        handler.removeCallbacks(tile.stopVideo)
+        if (tile.hidden) {
+            tile.hidden = false
+            onHiddenChanged(tile.userId, false)
+        }
+    }
+
+    private fun applyFps(tile: Tile, fps: Float) {
+        if (tile.fps == fps) {
+            return
+        }
+        tile.fps = fps
+        when {
+            fps == FULL_FPS -> tile.renderer.disableFpsReduction()
+            fps <= 0f -> tile.renderer.pauseVideo()
+            else -> tile.renderer.setFpsReduction(fps)
+        }
+    }
+
+    companion object {
+        private const val FULL_FPS = Float.POSITIVE_INFINITY
+    }
+}
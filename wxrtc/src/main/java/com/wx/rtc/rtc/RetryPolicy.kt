@@ -0,0 +1,92 @@
+package com.wx.rtc.rtc
+
+import android.os.SystemClock
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.min
+import kotlin.math.pow
+import kotlin.random.Random
+
+/**
+ * Exponential backoff with jitter, bounded by a maximum attempt count and a deadline.
+ *
+ * Each retried operation starts its own [Session]; the jitter spreads retries of many
+ * devices so they do not hit the media server in lockstep after an outage. Operations that
+ * must not fail for good restart their session after [cooldownMs] once it is exhausted.
+ */
+internal class RetryPolicy(
+    val initialDelayMs: Long = 500L,
+    val maxDelayMs: Long = 8000L,
+    val multiplier: Double = 2.0,
+    val jitter: Double = 0.3,
+    val maxAttempts: Int = 8,
+    val deadlineMs: Long = 60_000L,
+    val cooldownMs: Long = 30_000L,
+    private val clock: () -> Long = { SystemClock.elapsedRealtime() }
+) {
+    fun newSession(): Session {
+        return Session()
+    }
+
+    /**
+     * Returns the backoff before retry number |retry| (starting at 0), without jitter.
+     */
+    fun backoffMs(retry: Int): Long {
+        val backoff = initialDelayMs * multiplier.pow(retry.toDouble())
+        return min(backoff, maxDelayMs.toDouble()).toLong()
+    }
+
+    inner class Session {
+        private var startTimeMs = clock()
+
+        /**
+         * Number of attempts made so far, including the first one.
+         */
+        var attempts: Int = 1
+            private set
+
+        /**
+         * Returns the delay before the next attempt, or null when the attempt count or the
+         * deadline is exhausted.
+         */
+        fun nextDelayMs(): Long? {
+            if (attempts >= maxAttempts) {
+                return null
+            }
+            val backoff = backoffMs(attempts - 1)
+            val delayMs = (backoff * (1.0 + jitter * (2.0 * Random.nextDouble() - 1.0))).toLong()
+            if (clock() - startTimeMs + delayMs > deadlineMs) {
+                return null
+            }
+            attempts++
+            return delayMs
+        }
+
+        /**
+         * Starts the session over once [nextDelayMs] returned null: the attempt count and the
+         * deadline are reset and measured from the end of the cool-down. Returns the delay
+         * before the next attempt, i.e. [cooldownMs].
+         */
+        fun restartAfterCooldown(): Long {
+            attempts = 1
+            startTimeMs = clock() + cooldownMs
+            return cooldownMs
+        }
+    }
+}
+
+/**
+ * Counters of the http requests a [PeerConnectionClient] made to the media server.
+ */
+internal class RetryMetrics {
+    val offerAttempts = AtomicInteger()
+    val offerRetries = AtomicInteger()
+    val offerGiveUps = AtomicInteger()
+    val unpublishAttempts = AtomicInteger()
+    val unpublishRetries = AtomicInteger()
+    val unpublishGiveUps = AtomicInteger()
+
+    override fun toString(): String {
+        return "offer(attempts=$offerAttempts, retries=$offerRetries, giveUps=$offerGiveUps), " +
+                "unpublish(attempts=$unpublishAttempts, retries=$unpublishRetries, giveUps=$unpublishGiveUps)"
+    }
+}
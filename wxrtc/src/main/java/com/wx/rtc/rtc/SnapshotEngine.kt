@@ -0,0 +1,189 @@
+package com.wx.rtc.rtc
+
+import android.graphics.Bitmap
+import android.graphics.Matrix
+import android.opengl.GLES20
+import android.os.Handler
+import android.os.HandlerThread
+import android.util.Log
+import org.webrtc.EglBase
+import org.webrtc.GlRectDrawer
+import org.webrtc.GlTextureFrameBuffer
+import org.webrtc.GlUtil
+import org.webrtc.VideoFrame
+import org.webrtc.VideoFrameDrawer
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+/**
+ * Turns single [VideoFrame]s into JPEG snapshots.
+ *
+ * The frame is drawn straight into an offscreen framebuffer of the requested size, so
+ * scaling happens on the GPU and only the scaled pixels are read back. The pixels are
+ * compressed once at the requested quality, directly into the target file or byte array.
+ * The read buffer and bitmap are reused across snapshots of the same size. Everything runs
+ * on a dedicated thread with its own EGL context shared with |sharedContext|.
+ */
+internal class SnapshotEngine(private val sharedContext: EglBase.Context) {
+    private val thread = HandlerThread(TAG).apply { start() }
+    private val handler = Handler(thread.looper)
+
+    private var eglBase: EglBase? = null
+    private var frameBuffer: GlTextureFrameBuffer? = null
+    private var drawer: GlRectDrawer? = null
+    private val frameDrawer = VideoFrameDrawer()
+    private val drawMatrix = Matrix().apply {
+        // glReadPixels returns rows bottom-up, draw upside down to get a Bitmap-ordered image.
+        preTranslate(0.5f, 0.5f)
+        preScale(1f, -1f)
+        preTranslate(-0.5f, -0.5f)
+    }
+    private var pixels: ByteBuffer? = null
+    private var bitmap: Bitmap? = null
+    private val jpegBuffer = ByteArrayOutputStream(INITIAL_JPEG_CAPACITY)
+
+    /**
+     * Encodes |frame| scaled so its longer side is at most |maxSize| (0 keeps the frame
+     * size). Writes to |file| when it is set and returns the bytes otherwise. Takes over the
+     * reference the caller holds on |frame|. |callback| runs on the engine thread and gets
+     * nulls on failure.
+     */
+    fun capture(
+        frame: VideoFrame, maxSize: Int, quality: Int, file: File?,
+        callback: (File?, ByteArray?) -> Unit
+    ) {
+        val posted = handler.post {
+            try {
+                val image = draw(frame, maxSize)
+                if (image == null) {
+                    callback(null, null)
+                } else if (file != null) {
+                    callback(if (compress(image, quality, file)) file else null, null)
+                } else {
+                    jpegBuffer.reset()
+                    image.compress(Bitmap.CompressFormat.JPEG, quality, jpegBuffer)
+                    callback(null, jpegBuffer.toByteArray())
+                }
+            } catch (e: RuntimeException) {
+                Log.e(TAG, "Snapshot failed", e)
+                callback(null, null)
+            } finally {
+                frame.release()
+            }
+        }
+        if (!posted) {
+            frame.release()
+            callback(null, null)
+        }
+    }
+
+    fun release() {
+        handler.post {
+            frameDrawer.release()
+            drawer?.release()
+            drawer = null
+            frameBuffer?.release()
+            frameBuffer = null
+            eglBase?.release()
+            eglBase = null
+            bitmap?.recycle()
+            bitmap = null
+            pixels = null
+            thread.quitSafely()
+        }
+    }
+
+    private fun draw(frame: VideoFrame, maxSize: Int): Bitmap? {
+        val frameWidth = frame.rotatedWidth
+        val frameHeight = frame.rotatedHeight
+        val longSide = maxOf(frameWidth, frameHeight)
+        if (longSide <= 0) {
+            return null
+        }
+        val scale = if (maxSize in 1 until longSide) maxSize.toFloat() / longSide else 1f
+        val width = maxOf(1, (frameWidth * scale).toInt())
+        val height = maxOf(1, (frameHeight * scale).toInt())
+
+        if (eglBase == null) {
+            eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PIXEL_BUFFER).apply {
+                createDummyPbufferSurface()
+                makeCurrent()
+            }
+            frameBuffer = GlTextureFrameBuffer(GLES20.GL_RGBA)
+            drawer = GlRectDrawer()
+        }
+        val frameBuffer = frameBuffer!!
+        frameBuffer.setSize(width, height)
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.frameBufferId)
+        GLES20.glClearColor(0f, 0f, 0f, 0f)
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT)
+        frameDrawer.drawFrame(frame, drawer!!, drawMatrix, 0, 0, width, height)
+
+        val byteCount = width * height * 4
+        var pixels = pixels
+        if (pixels == null || pixels.capacity() < byteCount) {
+            pixels = ByteBuffer.allocateDirect(byteCount)
+            this.pixels = pixels
+        }
+        pixels!!.clear()
+        GLES20.glViewport(0, 0, width, height)
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+        GlUtil.checkNoGLES2Error("SnapshotEngine.draw")
+
+        var bitmap = bitmap
+        if (bitmap == null || bitmap.width != width || bitmap.height != height) {
+            bitmap?.recycle()
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+            this.bitmap = bitmap
+        }
+        pixels.rewind()
+        pixels.limit(byteCount)
+        bitmap!!.copyPixelsFromBuffer(pixels)
+        return bitmap
+    }
+
+    /**
+     * Writes to a temporary file renamed over |file| once complete, so a previous snapshot
+     * at the same path that is still being read is never seen half written.
+     */
+    private fun compress(image: Bitmap, quality: Int, file: File): Boolean {
+        val tmpFile = File(file.path + ".tmp")
+        var out: OutputStream? = null
+        var written = false
+        try {
+            file.parentFile?.mkdirs()
+            out = BufferedOutputStream(FileOutputStream(tmpFile), FILE_BUFFER_SIZE)
+            written = image.compress(Bitmap.CompressFormat.JPEG, quality, out)
+        } catch (e: IOException) {
+            Log.e(TAG, "Can not write snapshot $file", e)
+        } finally {
+            try {
+                out?.close()
+            } catch (e: IOException) {
+                Log.e(TAG, "Can not close snapshot $file", e)
+                written = false
+            }
+        }
+        if (written && !tmpFile.renameTo(file)) {
+            Log.e(TAG, "Can not rename snapshot to $file")
+            written = false
+        }
+        if (!written) {
+            tmpFile.delete()
+        }
+        return written
+    }
+
+    companion object {
+        private const val TAG = "SnapshotEngine"
+        private const val INITIAL_JPEG_CAPACITY = 128 * 1024
+        private const val FILE_BUFFER_SIZE = 64 * 1024
+    }
+}
@@ -0,0 +1,270 @@
+package com.wx.rtc.rtc
+
+import com.wx.rtc.WXRTCDef
+import org.webrtc.RTCStatsReport
+
+/**
+ * Turns the [RTCStatsReport]s of one peer connection into per-user quality snapshots.
+ *
+ * Cumulative counters are kept per RTP stream in reusable [StreamStats] entries, and rates
+ * are computed from the delta against the previous report. Entries of streams missing from
+ * a report are dropped. Not thread-safe, use it from the client's executor.
+ */
+internal class StatsCollector(private val isPublish: Boolean) {
+    private class StreamStats {
+        var generation = 0
+        var userId: String? = null
+        var isVideo = false
+        var hasDelta = false
+        var timestampUs = 0.0
+        var bytes = 0L
+        var packets = 0L
+        var packetsLost = 0L
+        var frames = 0L
+        var encodeTime = 0.0
+
+        var bitrateKbps = 0
+        var frameRate = 0
+        var frameWidth = 0
+        var frameHeight = 0
+        var packetLoss = 0
+        var jitterMs = 0
+        var rttMs = 0
+        var freezeCount = 0
+        var encodeMs = 0.0
+        var qualityLimitationReason: String? = null
+    }
+
+    private class UserStats {
+        var generation = 0
+        val quality = WXRTCDef.UserQuality()
+    }
+
+    private val streams = HashMap<String, StreamStats>()
+    private val users = LinkedHashMap<String, UserStats>()
+    private var generation = 0
+
+    // Publish side totals of the last report, read by the quality controller.
+    var availableOutgoingBitrate = 0
+        private set
+    var encodeTimeMs = 0.0
+        private set
+    var qualityLimitationReason: String? = null
+        private set
+
+    /**
+     * Folds |report| in and returns a snapshot for each user with a complete interval.
+     * |userIdOf| maps the `mid` of a stream to its user, or null to ignore the stream.
+     */
+    fun update(report: RTCStatsReport, userIdOf: (String?) -> String?): List<WXRTCDef.UserQuality> {
+        generation++
+        val statsMap = report.statsMap
+        var transportRttMs = 0
+        availableOutgoingBitrate = 0
+        encodeTimeMs = 0.0
+        qualityLimitationReason = null
+
+        for (stats in statsMap.values) {
+            val members = stats.members
+            when (stats.type) {
+                "inbound-rtp" -> {
+                    if (!isPublish) {
+                        val stream = stream(stats.id, userIdOf(members["mid"] as? String), members)
+                            ?: continue
+                        val lost = members.long("packetsLost")
+                        val received = members.long("packetsReceived")
+                        val dLost = delta(lost, stream.packetsLost)
+                        val dReceived = delta(received, stream.packets)
+                        stream.packetLoss = if (dLost + dReceived > 0) {
+                            (dLost * 100 / (dLost + dReceived)).toInt()
+                        } else 0
+                        stream.packetsLost = lost
+                        stream.packets = received
+                        update(stream, stats.timestampUs, members, members.long("bytesReceived"),
+                            members.long("framesDecoded"))
+                        stream.jitterMs = (members.double("jitter") * 1000).toInt()
+                        stream.freezeCount = members.long("freezeCount").toInt()
+                    }
+                }
+                "outbound-rtp" -> {
+                    if (isPublish) {
+                        val stream = stream(stats.id, userIdOf(members["mid"] as? String), members)
+                            ?: continue
+                        stream.packets = members.long("packetsSent")
+                        val framesEncoded = members.long("framesEncoded")
+                        val encodeTime = members.double("totalEncodeTime")
+                        val dFrames = delta(framesEncoded, stream.frames)
+                        stream.encodeMs = if (stream.timestampUs > 0 && dFrames > 0) {
+                            maxOf(0.0, encodeTime - stream.encodeTime) * 1000 / dFrames
+                        } else 0.0
+                        stream.encodeTime = encodeTime
+                        update(stream, stats.timestampUs, members, members.long("bytesSent"), framesEncoded)
+                        stream.qualityLimitationReason = members["qualityLimitationReason"] as? String
+                    }
+                }
+                "remote-inbound-rtp" -> {
+                    // The receiver's view of one of our outbound streams.
+                    if (isPublish) {
+                        val localId = members["localId"] as? String ?: continue
+                        val outbound = statsMap[localId] ?: continue
+                        val stream = stream(localId, userIdOf(outbound.members["mid"] as? String),
+                            outbound.members) ?: continue
+                        stream.packetLoss = (members.double("fractionLost") * 100).toInt()
+                        stream.jitterMs = (members.double("jitter") * 1000).toInt()
+                        stream.rttMs = (members.double("roundTripTime") * 1000).toInt()
+                    }
+                }
+                "candidate-pair" -> {
+                    if (members["nominated"] == true && members["state"] == "succeeded") {
+                        transportRttMs = (members.double("currentRoundTripTime") * 1000).toInt()
+                        availableOutgoingBitrate = (members.double("availableOutgoingBitrate") / 1000).toInt()
+                    }
+                }
+            }
+        }
+
+        for (stream in streams.values) {
+            if (stream.generation != generation || !stream.hasDelta) {
+                continue
+            }
+            val userId = stream.userId ?: continue
+            var user = users[userId]
+            if (user == null) {
+                user = UserStats()
+                users[userId] = user
+            }
+            val quality = user.quality
+            if (user.generation != generation) {
+                user.generation = generation
+                reset(quality, userId)
+                quality.rtt = transportRttMs
+            }
+            if (stream.isVideo) {
+                quality.videoBitrate += stream.bitrateKbps
+                if (stream.frameWidth * stream.frameHeight >= quality.frameWidth * quality.frameHeight) {
+                    quality.frameWidth = stream.frameWidth
+                    quality.frameHeight = stream.frameHeight
+                    quality.frameRate = stream.frameRate
+                }
+                quality.freezeCount += stream.freezeCount
+                stream.qualityLimitationReason?.let {
+                    if (quality.qualityLimitationReason == null || quality.qualityLimitationReason == "none") {
+                        quality.qualityLimitationReason = it
+                    }
+                    if (qualityLimitationReason == null || qualityLimitationReason == "none") {
+                        qualityLimitationReason = it
+                    }
+                }
+                encodeTimeMs = maxOf(encodeTimeMs, stream.encodeMs)
+            } else {
+                quality.audioBitrate += stream.bitrateKbps
+            }
+            quality.packetLoss = maxOf(quality.packetLoss, stream.packetLoss)
+            quality.jitter = maxOf(quality.jitter, stream.jitterMs)
+            quality.rtt = maxOf(quality.rtt, stream.rttMs)
+        }
+
+        streams.values.removeAll { it.generation != generation }
+
+        var result: MutableList<WXRTCDef.UserQuality>? = null
+        val iterator = users.values.iterator()
+        while (iterator.hasNext()) {
+            val user = iterator.next()
+            if (user.generation != generation) {
+                iterator.remove()
+                continue
+            }
+            if (result == null) {
+                result = ArrayList(users.size)
+            }
+            // The accumulator is reused, hand out a copy.
+            result.add(copy(user.quality))
+        }
+        return result ?: emptyList()
+    }
+
+    fun clear() {
+        streams.clear()
+        users.clear()
+        availableOutgoingBitrate = 0
+        encodeTimeMs = 0.0
+        qualityLimitationReason = null
+    }
+
+    private fun stream(id: String, userId: String?, members: Map<String, Any>): StreamStats? {
+        if (userId == null) {
+            return null
+        }
+        var stream = streams[id]
+        if (stream == null) {
+            stream = StreamStats()
+            stream.isVideo = members["kind"] == "video"
+            streams[id] = stream
+        }
+        stream.userId = userId
+        stream.generation = generation
+        return stream
+    }
+
+    private fun update(stream: StreamStats, timestampUs: Double, members: Map<String, Any>,
+                       bytes: Long, frames: Long) {
+        val elapsedUs = timestampUs - stream.timestampUs
+        if (stream.timestampUs > 0 && elapsedUs > 0) {
+            stream.bitrateKbps = (delta(bytes, stream.bytes) * 8 * 1000 / elapsedUs).toInt()
+            stream.frameRate = Math.round(delta(frames, stream.frames) * 1_000_000 / elapsedUs).toInt()
+            stream.hasDelta = true
+        }
+        stream.frameWidth = members.long("frameWidth").toInt()
+        stream.frameHeight = members.long("frameHeight").toInt()
+        stream.timestampUs = timestampUs
+        stream.bytes = bytes
+        stream.frames = frames
+    }
+
+    private fun delta(value: Long, previous: Long): Long {
+        // Counters restart when a stream is recreated under the same id.
+        return if (value >= previous) value - previous else value
+    }
+
+    private fun reset(quality: WXRTCDef.UserQuality, userId: String) {
+        quality.userId = userId
+        quality.isLocal = isPublish
+        quality.videoBitrate = 0
+        quality.audioBitrate = 0
+        quality.frameRate = 0
+        quality.frameWidth = 0
+        quality.frameHeight = 0
+        quality.packetLoss = 0
+        quality.jitter = 0
+        quality.rtt = 0
+        quality.freezeCount = 0
+        quality.qualityLimitationReason = null
+    }
+
+    private fun copy(quality: WXRTCDef.UserQuality): WXRTCDef.UserQuality {
+        return WXRTCDef.UserQuality().also {
+            it.userId = quality.userId
+            it.isLocal = quality.isLocal
+            it.videoBitrate = quality.videoBitrate
+            it.audioBitrate = quality.audioBitrate
+            it.frameRate = quality.frameRate
+            it.frameWidth = quality.frameWidth
+            it.frameHeight = quality.frameHeight
+            it.packetLoss = quality.packetLoss
+            it.jitter = quality.jitter
+            it.rtt = quality.rtt
+            it.freezeCount = quality.freezeCount
+            it.qualityLimitationReason = quality.qualityLimitationReason
+        }
+    }
+
+    companion object {
+        private fun Map<String, Any>.long(name: String): Long {
+            return (this[name] as? Number)?.toLong() ?: 0L
+        }
+
+        private fun Map<String, Any>.double(name: String): Double {
+            return (this[name] as? Number)?.toDouble() ?: 0.0
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.wx.rtc.rtc
+
+import android.graphics.Color
+import android.graphics.Matrix
+import android.graphics.RectF
+import android.opengl.GLES20
+import android.util.Log
+import android.view.Surface
+import com.wx.rtc.WXRTCDef
+import org.webrtc.EglBase
+import org.webrtc.EglThread
+import org.webrtc.GlRectDrawer
+import org.webrtc.GlTextureFrameBuffer
+import org.webrtc.RenderSynchronizer
+import org.webrtc.ThreadUtils
+import org.webrtc.VideoFrame
+import org.webrtc.VideoFrameDrawer
+import org.webrtc.VideoSink
+import java.util.concurrent.CountDownLatch
+
+/**
+ * Draws several video streams into one surface on one render thread.
+ *
+ * Every tile of the layout has its own [TileSink]. An incoming frame is drawn right away into a
+ * tile-sized texture and released, so no decoder buffer is held between frames; the surface is
+ * then composed from the tile textures and swapped once per open window of the
+ * [RenderSynchronizer], however many tiles changed in between.
+ */
+internal class VideoCompositor {
+    inner class TileSink(val index: Int) : VideoSink {
+        // Guarded by |lock|.
+        var pendingFrame: VideoFrame? = null
+        var framesReceived = 0L
+        var framesDropped = 0L
+        var framesRendered = 0L
+        var renderTimeNs = 0L
+        var frameWidth = 0
+        var frameHeight = 0
+
+        var cleared = false
+
+        // Render thread only.
+        var frameBuffer: GlTextureFrameBuffer? = null
+        var hasContent = false
+
+        override fun onFrame(frame: VideoFrame) {
+            synchronized(lock) {
+                if (eglThread == null) {
+                    return
+                }
+                framesReceived++
+                pendingFrame?.let {
+                    it.release()
+                    framesDropped++
+                }
+                frame.retain()
+                pendingFrame = frame
+            }
+            scheduleRender()
+        }
+
+        /**
+         * Drops the current picture of the tile, e.g. when its user stops video.
+         */
+        fun clear() {
+            synchronized(lock) {
+                pendingFrame?.release()
+                pendingFrame = null
+                cleared = true
+            }
+            scheduleRender()
+        }
+    }
+
+    private val lock = Any()
+    private var eglThread: EglThread? = null
+    private var renderPosted = false
+    private val tiles = ArrayList<TileSink>()
+    private var layout = WXRTCDef.WXRTCCompositeLayout.grid(1, 1)
+    private var swapsPending = false
+
+    // Render thread only.
+    private var eglBase: EglBase? = null
+    private var drawer: GlRectDrawer? = null
+    private val frameDrawer = VideoFrameDrawer()
+    private val drawMatrix = Matrix()
+    private val tileRect = RectF()
+    private val identityMatrix = FloatArray(16).also { android.opengl.Matrix.setIdentityM(it, 0) }
+
+    private val renderRunnable = Runnable { renderOnRenderThread() }
+
+    fun init(sharedContext: EglBase.Context, targetFps: Float) {
+        synchronized(lock) {
+            if (eglThread != null) {
+                return
+            }
+            val synchronizer = RenderSynchronizer(targetFps)
+            eglThread = EglThread.create(null, sharedContext, EglBase.CONFIG_PLAIN, synchronizer).also {
+                eglBase = it.createEglBaseWithSharedConnection()
+            }
+        }
+    }
+
+    /**
+     * Returns the sink of tile |index| of the layout. The same sink is returned for an index
+     * until the compositor is released.
+     */
+    fun tileSink(index: Int): TileSink {
+        synchronized(lock) {
+            while (tiles.size <= index) {
+                tiles.add(TileSink(tiles.size))
+            }
+            return tiles[index]
+        }
+    }
+
+    fun setLayout(layout: WXRTCDef.WXRTCCompositeLayout) {
+        synchronized(lock) {
+            this.layout = layout
+        }
+        scheduleRender()
+    }
+
+    fun createSurface(surface: Surface) {
+        post {
+            val eglBase = eglBase ?: return@post
+            if (!eglBase.hasSurface()) {
+                eglBase.createSurface(surface)
+                eglBase.makeCurrent()
+                // Necessary for YUV frames with odd width.
+                GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1)
+                drawer = GlRectDrawer()
+            }
+            renderOnRenderThread()
+        }
+    }
+
+    /**
+     * Composes again for the new surface size, the tile textures are resized with their next
+     * frames.
+     */
+    fun surfaceChanged() {
+        scheduleRender()
+    }
+
+    /**
+     * Releases the EGL surface and waits until it is done, as the surface is gone once the
+     * caller returns.
+     */
+    fun releaseSurface() {
+        val latch = CountDownLatch(1)
+        if (!post {
+                releaseGl()
+                eglBase?.releaseSurface()
+                eglBase?.detachCurrent()
+                latch.countDown()
+            }) {
+            return
+        }
+        ThreadUtils.awaitUninterruptibly(latch)
+    }
+
+    fun release() {
+        val thread = synchronized(lock) {
+            val thread = eglThread ?: return
+            eglThread = null
+            for (tile in tiles) {
+                tile.pendingFrame?.release()
+                tile.pendingFrame = null
+            }
+            thread
+        }
+        val latch = CountDownLatch(1)
+        thread.handler.postAtFrontOfQueue {
+            releaseGl()
+            eglBase?.release()
+            eglBase = null
+            latch.countDown()
+        }
+        thread.release()
+        ThreadUtils.awaitUninterruptibly(latch)
+    }
+
+    fun getTileStats(): List<WXRTCDef.CompositeTileStats> {
+        synchronized(lock) {
+            return tiles.map { tile ->
+                WXRTCDef.CompositeTileStats().apply {
+                    index = tile.index
+                    frameWidth = tile.frameWidth
+                    frameHeight = tile.frameHeight
+                    framesReceived = tile.framesReceived
+                    framesDropped = tile.framesDropped
+                    framesRendered = tile.framesRendered
+                    averageRenderTimeUs =
+                        if (tile.framesRendered > 0) tile.renderTimeNs / tile.framesRendered / 1000 else 0
+                }
+            }
+        }
+    }
+
+    private fun post(runnable: Runnable): Boolean {
+        synchronized(lock) {
+            return eglThread?.handler?.post(runnable) ?: false
+        }
+    }
+
+    private fun scheduleRender() {
+        synchronized(lock) {
+            if (renderPosted) {
+                return
+            }
+            renderPosted = eglThread?.handler?.post(renderRunnable) ?: false
+        }
+    }
+
+    private fun renderOnRenderThread() {
+        val layout: WXRTCDef.WXRTCCompositeLayout
+        val tiles: List<TileSink>
+        val frames: Array<VideoFrame?>
+        val eglThread: EglThread
+        synchronized(lock) {
+            renderPosted = false
+            eglThread = this.eglThread ?: return
+            layout = this.layout
+            tiles = ArrayList(this.tiles)
+            frames = arrayOfNulls(tiles.size)
+            for (i in tiles.indices) {
+                val tile = tiles[i]
+                frames[i] = tile.pendingFrame
+                tile.pendingFrame = null
+                if (tile.cleared) {
+                    tile.cleared = false
+                    tile.hasContent = false
+                }
+            }
+        }
+        val eglBase = eglBase
+        if (eglBase == null || !eglBase.hasSurface() || drawer == null) {
+            for (frame in frames) {
+                frame?.release()
+            }
+            return
+        }
+        eglBase.makeCurrent()
+        val surfaceWidth = eglBase.surfaceWidth()
+        val surfaceHeight = eglBase.surfaceHeight()
+        for (i in frames.indices) {
+            val tile = tiles[i]
+            val frame = frames[i] ?: continue
+            try {
+                if (!tileBounds(layout, i, surfaceWidth, surfaceHeight)) {
+                    continue
+                }
+                val startNs = System.nanoTime()
+                drawTile(tile, frame, layout, tileRect.width().toInt(), tileRect.height().toInt())
+                synchronized(lock) {
+                    tile.framesRendered++
+                    tile.renderTimeNs += System.nanoTime() - startNs
+                    tile.frameWidth = frame.rotatedWidth
+                    tile.frameHeight = frame.rotatedHeight
+                }
+            } finally {
+                frame.release()
+            }
+        }
+        if (swapsPending) {
+            return
+        }
+        swapsPending = true
+        eglThread.scheduleRenderUpdate { runsInline ->
+            swapsPending = false
+            if (!runsInline) {
+                if (!eglBase.hasSurface()) {
+                    return@scheduleRenderUpdate
+                }
+                eglBase.makeCurrent()
+            }
+            composeAndSwap(eglBase)
+        }
+    }
+
+    private fun drawTile(
+        tile: TileSink, frame: VideoFrame, layout: WXRTCDef.WXRTCCompositeLayout, width: Int, height: Int
+    ) {
+        val frameBuffer = tile.frameBuffer ?: GlTextureFrameBuffer(GLES20.GL_RGBA).also {
+            tile.frameBuffer = it
+        }
+        frameBuffer.setSize(width, height)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.frameBufferId)
+        GLES20.glViewport(0, 0, width, height)
+        clearColor(layout.backgroundColor)
+
+        val frameAspect = frame.rotatedWidth / frame.rotatedHeight.toFloat()
+        val tileAspect = width / height.toFloat()
+        drawMatrix.reset()
+        if (layout.fillMode == WXRTCDef.WXRTC_VIDEO_RENDER_MODE_FIT) {
+            val drawWidth: Int
+            val drawHeight: Int
+            if (frameAspect > tileAspect) {
+                drawWidth = width
+                drawHeight = Math.round(width / frameAspect)
+            } else {
+                drawWidth = Math.round(height * frameAspect)
+                drawHeight = height
+            }
+            frameDrawer.drawFrame(
+                frame, drawer!!, drawMatrix, (width - drawWidth) / 2, (height - drawHeight) / 2,
+                drawWidth, drawHeight
+            )
+        } else {
+            // Crop the frame to the tile aspect ratio.
+            drawMatrix.preTranslate(0.5f, 0.5f)
+            if (frameAspect > tileAspect) {
+                drawMatrix.preScale(tileAspect / frameAspect, 1f)
+            } else {
+                drawMatrix.preScale(1f, frameAspect / tileAspect)
+            }
+            drawMatrix.preTranslate(-0.5f, -0.5f)
+            frameDrawer.drawFrame(frame, drawer!!, drawMatrix, 0, 0, width, height)
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+        tile.hasContent = true
+    }
+
+    private fun composeAndSwap(eglBase: EglBase) {
+        val layout: WXRTCDef.WXRTCCompositeLayout
+        val tiles: List<TileSink>
+        synchronized(lock) {
+            layout = this.layout
+            tiles = ArrayList(this.tiles)
+        }
+        val surfaceWidth = eglBase.surfaceWidth()
+        val surfaceHeight = eglBase.surfaceHeight()
+        GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight)
+        clearColor(layout.backgroundColor)
+        for (i in tiles.indices) {
+            val tile = tiles[i]
+            val frameBuffer = tile.frameBuffer
+            if (!tile.hasContent || frameBuffer == null || !tileBounds(layout, i, surfaceWidth, surfaceHeight)) {
+                continue
+            }
+            val width = tileRect.width().toInt()
+            val height = tileRect.height().toInt()
+            // GL viewports start at the bottom left.
+            drawer!!.drawRgb(
+                frameBuffer.textureId, identityMatrix, frameBuffer.width, frameBuffer.height,
+                tileRect.left.toInt(), surfaceHeight - tileRect.top.toInt() - height, width, height
+            )
+        }
+        eglBase.swapBuffers()
+    }
+
+    private fun clearColor(color: Int) {
+        GLES20.glClearColor(
+            Color.red(color) / 255f, Color.green(color) / 255f, Color.blue(color) / 255f,
+            Color.alpha(color) / 255f
+        )
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT)
+    }
+
+    /**
+     * Sets |tileRect| to the pixel bounds of tile |index|. Returns false if the layout has no
+     * such tile or it is empty.
+     */
+    private fun tileBounds(layout: WXRTCDef.WXRTCCompositeLayout, index: Int, width: Int, height: Int): Boolean {
+        val bounds = layout.tiles.getOrNull(index) ?: return false
+        tileRect.set(
+            Math.round(bounds.left * width).toFloat(), Math.round(bounds.top * height).toFloat(),
+            Math.round(bounds.right * width).toFloat(), Math.round(bounds.bottom * height).toFloat()
+        )
+        return tileRect.width() >= 1f && tileRect.height() >= 1f
+    }
+
+    private fun releaseGl() {
+        val tiles = synchronized(lock) { ArrayList(this.tiles) }
+        for (tile in tiles) {
+            tile.frameBuffer?.release()
+            tile.frameBuffer = null
+            tile.hasContent = false
+        }
+        frameDrawer.release()
+        drawer?.release()
+        drawer = null
+        swapsPending = false
+        Log.d(TAG, "GL resources released")
+    }
+
+    companion object {
+        private const val TAG = "VideoCompositor"
+    }
+}
@@ -0,0 +1,15 @@
+package com.wx.rtc.socket
+
+import com.wx.rtc.bean.RecvCommandMessage
+
+/**
+ * Decodes inbound signaling frames.
+ */
+internal interface SignalDecoder {
+    /**
+     * Decodes one text frame of the signaling web socket.
+     *
+     * @throws Exception if |text| is not a valid signaling message.
+     */
+    fun decode(text: String): RecvCommandMessage
+}
@@ -0,0 +1,21 @@
+package com.wx.rtc.socket
+
+import com.wx.rtc.bean.SendCommand
+import com.wx.rtc.utils.JsonWriter
+
+/**
+ * Serializes outbound [SendCommand]s, reusing one writer buffer for every message.
+ */
+internal class SignalEncoder {
+    private val writer = JsonWriter()
+
+    @Synchronized
+    fun encode(command: SendCommand): String {
+        writer.reset()
+            .beginObject()
+            .name("signal").value(command.signal)
+        command.writeFields(writer)
+        writer.endObject()
+        return writer.toString()
+    }
+}
@@ -0,0 +1,119 @@
+package com.wx.rtc.socket
+
+import com.wx.rtc.WXRTCDef
+import com.wx.rtc.bean.RecvCommandMessage
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.yield
+
+/**
+ * Delivers decoded signaling messages to |handler| on the main thread.
+ *
+ * One long-lived coroutine drains the queue in batches of at most [MAX_BATCH] messages and
+ * yields to the looper between batches, so a burst of messages can not starve rendering.
+ * When [conflateResults] is set, a queued process result is replaced by a newer result of
+ * the same `rst` type, so only the latest one is delivered when the main thread falls behind.
+ */
+internal class SignalEventDispatcher(private val handler: (RecvCommandMessage) -> Unit) {
+    private class Event(@JvmField var message: RecvCommandMessage)
+
+    private val lock = Any()
+    private val queue = ArrayDeque<Event>()
+    private val pendingResults = HashMap<Int, Event>()
+    private val wakeUp = Channel<Unit>(Channel.CONFLATED)
+    private var job: Job? = null
+    private var maxQueueDepth = 0
+    private var dispatchedCount = 0L
+    private var conflatedCount = 0L
+
+    @Volatile
+    var conflateResults: Boolean = true
+
+    fun start() {
+        if (job?.isActive == true) {
+            return
+        }
+        job = CoroutineScope(Dispatchers.Main).launch {
+            for (signal in wakeUp) {
+                drain()
+            }
+        }
+    }
+
+    fun stop() {
+        job?.cancel()
+        job = null
+        synchronized(lock) {
+            queue.clear()
+            pendingResults.clear()
+        }
+    }
+
+    fun post(message: RecvCommandMessage) {
+        synchronized(lock) {
+            val rst = message.result?.rst
+            if (conflateResults && rst != null && message.code == 1 && message.signal.isNullOrEmpty()) {
+                val pending = pendingResults[rst]
+                if (pending != null) {
+                    pending.message = message
+                    conflatedCount++
+                    return
+                }
+                val event = Event(message)
+                pendingResults[rst] = event
+                queue.addLast(event)
+            } else {
+                queue.addLast(Event(message))
+            }
+            if (queue.size > maxQueueDepth) {
+                maxQueueDepth = queue.size
+            }
+        }
+        wakeUp.trySend(Unit)
+    }
+
+    fun getStats(): WXRTCDef.SignalEventStats {
+        synchronized(lock) {
+            return WXRTCDef.SignalEventStats().apply {
+                queueDepth = queue.size
+                maxQueueDepth = this@SignalEventDispatcher.maxQueueDepth
+                dispatchedCount = this@SignalEventDispatcher.dispatchedCount
+                conflatedCount = this@SignalEventDispatcher.conflatedCount
+            }
+        }
+    }
+
+    private suspend fun drain() {
+        val batch = ArrayList<RecvCommandMessage>(MAX_BATCH)
+        while (true) {
+            synchronized(lock) {
+                while (batch.size < MAX_BATCH && queue.isNotEmpty()) {
+                    val event = queue.removeFirst()
+                    event.message.result?.rst?.let { rst ->
+                        if (pendingResults[rst] === event) {
+                            pendingResults.remove(rst)
+                        }
+                    }
+                    batch.add(event.message)
+                }
+                dispatchedCount += batch.size
+            }
+            if (batch.isEmpty()) {
+                return
+            }
+            for (message in batch) {
+                handler(message)
+            }
+            batch.clear()
+            // Let the looper draw a frame before the next batch.
+            yield()
+        }
+    }
+
+    companion object {
+        private const val MAX_BATCH = 16
+    }
+}
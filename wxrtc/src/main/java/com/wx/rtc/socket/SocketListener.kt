@@ -7,7 +7,7 @@ internal interface SocketListener {
     fun onSocketOpen()
     fun onLogin()
     fun onLogout(reason: Int)
-    fun onEnterRoom(publishUrl: String)
+    fun onEnterRoom(publishUrl: String, subscribeUrl: String?)
     fun onExitRoom(reason: Int)
     fun onGetUnpublishUrl(unpublishUrl: String)
     fun onRemoteUserEnterRoom(pullUrl: String, userId: String)
@@ -0,0 +1,179 @@
+package com.wx.rtc.socket
+
+import com.wx.rtc.WXRTCDef
+import com.wx.rtc.bean.CallMsg
+import com.wx.rtc.bean.P2PMsg
+import com.wx.rtc.bean.RecvCommandMessage
+import com.wx.rtc.bean.RoomMsg
+import com.wx.rtc.bean.SignalCommand
+import com.wx.rtc.utils.JsonTokenReader
+
+/**
+ * [SignalDecoder] reading frames token by token without building a JSON tree.
+ *
+ * Fields are decoded through name tables. Once the `signal` of a frame is known, only the
+ * fields that signal is dispatched with are materialized and the rest are skipped.
+ */
+internal class StreamingSignalDecoder : SignalDecoder {
+    override fun decode(text: String): RecvCommandMessage {
+        val reader = JsonTokenReader(text)
+        val message = RecvCommandMessage()
+        var fields = ALL_FIELDS
+        reader.beginObject()
+        while (reader.hasNext()) {
+            val index = reader.selectName(MESSAGE_FIELDS.names)
+            if (index < 0 || fields and (1 shl index) == 0) {
+                reader.skipValue()
+                continue
+            }
+            MESSAGE_FIELDS.read(index, reader, message)
+            if (index == SIGNAL_FIELD) {
+                fields = COMMON_FIELDS or (SIGNAL_FIELDS[message.signal] ?: 0)
+            }
+        }
+        reader.endObject()
+        return message
+    }
+
+    /**
+     * Table of the fields of a JSON object decoded into |T|.
+     */
+    private class FieldTable<T>(vararg fields: Pair<String, (JsonTokenReader, T) -> Unit>) {
+        val names: Array<String> = Array(fields.size) { fields[it].first }
+        private val readers = Array(fields.size) { fields[it].second }
+
+        fun read(index: Int, reader: JsonTokenReader, target: T) {
+            readers[index](reader, target)
+        }
+
+        fun readObject(reader: JsonTokenReader, target: T): T? {
+            if (reader.nextNull()) {
+                return null
+            }
+            reader.beginObject()
+            while (reader.hasNext()) {
+                val index = reader.selectName(names)
+                if (index < 0) {
+                    reader.skipValue()
+                } else {
+                    readers[index](reader, target)
+                }
+            }
+            reader.endObject()
+            return target
+        }
+
+        fun indexOf(name: String): Int {
+            return names.indexOf(name)
+        }
+    }
+
+    companion object {
+        private val EYE_MARK_FIELDS = FieldTable<WXRTCDef.EyeMark>(
+            "normal" to { r, m -> m.normal = r.nextInt() ?: 0 },
+            "femtosecond" to { r, m -> m.femtosecond = r.nextInt() ?: 0 },
+            "astigmatism" to { r, m -> m.astigmatism = r.nextInt() ?: 0 },
+        )
+
+        private val PROCESS_DATA_FIELDS = FieldTable<WXRTCDef.ProcessData>(
+            "rst" to { r, d -> d.rst = r.nextInt() },
+            "need_focus" to { r, d -> d.need_focus = r.nextInt() },
+            "focus_point" to { r, d -> d.focus_point = readFloatList(r) },
+            "drop_speed" to { r, d -> d.drop_speed = r.nextString() },
+            "scale" to { r, d -> d.scale = r.nextString() },
+            "need_magnify" to { r, d -> d.need_magnify = r.nextInt() },
+            "barcodeDate" to { r, d -> d.barcodeDate = r.nextString() },
+            "high_pressure" to { r, d -> d.high_pressure = r.nextString() },
+            "low_pressure" to { r, d -> d.low_pressure = r.nextString() },
+            "pulse" to { r, d -> d.pulse = r.nextString() },
+            "has_csf" to { r, d -> d.has_csf = r.nextInt() },
+            "right_eye" to { r, d -> d.right_eye = EYE_MARK_FIELDS.readObject(r, WXRTCDef.EyeMark()) },
+            "left_eye" to { r, d -> d.left_eye = EYE_MARK_FIELDS.readObject(r, WXRTCDef.EyeMark()) },
+            "pid" to { r, d -> d.pid = r.nextString() },
+            "asr_result" to { r, d -> d.asr_result = r.nextString() },
+            "gesture" to { r, d -> d.gesture = r.nextInt() },
+            "oxygen_saturation" to { r, d -> d.oxygen_saturation = r.nextString() },
+            "weight_scale" to { r, d -> d.weight_scale = r.nextString() },
+            "respiratory_rate" to { r, d -> d.respiratory_rate = r.nextString() },
+            "capture_image_url" to { r, d -> d.capture_image_url = r.nextString() },
+            "blood_sugar" to { r, d -> d.blood_sugar = r.nextString() },
+            "bed_number" to { r, d -> d.bed_number = r.nextString() },
+        )
+
+        private val P2P_MSG_FIELDS = FieldTable<P2PMsg>(
+            "from" to { r, m -> m.from = r.nextString() },
+            "to" to { r, m -> m.to = r.nextString() },
+            "message" to { r, m -> m.message = r.nextString() },
+        )
+
+        private val ROOM_MSG_FIELDS = FieldTable<RoomMsg>(
+            "cmd" to { r, m -> m.cmd = r.nextString() },
+            "message" to { r, m -> m.message = r.nextString() },
+        )
+
+        private val CALL_MSG_FIELDS = FieldTable<CallMsg>(
+            "cmd" to { r, m -> m.cmd = r.nextString() },
+            "user_id" to { r, m -> m.userId = r.nextString() },
+            "room_id" to { r, m -> m.roomId = r.nextString() },
+        )
+
+        private val MESSAGE_FIELDS = FieldTable<RecvCommandMessage>(
+            "code" to { r, m -> m.code = r.nextInt() ?: 0 },
+            "message" to { r, m -> m.message = r.nextString() },
+            "signal" to { r, m -> m.signal = r.nextString() },
+            "publish_url" to { r, m -> m.publishUrl = r.nextString() },
+            "unpublish_url" to { r, m -> m.unpublishUrl = r.nextString() },
+            "subscribe_url" to { r, m -> m.subscribeUrl = r.nextString() },
+            "user_id" to { r, m -> m.userId = r.nextString() },
+            "pull_url" to { r, m -> m.pullUrl = r.nextString() },
+            "available" to { r, m -> m.available = r.nextBoolean() },
+            "record_file_name" to { r, m -> m.recordFileName = r.nextString() },
+            "p2p_msg" to { r, m -> m.p2pMsg = P2P_MSG_FIELDS.readObject(r, P2PMsg()) },
+            "room_msg" to { r, m -> m.roomMsg = ROOM_MSG_FIELDS.readObject(r, RoomMsg()) },
+            "call_msg" to { r, m -> m.callMsg = CALL_MSG_FIELDS.readObject(r, CallMsg()) },
+            "result" to { r, m -> m.result = PROCESS_DATA_FIELDS.readObject(r, WXRTCDef.ProcessData()) },
+        )
+
+        private val SIGNAL_FIELD = MESSAGE_FIELDS.indexOf("signal")
+        private val ALL_FIELDS = (1 shl MESSAGE_FIELDS.names.size) - 1
+
+        // Fields decoded for every signal; results are delivered whatever the signal is.
+        private val COMMON_FIELDS = fieldMask("code", "message", "signal", "result")
+
+        // Fields each signal is dispatched with, see SocketManager.
+        private val SIGNAL_FIELDS: Map<String?, Int> = mapOf(
+            SignalCommand.ENTER_ROOM_BACK to fieldMask("publish_url", "subscribe_url"),
+            SignalCommand.GET_UNPUBLISH to fieldMask("unpublish_url"),
+            SignalCommand.REMOTE_ENTER_ROOM to fieldMask("pull_url", "user_id"),
+            SignalCommand.REMOTE_EXIT_ROOM to fieldMask("user_id"),
+            SignalCommand.VIDEO_AVAILABLE to fieldMask("user_id", "available"),
+            SignalCommand.AUDIO_AVAILABLE to fieldMask("user_id", "available"),
+            SignalCommand.START_RECORD_BACK to fieldMask("record_file_name"),
+            SignalCommand.END_RECORD_BACK to fieldMask("record_file_name"),
+            SignalCommand.P2P_MSG_REV to fieldMask("p2p_msg"),
+            SignalCommand.ROOM_MSG_REV to fieldMask("user_id", "room_msg"),
+            SignalCommand.CALL_MSG_REV to fieldMask("call_msg"),
+        )
+
+        private fun fieldMask(vararg names: String): Int {
+            var mask = 0
+            for (name in names) {
+                mask = mask or (1 shl MESSAGE_FIELDS.indexOf(name))
+            }
+            return mask
+        }
+
+        private fun readFloatList(reader: JsonTokenReader): List<Float>? {
+            if (reader.nextNull()) {
+                return null
+            }
+            val points = ArrayList<Float>()
+            reader.beginArray()
+            while (reader.hasNext()) {
+                points.add(reader.nextDouble()?.toFloat() ?: 0f)
+            }
+            reader.endArray()
+            return points
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.wx.rtc.utils
+
+import okhttp3.ConnectionPool
+import okhttp3.Dispatcher
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import java.util.concurrent.TimeUnit
+
+/**
+ * SDK-wide http clients.
+ *
+ * All clients are derived from one base client, so they share a single dispatcher thread
+ * pool, connection pool and TLS session cache. SDP exchanges and unpublish requests to the
+ * same media server reuse warm (keep-alive, HTTP/2 where available) connections.
+ */
+internal object HttpUtils {
+    private const val MAX_IDLE_CONNECTIONS = 5
+    private const val KEEP_ALIVE_MINUTES = 5L
+
+    private val baseClient: OkHttpClient by lazy {
+        OkHttpClient.Builder()
+            .dispatcher(Dispatcher().apply {
+                maxRequestsPerHost = 16
+            })
+            .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .retryOnConnectionFailure(true)
+            .build()
+    }
+
+    /**
+     * Client for WHIP/WHEP SDP offers, trickle candidates and unpublish requests.
+     */
+    @JvmStatic
+    val sdpClient: OkHttpClient by lazy {
+        baseClient.newBuilder()
+            .connectTimeout(5, TimeUnit.SECONDS)
+            .readTimeout(10, TimeUnit.SECONDS)
+            .writeTimeout(10, TimeUnit.SECONDS)
+            .callTimeout(15, TimeUnit.SECONDS)
+            .build()
+    }
+
+    /**
+     * Client for the signaling web socket.
+     */
+    @JvmStatic
+    val socketClient: OkHttpClient by lazy {
+        baseClient.newBuilder()
+            .pingInterval(30, TimeUnit.SECONDS) //心跳
+            .readTimeout(20, TimeUnit.SECONDS) //设置读取超时时间
+            .writeTimeout(20, TimeUnit.SECONDS) //设置写入超时时间
+            .connectTimeout(10, TimeUnit.SECONDS)
+            .build()
+    }
+}
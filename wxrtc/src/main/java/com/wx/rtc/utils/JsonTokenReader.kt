@@ -0,0 +1,312 @@
+package com.wx.rtc.utils
+
+/**
+ * Pull parser reading JSON tokens in place from a string.
+ *
+ * Only the values a caller asks for are materialized; names are matched against a table
+ * without allocating, everything else is skipped. Scalars are coerced like
+ * [org.json.JSONObject] does: numbers can be read as strings and quoted numbers as numbers.
+ * The reader is lenient about separators and does not validate the whole document.
+ */
+internal class JsonTokenReader(private val json: String) {
+    private var pos = 0
+
+    fun beginObject() {
+        expect('{')
+    }
+
+    fun endObject() {
+        expect('}')
+    }
+
+    fun beginArray() {
+        expect('[')
+    }
+
+    fun endArray() {
+        expect(']')
+    }
+
+    /**
+     * Returns true if the current object or array has another member, consuming the comma
+     * in front of it.
+     */
+    fun hasNext(): Boolean {
+        var c = peek()
+        if (c == ',') {
+            pos++
+            c = peek()
+        }
+        return c != '}' && c != ']'
+    }
+
+    /**
+     * Returns the next token character without consuming it.
+     */
+    fun peek(): Char {
+        while (pos < json.length) {
+            val c = json[pos]
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c
+            }
+            pos++
+        }
+        throw syntaxError("Unexpected end of input")
+    }
+
+    fun nextName(): String {
+        val name = readString()
+        expect(':')
+        return name
+    }
+
+    /**
+     * Consumes the next name and returns its index in |names|, or -1 if it is not listed.
+     */
+    fun selectName(names: Array<String>): Int {
+        expect('"')
+        val start = pos
+        var end = start
+        while (end < json.length && json[end] != '"' && json[end] != '\\') {
+            end++
+        }
+        val index: Int
+        if (end < json.length && json[end] == '"') {
+            val length = end - start
+            index = names.indexOfFirst {
+                it.length == length && json.regionMatches(start, it, 0, length)
+            }
+            pos = end + 1
+        } else {
+            // Escaped name, decode it before matching.
+            pos = start - 1
+            index = names.indexOf(readString())
+        }
+        expect(':')
+        return index
+    }
+
+    /**
+     * Returns the next string, the text of the next number or boolean, or null for a null.
+     */
+    fun nextString(): String? {
+        return when (peek()) {
+            '"' -> readString()
+            'n' -> {
+                expectLiteral("null")
+                null
+            }
+            else -> {
+                val end = literalEnd()
+                json.substring(pos, end).also { pos = end }
+            }
+        }
+    }
+
+    fun nextInt(): Int? {
+        return when (peek()) {
+            '"' -> readString().toDouble().toInt()
+            'n' -> {
+                expectLiteral("null")
+                null
+            }
+            else -> readIntLiteral()
+        }
+    }
+
+    fun nextDouble(): Double? {
+        return when (peek()) {
+            '"' -> readString().toDouble()
+            'n' -> {
+                expectLiteral("null")
+                null
+            }
+            else -> {
+                val end = literalEnd()
+                json.substring(pos, end).toDouble().also { pos = end }
+            }
+        }
+    }
+
+    fun nextBoolean(): Boolean? {
+        return when (peek()) {
+            't' -> {
+                expectLiteral("true")
+                true
+            }
+            'f' -> {
+                expectLiteral("false")
+                false
+            }
+            'n' -> {
+                expectLiteral("null")
+                null
+            }
+            '"' -> when (readString()) {
+                "true" -> true
+                "false" -> false
+                else -> throw syntaxError("Expected a boolean")
+            }
+            else -> throw syntaxError("Expected a boolean")
+        }
+    }
+
+    /**
+     * Returns true and consumes the value if the next value is a null.
+     */
+    fun nextNull(): Boolean {
+        if (peek() != 'n') {
+            return false
+        }
+        expectLiteral("null")
+        return true
+    }
+
+    /**
+     * Skips the next value, including nested objects and arrays.
+     */
+    fun skipValue() {
+        when (peek()) {
+            '"' -> skipString()
+            '{', '[' -> {
+                var depth = 0
+                do {
+                    when (json[pos]) {
+                        '"' -> {
+                            skipString()
+                            continue
+                        }
+                        '{', '[' -> depth++
+                        '}', ']' -> depth--
+                    }
+                    pos++
+                } while (depth > 0 && pos < json.length)
+                if (depth > 0) {
+                    throw syntaxError("Unterminated value")
+                }
+            }
+            else -> pos = literalEnd()
+        }
+    }
+
+    private fun readIntLiteral(): Int {
+        val end = literalEnd()
+        var i = pos
+        val negative = json[i] == '-'
+        if (negative) {
+            i++
+        }
+        var value = 0L
+        while (i < end) {
+            val c = json[i]
+            if (c !in '0'..'9' || value > Int.MAX_VALUE) {
+                // Fraction, exponent or overflow.
+                return json.substring(pos, end).toDouble().toInt().also { pos = end }
+            }
+            value = value * 10 + (c - '0')
+            i++
+        }
+        if (i == pos || (negative && i == pos + 1)) {
+            throw syntaxError("Expected a number")
+        }
+        if (value > Int.MAX_VALUE) {
+            return json.substring(pos, end).toDouble().toInt().also { pos = end }
+        }
+        pos = end
+        return (if (negative) -value else value).toInt()
+    }
+
+    private fun readString(): String {
+        expect('"')
+        val start = pos
+        while (pos < json.length) {
+            val c = json[pos]
+            if (c == '"') {
+                return json.substring(start, pos++)
+            }
+            if (c == '\\') {
+                return readEscapedString(start)
+            }
+            pos++
+        }
+        throw syntaxError("Unterminated string")
+    }
+
+    private fun readEscapedString(start: Int): String {
+        val sb = StringBuilder(pos - start + 16)
+        sb.append(json, start, pos)
+        while (pos < json.length) {
+            val c = json[pos++]
+            if (c == '"') {
+                return sb.toString()
+            }
+            if (c != '\\') {
+                sb.append(c)
+                continue
+            }
+            if (pos >= json.length) {
+                break
+            }
+            when (val escaped = json[pos++]) {
+                'b' -> sb.append('\b')
+                'f' -> sb.append('\u000C')
+                'n' -> sb.append('\n')
+                'r' -> sb.append('\r')
+                't' -> sb.append('\t')
+                'u' -> {
+                    if (pos + 4 > json.length) {
+                        break
+                    }
+                    sb.append(json.substring(pos, pos + 4).toInt(16).toChar())
+                    pos += 4
+                }
+                else -> sb.append(escaped)
+            }
+        }
+        throw syntaxError("Unterminated string")
+    }
+
+    private fun skipString() {
+        pos++
+        while (pos < json.length) {
+            when (json[pos++]) {
+                '"' -> return
+                '\\' -> pos++
+            }
+        }
+        throw syntaxError("Unterminated string")
+    }
+
+    private fun literalEnd(): Int {
+        var end = pos
+        while (end < json.length) {
+            val c = json[end]
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                break
+            }
+            end++
+        }
+        if (end == pos) {
+            throw syntaxError("Expected a value")
+        }
+        return end
+    }
+
+    private fun expectLiteral(literal: String) {
+        if (!json.startsWith(literal, pos)) {
+            throw syntaxError("Expected $literal")
+        }
+        pos += literal.length
+    }
+
+    private fun expect(c: Char) {
+        if (peek() != c) {
+            throw syntaxError("Expected '$c'")
+        }
+        pos++
+    }
+
+    private fun syntaxError(message: String): IllegalStateException {
+        return IllegalStateException("$message at $pos")
+    }
+}
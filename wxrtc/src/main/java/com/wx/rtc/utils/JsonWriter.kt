@@ -0,0 +1,151 @@
+package com.wx.rtc.utils
+
+/**
+ * Reusable JSON writer appending to a single [StringBuilder].
+ *
+ * Strings are escaped as they are appended, so user content such as chat messages can not
+ * break the frame. Call [reset] to reuse the writer and its buffer for the next document.
+ */
+internal class JsonWriter(capacity: Int = 256) {
+    private val sb = StringBuilder(capacity)
+
+    // Whether the current object or array (per nesting level) already has a member.
+    private var hasMember = BooleanArray(8)
+    private var depth = 0
+    private var afterName = false
+
+    fun reset(): JsonWriter {
+        sb.setLength(0)
+        depth = 0
+        afterName = false
+        return this
+    }
+
+    fun beginObject(): JsonWriter {
+        return open('{')
+    }
+
+    fun endObject(): JsonWriter {
+        return close('}')
+    }
+
+    fun beginArray(): JsonWriter {
+        return open('[')
+    }
+
+    fun endArray(): JsonWriter {
+        return close(']')
+    }
+
+    fun name(name: String): JsonWriter {
+        separate()
+        writeString(name)
+        sb.append(':')
+        afterName = true
+        return this
+    }
+
+    fun value(value: String?): JsonWriter {
+        if (value == null) {
+            return nullValue()
+        }
+        separate()
+        writeString(value)
+        return this
+    }
+
+    fun value(value: Boolean): JsonWriter {
+        separate()
+        sb.append(value)
+        return this
+    }
+
+    fun value(value: Long): JsonWriter {
+        separate()
+        sb.append(value)
+        return this
+    }
+
+    fun nullValue(): JsonWriter {
+        separate()
+        sb.append("null")
+        return this
+    }
+
+    /**
+     * Writes |name| and |value|, or nothing if |value| is null.
+     */
+    fun optField(name: String, value: String?): JsonWriter {
+        return if (value == null) this else name(name).value(value)
+    }
+
+    override fun toString(): String {
+        return sb.toString()
+    }
+
+    private fun open(c: Char): JsonWriter {
+        separate()
+        sb.append(c)
+        if (++depth == hasMember.size) {
+            hasMember = hasMember.copyOf(depth * 2)
+        }
+        hasMember[depth] = false
+        return this
+    }
+
+    private fun close(c: Char): JsonWriter {
+        check(depth > 0) { "Nesting problem" }
+        depth--
+        sb.append(c)
+        return this
+    }
+
+    private fun separate() {
+        if (afterName) {
+            afterName = false
+            return
+        }
+        if (depth > 0) {
+            if (hasMember[depth]) {
+                sb.append(',')
+            }
+            hasMember[depth] = true
+        }
+    }
+
+    private fun writeString(value: String) {
+        sb.append('"')
+        var start = 0
+        for (i in value.indices) {
+            val c = value[i]
+            val replacement = when {
+                c == '"' -> "\\\""
+                c == '\\' -> "\\\\"
+                c == '\n' -> "\\n"
+                c == '\r' -> "\\r"
+                c == '\t' -> "\\t"
+                c == '\b' -> "\\b"
+                c == '\u000C' -> "\\f"
+                c < ' ' || c == '\u2028' || c == '\u2029' -> null
+                else -> continue
+            }
+            sb.append(value, start, i)
+            if (replacement != null) {
+                sb.append(replacement)
+            } else {
+                sb.append("\\u")
+                val code = c.code
+                for (shift in 12 downTo 0 step 4) {
+                    sb.append(HEX_DIGITS[(code shr shift) and 0xF])
+                }
+            }
+            start = i + 1
+        }
+        sb.append(value, start, value.length)
+        sb.append('"')
+    }
+
+    companion object {
+        private val HEX_DIGITS = "0123456789abcdef".toCharArray()
+    }
+}
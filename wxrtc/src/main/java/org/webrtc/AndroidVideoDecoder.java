@@ -18,8 +18,6 @@ import android.view.Surface;
 import androidx.annotation.Nullable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import org.webrtc.ThreadUtils.ThreadChecker;
 
@@ -47,17 +45,11 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
   private final String codecName;
   private final VideoCodecMimeType codecType;
 
-  private static class FrameInfo {
-    final long decodeStartTimeMs;
-    final int rotation;
+  // Decode start time and rotation of the frames queued in the codec. Far more than a codec holds
+  // in flight.
+  private static final int MAX_QUEUED_FRAME_INFOS = 64;
 
-    FrameInfo(long decodeStartTimeMs, int rotation) {
-      this.decodeStartTimeMs = decodeStartTimeMs;
-      this.rotation = rotation;
-    }
-  }
-
-  private final BlockingDeque<FrameInfo> frameInfos;
+  private final FrameInfoQueue frameInfos;
   private int colorFormat;
 
   // Output thread runs a loop which polls MediaCodec for decoded output buffers.  It reformats
@@ -130,7 +122,7 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     this.codecType = codecType;
     this.colorFormat = colorFormat;
     this.sharedContext = sharedContext;
-    this.frameInfos = new LinkedBlockingDeque<>();
+    this.frameInfos = new FrameInfoQueue(MAX_QUEUED_FRAME_INFOS);
   }
 
   @Override
@@ -265,13 +257,13 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
     }
     buffer.put(frame.buffer);
 
-    frameInfos.offer(new FrameInfo(SystemClock.elapsedRealtime(), frame.rotation));
+    frameInfos.offer(SystemClock.elapsedRealtime(), frame.rotation, 0 /* width */, 0 /* height */);
     try {
       codec.queueInputBuffer(index, 0 /* offset */, size,
           TimeUnit.NANOSECONDS.toMicros(frame.captureTimeNs), 0 /* flags */);
     } catch (IllegalStateException e) {
       Logging.e(TAG, "queueInputBuffer failed", e);
-      frameInfos.pollLast();
+      frameInfos.removeLast();
       return VideoCodecStatus.ERROR;
     }
     if (keyFrameRequired) {
@@ -377,12 +369,11 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
         return;
       }
 
-      FrameInfo frameInfo = frameInfos.poll();
       Integer decodeTimeMs = null;
       int rotation = 0;
-      if (frameInfo != null) {
-        decodeTimeMs = (int) (SystemClock.elapsedRealtime() - frameInfo.decodeStartTimeMs);
-        rotation = frameInfo.rotation;
+      if (frameInfos.poll()) {
+        decodeTimeMs = (int) (SystemClock.elapsedRealtime() - frameInfos.getPolledTimestamp());
+        rotation = frameInfos.getPolledRotation();
       }
 
       hasDecodedFirstFrame = true;
@@ -662,7 +653,7 @@ class AndroidVideoDecoder implements VideoDecoder, VideoSink {
 
   // Visible for testing.
   protected VideoFrame.I420Buffer allocateI420Buffer(int width, int height) {
-    return JavaI420Buffer.allocate(width, height);
+    return I420BufferPool.getDefault().allocate(width, height);
   }
 
   // Visible for testing.
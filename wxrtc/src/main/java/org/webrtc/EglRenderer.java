@@ -37,6 +37,12 @@ public class EglRenderer implements VideoSink {
 
   public interface FrameListener { void onFrame(Bitmap frame); }
 
+  /**
+   * Receives the RGBA pixels of rendered frames, one frame or more after they were drawn. The
+   * PixelFrame must be released, it is borrowed from a small pool.
+   */
+  public interface PixelFrameListener { void onPixelFrame(PixelFrame frame); }
+
   /** Callback for clients to be notified about errors encountered during rendering. */
   public static interface ErrorCallback {
     /** Called if GLES20.GL_OUT_OF_MEMORY is encountered during rendering. */
@@ -58,6 +64,21 @@ public class EglRenderer implements VideoSink {
     }
   }
 
+  private static class PixelFrameListenerAndParams {
+    public final PixelFrameListener listener;
+    public final float scale;
+    public final boolean applyFpsReduction;
+    public final GlPixelReader reader;
+
+    public PixelFrameListenerAndParams(
+        PixelFrameListener listener, float scale, boolean applyFpsReduction) {
+      this.listener = listener;
+      this.scale = scale;
+      this.applyFpsReduction = applyFpsReduction;
+      this.reader = new GlPixelReader(listener);
+    }
+  }
+
   private class EglSurfaceCreation implements Runnable {
     private Object surface;
 
@@ -102,6 +123,7 @@ public class EglRenderer implements VideoSink {
   };
 
   private final ArrayList<FrameListenerAndParams> frameListeners = new ArrayList<>();
+  private final ArrayList<PixelFrameListenerAndParams> pixelFrameListeners = new ArrayList<>();
 
   private volatile ErrorCallback errorCallback;
 
@@ -153,6 +175,8 @@ public class EglRenderer implements VideoSink {
   // Used for bitmap capturing.
   private final GlTextureFrameBuffer bitmapTextureFramebuffer =
       new GlTextureFrameBuffer(GLES20.GL_RGBA);
+  // Reused by the Bitmap frame listeners, only accessed from the render thread.
+  @Nullable private ByteBuffer bitmapBuffer;
 
   private final Runnable logStatisticsRunnable = new Runnable() {
     @Override
@@ -275,6 +299,11 @@ public class EglRenderer implements VideoSink {
         }
         frameDrawer.release();
         bitmapTextureFramebuffer.release();
+        bitmapBuffer = null;
+        for (PixelFrameListenerAndParams listenerAndParams : pixelFrameListeners) {
+          listenerAndParams.reader.release();
+        }
+        pixelFrameListeners.clear();
 
         if (eglBase != null) {
           logD("eglBase detach and release.");
@@ -475,6 +504,58 @@ public class EglRenderer implements VideoSink {
     ThreadUtils.awaitUninterruptibly(latch);
   }
 
+  /**
+   * Register a callback to be invoked with the pixels of every rendered frame until it is removed.
+   * Unlike addFrameListener() the pixels are read back asynchronously when OpenGL ES 3 is
+   * available, so the render thread does not wait for the GPU, and no Bitmap is allocated.
+   *
+   * @param listener The callback to be invoked on the render thread. It should be lightweight and
+   *                 must not call removePixelFrameListener. Frames are dropped while it holds on
+   *                 to every pooled buffer.
+   * @param scale    The scale of the pixels passed to the callback.
+   * @param applyFpsReduction This callback will not be called for frames that have been dropped by
+   *                          FPS reduction.
+   */
+  public void addPixelFrameListener(
+      final PixelFrameListener listener, final float scale, final boolean applyFpsReduction) {
+    postToRenderThread(() -> {
+      pixelFrameListeners.add(
+          new PixelFrameListenerAndParams(listener, scale, applyFpsReduction));
+    });
+  }
+
+  /**
+   * Remove a callback added with addPixelFrameListener. Reads still in flight for it are
+   * discarded. It is ensured that the callback won't be called after this method returns.
+   */
+  public void removePixelFrameListener(final PixelFrameListener listener) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    synchronized (threadLock) {
+      if (eglThread == null) {
+        return;
+      }
+      if (Thread.currentThread() == eglThread.getHandler().getLooper().getThread()) {
+        throw new RuntimeException(
+            "removePixelFrameListener must not be called on the render thread.");
+      }
+      postToRenderThread(() -> {
+        final Iterator<PixelFrameListenerAndParams> iter = pixelFrameListeners.iterator();
+        while (iter.hasNext()) {
+          final PixelFrameListenerAndParams listenerAndParams = iter.next();
+          if (listenerAndParams.listener == listener) {
+            if (eglBase != null && eglBase.hasSurface()) {
+              eglBase.makeCurrent();
+            }
+            listenerAndParams.reader.release();
+            iter.remove();
+          }
+        }
+        latch.countDown();
+      });
+    }
+    ThreadUtils.awaitUninterruptibly(latch);
+  }
+
   /** Can be set in order to be notified about errors encountered during rendering. */
   public void setErrorCallback(ErrorCallback errorCallback) {
     this.errorCallback = errorCallback;
@@ -717,7 +798,7 @@ public class EglRenderer implements VideoSink {
   }
 
   private void notifyCallbacks(VideoFrame frame, boolean wasRendered) {
-    if (frameListeners.isEmpty()) {
+    if (frameListeners.isEmpty() && pixelFrameListeners.isEmpty()) {
         return;
     }
 
@@ -754,7 +835,12 @@ public class EglRenderer implements VideoSink {
       frameDrawer.drawFrame(frame, listenerAndParams.drawer, drawMatrix, 0 /* viewportX */,
           0 /* viewportY */, scaledWidth, scaledHeight);
 
-      final ByteBuffer bitmapBuffer = ByteBuffer.allocateDirect(scaledWidth * scaledHeight * 4);
+      final int byteCount = scaledWidth * scaledHeight * 4;
+      if (bitmapBuffer == null || bitmapBuffer.capacity() < byteCount) {
+        bitmapBuffer = ByteBuffer.allocateDirect(byteCount);
+      }
+      bitmapBuffer.clear();
+      bitmapBuffer.limit(byteCount);
       GLES20.glViewport(0, 0, scaledWidth, scaledHeight);
       GLES20.glReadPixels(
           0, 0, scaledWidth, scaledHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, bitmapBuffer);
@@ -766,6 +852,30 @@ public class EglRenderer implements VideoSink {
       bitmap.copyPixelsFromBuffer(bitmapBuffer);
       listenerAndParams.listener.onFrame(bitmap);
     }
+
+    for (PixelFrameListenerAndParams listenerAndParams : pixelFrameListeners) {
+      // Hand out what the GPU finished since the last frame before queuing a new read.
+      listenerAndParams.reader.deliverReady();
+      if (!wasRendered && listenerAndParams.applyFpsReduction) {
+        continue;
+      }
+      final int scaledWidth = (int) (listenerAndParams.scale * frame.getRotatedWidth());
+      final int scaledHeight = (int) (listenerAndParams.scale * frame.getRotatedHeight());
+      if (scaledWidth == 0 || scaledHeight == 0 || !listenerAndParams.reader.canRead()) {
+        continue;
+      }
+
+      bitmapTextureFramebuffer.setSize(scaledWidth, scaledHeight);
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, bitmapTextureFramebuffer.getFrameBufferId());
+      GLES20.glClearColor(0 /* red */, 0 /* green */, 0 /* blue */, 0 /* alpha */);
+      GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+      frameDrawer.drawFrame(frame, drawer, drawMatrix, 0 /* viewportX */, 0 /* viewportY */,
+          scaledWidth, scaledHeight);
+      GLES20.glViewport(0, 0, scaledWidth, scaledHeight);
+      listenerAndParams.reader.read(scaledWidth, scaledHeight, frame.getTimestampNs());
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+      GlUtil.checkNoGLES2Error("EglRenderer.notifyCallbacks");
+    }
   }
 
   private String averageTimeAsString(long sumTimeNs, int count) {
@@ -95,7 +95,7 @@ public class FileVideoCapturer implements VideoCapturer {
     @Override
     public VideoFrame getNextFrame() {
       final long captureTimeNs = TimeUnit.MILLISECONDS.toNanos(SystemClock.elapsedRealtime());
-      final JavaI420Buffer buffer = JavaI420Buffer.allocate(frameWidth, frameHeight);
+      final JavaI420Buffer buffer = I420BufferPool.getDefault().allocate(frameWidth, frameHeight);
       final ByteBuffer dataY = buffer.getDataY();
       final ByteBuffer dataU = buffer.getDataU();
       final ByteBuffer dataV = buffer.getDataV();
@@ -0,0 +1,100 @@
+package org.webrtc;
+
+/**
+ * FIFO of per-frame metadata for frames that are inside a MediaCodec, stored in parallel
+ * primitive arrays so queueing and polling allocate nothing. Entries are indexed by sequence
+ * number modulo the capacity. When full, the oldest entry is dropped, as the codec must have
+ * lost that frame.
+ *
+ * Offer and poll may be called from different threads. The values of the last polled entry are
+ * held for the polling thread, which must be a single thread.
+ */
+class FrameInfoQueue {
+  private final int mask;
+  private final long[] timestamps;
+  private final int[] rotations;
+  private final int[] widths;
+  private final int[] heights;
+
+  // Guarded by |this|.
+  private long head;
+  private long tail;
+
+  // Polling thread only.
+  private long polledTimestamp;
+  private int polledRotation;
+  private int polledWidth;
+  private int polledHeight;
+
+  /** |capacity| is rounded up to a power of two. */
+  FrameInfoQueue(int capacity) {
+    final int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    mask = size - 1;
+    timestamps = new long[size];
+    rotations = new int[size];
+    widths = new int[size];
+    heights = new int[size];
+  }
+
+  synchronized void offer(long timestamp, int rotation, int width, int height) {
+    if (tail - head > mask) {
+      head++;
+    }
+    final int i = (int) (tail & mask);
+    timestamps[i] = timestamp;
+    rotations[i] = rotation;
+    widths[i] = width;
+    heights[i] = height;
+    tail++;
+  }
+
+  /** Removes the newest entry, for a frame the codec did not take. */
+  synchronized void removeLast() {
+    if (tail > head) {
+      tail--;
+    }
+  }
+
+  /**
+   * Removes the oldest entry and keeps its values for the getters below. Returns false if the
+   * queue is empty.
+   */
+  boolean poll() {
+    synchronized (this) {
+      if (tail == head) {
+        return false;
+      }
+      final int i = (int) (head & mask);
+      polledTimestamp = timestamps[i];
+      polledRotation = rotations[i];
+      polledWidth = widths[i];
+      polledHeight = heights[i];
+      head++;
+    }
+    return true;
+  }
+
+  synchronized int size() {
+    return (int) (tail - head);
+  }
+
+  synchronized void clear() {
+    head = tail;
+  }
+
+  long getPolledTimestamp() {
+    return polledTimestamp;
+  }
+
+  int getPolledRotation() {
+    return polledRotation;
+  }
+
+  int getPolledWidth() {
+    return polledWidth;
+  }
+
+  int getPolledHeight() {
+    return polledHeight;
+  }
+}
@@ -31,7 +31,7 @@ import org.webrtc.RendererCommon;
  * This class covers the cases for most simple shaders and generates the necessary boiler plate.
  * Advanced shaders can always implement RendererCommon.GlDrawer directly.
  */
-class GlGenericDrawer implements RendererCommon.GlDrawer {
+public class GlGenericDrawer implements RendererCommon.GlDrawer {
   /**
    * The different shader types representing different input sources. YUV here represents three
    * separate Y, U, V textures.
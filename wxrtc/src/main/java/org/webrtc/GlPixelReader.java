@@ -0,0 +1,187 @@
+package org.webrtc;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Reads RGBA pixels from the bound framebuffer without stalling the GL pipeline.
+ *
+ * On OpenGL ES 3 the pixels are read into a ring of pixel buffer objects guarded by fences, and
+ * handed out on a later call once the GPU has finished the copy. On OpenGL ES 2 it falls back to
+ * a synchronous glReadPixels(). In both cases the pixels end up in direct buffers taken from a
+ * bounded pool; when every pooled buffer is still held by the listener the frame is dropped.
+ * This class is not thread safe and must be used on the thread owning the GL context, except for
+ * releasing delivered frames, which can happen on any thread.
+ */
+class GlPixelReader {
+  private static final String TAG = "GlPixelReader";
+  private static final int RING_SIZE = 3;
+  private static final int MAX_BUFFERS = 4;
+
+  private final EglRenderer.PixelFrameListener listener;
+  private boolean initialized;
+  private boolean usePixelBuffers;
+
+  // PBO ring, only used with OpenGL ES 3.
+  private final int[] pixelBuffers = new int[RING_SIZE];
+  private final int[] pixelBufferSizes = new int[RING_SIZE];
+  private final long[] fences = new long[RING_SIZE];
+  private final int[] widths = new int[RING_SIZE];
+  private final int[] heights = new int[RING_SIZE];
+  private final long[] timestampsNs = new long[RING_SIZE];
+  private int readIndex;
+  private int pendingCount;
+
+  // Buffers handed out are returned from any thread, synchronized on `freeBuffers`.
+  private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>(MAX_BUFFERS);
+  private int allocatedBuffers;
+  private boolean released;
+
+  GlPixelReader(EglRenderer.PixelFrameListener listener) {
+    this.listener = listener;
+  }
+
+  /** Whether a read can be issued now. False while every ring slot is waiting on the GPU. */
+  boolean canRead() {
+    return pendingCount < RING_SIZE;
+  }
+
+  /**
+   * Reads `width` x `height` pixels from the bound framebuffer. With pixel buffer objects the
+   * frame is delivered by a later deliverReady() call, otherwise it is delivered right away.
+   */
+  void read(int width, int height, long timestampNs) {
+    if (!initialized) {
+      initialize();
+    }
+    final int byteCount = width * height * 4;
+    if (!usePixelBuffers) {
+      final ByteBuffer buffer = obtainBuffer(byteCount);
+      if (buffer == null) {
+        return;
+      }
+      GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+      deliver(buffer, width, height, timestampNs);
+      return;
+    }
+    if (!canRead()) {
+      return;
+    }
+    final int index = (readIndex + pendingCount) % RING_SIZE;
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[index]);
+    if (pixelBufferSizes[index] < byteCount) {
+      GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, byteCount, null, GLES30.GL_STREAM_READ);
+      pixelBufferSizes[index] = byteCount;
+    }
+    GLES30.glReadPixels(0, 0, width, height, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, 0);
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    fences[index] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    widths[index] = width;
+    heights[index] = height;
+    timestampsNs[index] = timestampNs;
+    ++pendingCount;
+    GlUtil.checkNoGLES2Error("GlPixelReader.read");
+  }
+
+  /** Delivers, oldest first, the reads the GPU has completed. Never waits on the GPU. */
+  void deliverReady() {
+    while (pendingCount > 0) {
+      final int index = readIndex;
+      final int status = GLES30.glClientWaitSync(fences[index], 0, 0);
+      if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+        return;
+      }
+      GLES30.glDeleteSync(fences[index]);
+      fences[index] = 0;
+      readIndex = (readIndex + 1) % RING_SIZE;
+      --pendingCount;
+
+      final int byteCount = widths[index] * heights[index] * 4;
+      final ByteBuffer buffer = obtainBuffer(byteCount);
+      if (buffer == null) {
+        continue;
+      }
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[index]);
+      final ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(
+          GLES30.GL_PIXEL_PACK_BUFFER, 0, byteCount, GLES30.GL_MAP_READ_BIT);
+      if (mapped != null) {
+        buffer.put(mapped);
+        buffer.flip();
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+      }
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+      GlUtil.checkNoGLES2Error("GlPixelReader.deliverReady");
+      if (mapped == null) {
+        recycleBuffer(buffer);
+        continue;
+      }
+      deliver(buffer, widths[index], heights[index], timestampsNs[index]);
+    }
+  }
+
+  /** Frees the GL objects. Frames already delivered stay valid until they are released. */
+  void release() {
+    if (usePixelBuffers) {
+      for (int i = 0; i < pendingCount; ++i) {
+        GLES30.glDeleteSync(fences[(readIndex + i) % RING_SIZE]);
+      }
+      GLES20.glDeleteBuffers(RING_SIZE, pixelBuffers, 0);
+    }
+    pendingCount = 0;
+    synchronized (freeBuffers) {
+      released = true;
+      freeBuffers.clear();
+    }
+  }
+
+  private void initialize() {
+    initialized = true;
+    final String version = GLES20.glGetString(GLES20.GL_VERSION);
+    // "OpenGL ES <major>.<minor> <vendor-specific information>"
+    usePixelBuffers = version != null && version.startsWith("OpenGL ES ")
+        && version.length() > 10 && version.charAt(10) >= '3';
+    if (usePixelBuffers) {
+      GLES20.glGenBuffers(RING_SIZE, pixelBuffers, 0);
+      GlUtil.checkNoGLES2Error("GlPixelReader.initialize");
+    }
+    Logging.d(TAG, "Reading pixels " + (usePixelBuffers ? "asynchronously" : "synchronously")
+        + ", GL version: " + version);
+  }
+
+  private void deliver(ByteBuffer buffer, int width, int height, long timestampNs) {
+    listener.onPixelFrame(
+        new PixelFrame(buffer, width, height, timestampNs, () -> recycleBuffer(buffer)));
+  }
+
+  @Nullable
+  private ByteBuffer obtainBuffer(int byteCount) {
+    synchronized (freeBuffers) {
+      ByteBuffer buffer = freeBuffers.poll();
+      while (buffer != null && buffer.capacity() < byteCount) {
+        --allocatedBuffers;
+        buffer = freeBuffers.poll();
+      }
+      if (buffer == null) {
+        if (allocatedBuffers >= MAX_BUFFERS) {
+          return null;
+        }
+        buffer = ByteBuffer.allocateDirect(byteCount);
+        ++allocatedBuffers;
+      }
+      buffer.clear();
+      buffer.limit(byteCount);
+      return buffer;
+    }
+  }
+
+  private void recycleBuffer(ByteBuffer buffer) {
+    synchronized (freeBuffers) {
+      if (!released) {
+        freeBuffers.add(buffer);
+      }
+    }
+  }
+}
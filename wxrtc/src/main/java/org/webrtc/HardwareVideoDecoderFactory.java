@@ -16,11 +16,11 @@ import java.util.Arrays;
 
 /** Factory for Android hardware VideoDecoders. */
 public class HardwareVideoDecoderFactory extends MediaCodecVideoDecoderFactory {
-  private final static Predicate<MediaCodecInfo> defaultAllowedPredicate =
-      new Predicate<MediaCodecInfo>() {
+  private final static Predicate<MediaCodecCapabilities.CodecInfo> defaultAllowedPredicate =
+      new Predicate<MediaCodecCapabilities.CodecInfo>() {
         @Override
-        public boolean test(MediaCodecInfo arg) {
-          return MediaCodecUtils.isHardwareAccelerated(arg);
+        public boolean test(MediaCodecCapabilities.CodecInfo arg) {
+          return arg.isHardwareAccelerated;
         }
       };
 
@@ -50,8 +50,6 @@ public class HardwareVideoDecoderFactory extends MediaCodecVideoDecoderFactory {
    */
   public HardwareVideoDecoderFactory(@Nullable EglBase.Context sharedContext,
       @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
-    super(sharedContext,
-        (codecAllowedPredicate == null ? defaultAllowedPredicate
-                                       : codecAllowedPredicate.and(defaultAllowedPredicate)));
+    super(sharedContext, defaultAllowedPredicate, codecAllowedPredicate);
   }
 }
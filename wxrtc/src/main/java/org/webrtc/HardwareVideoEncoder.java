@@ -26,8 +26,6 @@ import androidx.annotation.Nullable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Map;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import org.webrtc.ThreadUtils.ThreadChecker;
 
@@ -112,9 +110,9 @@ class HardwareVideoEncoder implements VideoEncoder {
   // Drawer used to draw input textures onto the codec's input surface.
   private final GlRectDrawer textureDrawer = new GlRectDrawer();
   private final VideoFrameDrawer videoFrameDrawer = new VideoFrameDrawer();
-  // A queue of EncodedImage.Builders that correspond to frames in the codec.  These builders are
-  // pre-populated with all the information that can't be sent through MediaCodec.
-  private final BlockingDeque<EncodedImage.Builder> outputBuilders = new LinkedBlockingDeque<>();
+  // Capture time, size and rotation of the frames in the codec, the information that can't be sent
+  // through MediaCodec.
+  private final FrameInfoQueue outputFrameInfos = new FrameInfoQueue(MAX_ENCODER_Q_SIZE + 2);
 
   private final ThreadChecker encodeThreadChecker = new ThreadChecker();
   private final ThreadChecker outputThreadChecker = new ThreadChecker();
@@ -158,6 +156,12 @@ class HardwareVideoEncoder implements VideoEncoder {
   // Contents of the last observed config frame output by the MediaCodec. Used by H.264.
   @Nullable private ByteBuffer configBuffer;
   private int adjustedBitrate;
+  private final EncodedImage.Builder outputBuilder = EncodedImage.builder();
+  // Key frames with the config buffer prepended are assembled here. Reused once the previous
+  // key frame has been released.
+  @Nullable private ByteBuffer keyFrameBuffer;
+  private volatile boolean keyFrameBufferInUse;
+  private final Runnable releaseKeyFrameBuffer = () -> keyFrameBufferInUse = false;
 
   // Whether the encoder is running.  Volatile so that the output thread can watch this value and
   // exit when the encoder stops.
@@ -338,7 +342,7 @@ class HardwareVideoEncoder implements VideoEncoder {
       textureInputSurface.release();
       textureInputSurface = null;
     }
-    outputBuilders.clear();
+    outputFrameInfos.clear();
 
     codec = null;
     outputThread = null;
@@ -369,7 +373,7 @@ class HardwareVideoEncoder implements VideoEncoder {
       }
     }
 
-    if (outputBuilders.size() > MAX_ENCODER_Q_SIZE) {
+    if (outputFrameInfos.size() > MAX_ENCODER_Q_SIZE) {
       // Too many frames in the encoder.  Drop this frame.
       Logging.e(TAG, "Dropped frame, encoder queue full");
       return VideoCodecStatus.NO_OUTPUT; // See webrtc bug 2887.
@@ -386,12 +390,8 @@ class HardwareVideoEncoder implements VideoEncoder {
       requestKeyFrame(videoFrame.getTimestampNs());
     }
 
-    EncodedImage.Builder builder = EncodedImage.builder()
-                                       .setCaptureTimeNs(videoFrame.getTimestampNs())
-                                       .setEncodedWidth(videoFrame.getBuffer().getWidth())
-                                       .setEncodedHeight(videoFrame.getBuffer().getHeight())
-                                       .setRotation(videoFrame.getRotation());
-    outputBuilders.offer(builder);
+    outputFrameInfos.offer(videoFrame.getTimestampNs(), videoFrame.getRotation(),
+        videoFrame.getBuffer().getWidth(), videoFrame.getBuffer().getHeight());
 
     long presentationTimestampUs = nextPresentationTimestampUs;
     // Round frame duration down to avoid bitrate overshoot.
@@ -408,8 +408,8 @@ class HardwareVideoEncoder implements VideoEncoder {
 
     // Check if the queue was successful.
     if (returnValue != VideoCodecStatus.OK) {
-      // Keep the output builders in sync with buffers in the codec.
-      outputBuilders.pollLast();
+      // Keep the output frame infos in sync with buffers in the codec.
+      outputFrameInfos.removeLast();
     }
 
     return returnValue;
@@ -603,6 +603,14 @@ class HardwareVideoEncoder implements VideoEncoder {
         return;
       }
 
+      if (!outputFrameInfos.poll()) {
+        // No queued input matches this output, so its capture time, size and rotation are
+        // unknown. Drop it rather than send it with the values of the previous frame.
+        Logging.w(TAG, "Dropping encoded frame without frame info");
+        codec.releaseOutputBuffer(index, /* render= */ false);
+        return;
+      }
+
       bitrateAdjuster.reportEncodedFrame(info.size);
       if (adjustedBitrate != bitrateAdjuster.getAdjustedBitrateBps()) {
         updateBitrate();
@@ -628,13 +636,28 @@ class HardwareVideoEncoder implements VideoEncoder {
         Logging.d(TAG,
             "Prepending config buffer of size " + configBuffer.capacity()
                 + " to output buffer with offset " + info.offset + ", size " + info.size);
-        frameBuffer = ByteBuffer.allocateDirect(info.size + configBuffer.capacity());
+        final int size = info.size + configBuffer.capacity();
+        final ByteBuffer assembly;
+        if (keyFrameBufferInUse) {
+          // The last key frame is still referenced downstream.
+          assembly = ByteBuffer.allocateDirect(size);
+          releaseCallback = null;
+        } else {
+          if (keyFrameBuffer == null || keyFrameBuffer.capacity() < size) {
+            keyFrameBuffer = ByteBuffer.allocateDirect(size + size / 4);
+          }
+          assembly = keyFrameBuffer;
+          assembly.clear();
+          keyFrameBufferInUse = true;
+          releaseCallback = releaseKeyFrameBuffer;
+        }
         configBuffer.rewind();
-        frameBuffer.put(configBuffer);
-        frameBuffer.put(outputBuffer);
-        frameBuffer.rewind();
+        assembly.put(configBuffer);
+        assembly.put(outputBuffer);
+        assembly.flip();
+        // The native side reads up to the capacity.
+        frameBuffer = assembly.slice();
         codec.releaseOutputBuffer(index, /* render= */ false);
-        releaseCallback = null;
       } else {
         frameBuffer = outputBuffer.slice();
         outputBuffersBusyCount.increment();
@@ -654,7 +677,12 @@ class HardwareVideoEncoder implements VideoEncoder {
       final EncodedImage.FrameType frameType = isKeyFrame ? EncodedImage.FrameType.VideoFrameKey
                                                           : EncodedImage.FrameType.VideoFrameDelta;
 
-      EncodedImage.Builder builder = outputBuilders.poll();
+      // The builder is reused, so every field is set for each frame.
+      EncodedImage.Builder builder = outputBuilder;
+      builder.setCaptureTimeNs(outputFrameInfos.getPolledTimestamp())
+          .setEncodedWidth(outputFrameInfos.getPolledWidth())
+          .setEncodedHeight(outputFrameInfos.getPolledHeight())
+          .setRotation(outputFrameInfos.getPolledRotation());
       builder.setBuffer(frameBuffer, releaseCallback);
       builder.setFrameType(frameType);
       builder.setQp(qp);
@@ -686,6 +714,7 @@ class HardwareVideoEncoder implements VideoEncoder {
       shutdownException = e;
     }
     configBuffer = null;
+    keyFrameBuffer = null;
     Logging.d(TAG, "Release on output thread done");
   }
 
@@ -15,7 +15,6 @@ import static org.webrtc.MediaCodecUtils.INTEL_PREFIX;
 import static org.webrtc.MediaCodecUtils.QCOM_PREFIX;
 
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.os.Build;
 import androidx.annotation.Nullable;
 import java.util.ArrayList;
@@ -95,18 +94,17 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
   @Override
   public VideoEncoder createEncoder(VideoCodecInfo input) {
     VideoCodecMimeType type = VideoCodecMimeType.valueOf(input.getName());
-    MediaCodecInfo info = findCodecForType(type);
+    MediaCodecCapabilities.CodecInfo info = findCodecForType(type);
 
     if (info == null) {
       return null;
     }
 
-    String codecName = info.getName();
-    String mime = type.mimeType();
+    String codecName = info.name;
     Integer surfaceColorFormat = MediaCodecUtils.selectColorFormat(
-        MediaCodecUtils.TEXTURE_COLOR_FORMATS, info.getCapabilitiesForType(mime));
+        MediaCodecUtils.TEXTURE_COLOR_FORMATS, info.getColorFormats(type));
     Integer yuvColorFormat = MediaCodecUtils.selectColorFormat(
-        MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getCapabilitiesForType(mime));
+        MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getColorFormats(type));
 
     if (type == VideoCodecMimeType.H264) {
       boolean isHighProfile = H264Utils.isSameH264Profile(
@@ -136,7 +134,7 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     for (VideoCodecMimeType type :
         new VideoCodecMimeType[] {VideoCodecMimeType.VP8, VideoCodecMimeType.VP9,
             VideoCodecMimeType.H264, VideoCodecMimeType.AV1, VideoCodecMimeType.H265}) {
-      MediaCodecInfo codec = findCodecForType(type);
+      MediaCodecCapabilities.CodecInfo codec = findCodecForType(type);
       if (codec != null) {
         String name = type.name();
         // TODO(sakal): Always add H264 HP once WebRTC correctly removes codecs that are not
@@ -154,16 +152,9 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     return supportedCodecInfos.toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
   }
 
-  private @Nullable MediaCodecInfo findCodecForType(VideoCodecMimeType type) {
-    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
-      MediaCodecInfo info = null;
-      try {
-        info = MediaCodecList.getCodecInfoAt(i);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve encoder codec info", e);
-      }
-
-      if (info == null || !info.isEncoder()) {
+  private @Nullable MediaCodecCapabilities.CodecInfo findCodecForType(VideoCodecMimeType type) {
+    for (MediaCodecCapabilities.CodecInfo info : MediaCodecCapabilities.getCodecInfos()) {
+      if (!info.isEncoder) {
         continue;
       }
 
@@ -175,13 +166,13 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
   }
 
   // Returns true if the given MediaCodecInfo indicates a supported encoder for the given type.
-  private boolean isSupportedCodec(MediaCodecInfo info, VideoCodecMimeType type) {
-    if (!MediaCodecUtils.codecSupportsType(info, type)) {
+  private boolean isSupportedCodec(MediaCodecCapabilities.CodecInfo info, VideoCodecMimeType type) {
+    if (!info.supportsType(type)) {
       return false;
     }
     // Check for a supported color format.
     if (MediaCodecUtils.selectColorFormat(
-            MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getCapabilitiesForType(type.mimeType()))
+            MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getColorFormats(type))
         == null) {
       return false;
     }
@@ -190,9 +181,10 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
 
   // Returns true if the given MediaCodecInfo indicates a hardware module that is supported on the
   // current SDK.
-  private boolean isHardwareSupportedInCurrentSdk(MediaCodecInfo info, VideoCodecMimeType type) {
+  private boolean isHardwareSupportedInCurrentSdk(
+      MediaCodecCapabilities.CodecInfo info, VideoCodecMimeType type) {
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-      return info.isHardwareAccelerated();
+      return info.isHardwareAccelerated;
     }
 
     switch (type) {
@@ -209,8 +201,8 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     return false;
   }
 
-  private boolean isHardwareSupportedInCurrentSdkVp8(MediaCodecInfo info) {
-    String name = info.getName();
+  private boolean isHardwareSupportedInCurrentSdkVp8(MediaCodecCapabilities.CodecInfo info) {
+    String name = info.name;
     // QCOM Vp8 encoder is always supported.
 //    return name.startsWith(QCOM_PREFIX)
 //        // Exynos VP8 encoder is supported in M or later.
@@ -220,18 +212,18 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     if (this.enableIntelVp8Encoder && name.startsWith(MediaCodecUtils.INTEL_PREFIX)) {
         return true;
     }
-    return !MediaCodecUtils.isSoftwareOnly(info);
+    return !info.isSoftwareOnly;
   }
 
-  private boolean isHardwareSupportedInCurrentSdkVp9(MediaCodecInfo info) {
+  private boolean isHardwareSupportedInCurrentSdkVp9(MediaCodecCapabilities.CodecInfo info) {
 //    String name = info.getName();
 //    return (name.startsWith(QCOM_PREFIX) || name.startsWith(EXYNOS_PREFIX))
 //        // Both QCOM and Exynos VP9 encoders are supported in N or later.
 //        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
-    return (!MediaCodecUtils.isSoftwareOnly(info) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+    return (!info.isSoftwareOnly && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
   }
 
-  private boolean isHardwareSupportedInCurrentSdkH264(MediaCodecInfo info) {
+  private boolean isHardwareSupportedInCurrentSdkH264(MediaCodecCapabilities.CodecInfo info) {
     // First, H264 hardware might perform poorly on this model.
     if (H264_HW_EXCEPTION_MODELS.contains(Build.MODEL)) {
       return false;
@@ -239,14 +231,17 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
 //    String name = info.getName();
     // QCOM and Exynos H264 encoders are always supported.
 //    return name.startsWith(QCOM_PREFIX) || name.startsWith(EXYNOS_PREFIX);
-    return !MediaCodecUtils.isSoftwareOnly(info);
+    return !info.isSoftwareOnly;
   }
 
-  private boolean isMediaCodecAllowed(MediaCodecInfo info) {
+  private boolean isMediaCodecAllowed(MediaCodecCapabilities.CodecInfo info) {
     if (codecAllowedPredicate == null) {
       return true;
     }
-    return codecAllowedPredicate.test(info);
+    // The predicate needs the platform object, which is not cached.
+    MediaCodecInfo mediaCodecInfo =
+        MediaCodecCapabilities.findMediaCodecInfo(info.name, /* isEncoder= */ true);
+    return mediaCodecInfo != null && codecAllowedPredicate.test(mediaCodecInfo);
   }
 
   private int getForcedKeyFrameIntervalMs(VideoCodecMimeType type, String codecName) {
@@ -277,8 +272,8 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     return new BaseBitrateAdjuster();
   }
 
-  private boolean isH264HighProfileSupported(MediaCodecInfo info) {
+  private boolean isH264HighProfileSupported(MediaCodecCapabilities.CodecInfo info) {
     return enableH264HighProfile && Build.VERSION.SDK_INT > Build.VERSION_CODES.M
-        && info.getName().startsWith(EXYNOS_PREFIX);
+        && info.name.startsWith(EXYNOS_PREFIX);
   }
 }
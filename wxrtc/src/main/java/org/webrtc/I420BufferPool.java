@@ -0,0 +1,162 @@
+package org.webrtc;
+
+import android.content.ComponentCallbacks2;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Thread safe pool of the native memory behind JavaI420Buffers. Buffers handed out by
+ * {@link #allocate} go back to the pool when their last reference is released, instead of being
+ * freed. Memory is kept in size classes with at most 1/8 slack, so a stream at a fixed resolution
+ * always hits the same class. Idle memory is bounded by a budget; the least recently returned
+ * buffers are freed first when it is exceeded or on {@link #trim}.
+ */
+public final class I420BufferPool {
+  private static final String TAG = "I420BufferPool";
+  private static final long DEFAULT_MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+  private static final I420BufferPool defaultPool = new I420BufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+  /** Snapshot of the pool counters. */
+  public static class Stats {
+    public final long hits;
+    public final long misses;
+    public final long evictions;
+    public final long pooledBytes;
+    public final long maxPooledBytes;
+
+    Stats(long hits, long misses, long evictions, long pooledBytes, long maxPooledBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.pooledBytes = pooledBytes;
+      this.maxPooledBytes = maxPooledBytes;
+    }
+  }
+
+  private final Object lock = new Object();
+  // Idle buffers, least recently returned first. Kept short by the budget, so a linear search
+  // is cheaper than bucket maps.
+  private final ArrayList<ByteBuffer> idleBuffers = new ArrayList<>();
+  private long maxPooledBytes;
+  private long pooledBytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /** Pool shared by the decoders, buffer scalers and file capturers of this process. */
+  public static I420BufferPool getDefault() {
+    return defaultPool;
+  }
+
+  public I420BufferPool(long maxPooledBytes) {
+    this.maxPooledBytes = maxPooledBytes;
+  }
+
+  /** Allocates an I420Buffer with the same layout as {@link JavaI420Buffer#allocate}. */
+  public JavaI420Buffer allocate(int width, int height) {
+    final int chromaHeight = (height + 1) / 2;
+    final int strideUV = (width + 1) / 2;
+    final int yPos = 0;
+    final int uPos = yPos + width * height;
+    final int vPos = uPos + strideUV * chromaHeight;
+    final int size = vPos + strideUV * chromaHeight;
+
+    final ByteBuffer buffer = obtain(size);
+
+    buffer.clear();
+    buffer.position(yPos);
+    buffer.limit(uPos);
+    final ByteBuffer dataY = buffer.slice();
+
+    buffer.position(uPos);
+    buffer.limit(vPos);
+    final ByteBuffer dataU = buffer.slice();
+
+    buffer.position(vPos);
+    buffer.limit(size);
+    final ByteBuffer dataV = buffer.slice();
+
+    return JavaI420Buffer.wrap(width, height, dataY, width, dataU, strideUV, dataV, strideUV,
+        () -> recycle(buffer));
+  }
+
+  /** Changes the idle memory budget, freeing buffers over it. */
+  public void setMaxPooledBytes(long maxPooledBytes) {
+    synchronized (lock) {
+      this.maxPooledBytes = maxPooledBytes;
+      evictLocked(maxPooledBytes);
+    }
+  }
+
+  /**
+   * Frees idle buffers for a {@link ComponentCallbacks2} trim level: all of them from
+   * TRIM_MEMORY_RUNNING_LOW and in the background, half of them otherwise.
+   */
+  public void trim(int level) {
+    synchronized (lock) {
+      final long keepBytes = level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+              && level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+          ? 0
+          : pooledBytes / 2;
+      evictLocked(keepBytes);
+      Logging.d(TAG, "Trimmed to " + pooledBytes + " bytes, level: " + level);
+    }
+  }
+
+  public Stats getStats() {
+    synchronized (lock) {
+      return new Stats(hits, misses, evictions, pooledBytes, maxPooledBytes);
+    }
+  }
+
+  private ByteBuffer obtain(int size) {
+    final int capacity = sizeClass(size);
+    synchronized (lock) {
+      // Most recently returned first, its memory is the most likely to be cached.
+      for (int i = idleBuffers.size() - 1; i >= 0; i--) {
+        if (idleBuffers.get(i).capacity() == capacity) {
+          final ByteBuffer buffer = idleBuffers.remove(i);
+          pooledBytes -= capacity;
+          hits++;
+          return buffer;
+        }
+      }
+      misses++;
+    }
+    return JniCommon.nativeAllocateByteBuffer(capacity);
+  }
+
+  private void recycle(ByteBuffer buffer) {
+    final int capacity = buffer.capacity();
+    synchronized (lock) {
+      if (capacity <= maxPooledBytes) {
+        evictLocked(maxPooledBytes - capacity);
+        idleBuffers.add(buffer);
+        pooledBytes += capacity;
+        return;
+      }
+    }
+    JniCommon.nativeFreeByteBuffer(buffer);
+  }
+
+  private void evictLocked(long keepBytes) {
+    int evicted = 0;
+    while (pooledBytes > keepBytes && evicted < idleBuffers.size()) {
+      final ByteBuffer buffer = idleBuffers.get(evicted++);
+      pooledBytes -= buffer.capacity();
+      JniCommon.nativeFreeByteBuffer(buffer);
+    }
+    idleBuffers.subList(0, evicted).clear();
+    evictions += evicted;
+  }
+
+  /** Rounds |size| up to a multiple of 1/8 of its highest power of two. */
+  private static int sizeClass(int size) {
+    if (size <= 4096) {
+      return 4096;
+    }
+    final int step = Integer.highestOneBit(size) >> 3;
+    return (size + step - 1) & -step;
+  }
+}
@@ -0,0 +1,275 @@
+package org.webrtc;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.AtomicFile;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Video codecs of the device as seen by the encoder and decoder factories, probed once per
+ * process instead of on every factory call. Walking MediaCodecList and querying capabilities takes
+ * 100+ ms on some devices, so the result is also stored in app-private storage and reused by
+ * later processes until the build fingerprint changes, i.e. until the system is updated.
+ *
+ * Capabilities are only recorded for the mime types of {@link VideoCodecMimeType}, in the order
+ * MediaCodecList lists the codecs.
+ */
+@SuppressWarnings("deprecation") // API 16 requires the use of deprecated methods.
+final class MediaCodecCapabilities {
+  private static final String TAG = "MediaCodecCapabilities";
+  private static final String FILE_NAME = "webrtc_media_codecs.json";
+  // Bump when the stored format or the probed information changes.
+  private static final int FORMAT_VERSION = 1;
+
+  /** Probed information of one codec. */
+  static final class CodecInfo {
+    final String name;
+    final boolean isEncoder;
+    final boolean isHardwareAccelerated;
+    final boolean isSoftwareOnly;
+    // Parallel arrays, one entry per supported video mime type.
+    final String[] supportedTypes;
+    final int[][] colorFormats;
+    // Profile and level pairs, flattened.
+    final int[][] profileLevels;
+
+    CodecInfo(String name, boolean isEncoder, boolean isHardwareAccelerated,
+        boolean isSoftwareOnly, String[] supportedTypes, int[][] colorFormats,
+        int[][] profileLevels) {
+      this.name = name;
+      this.isEncoder = isEncoder;
+      this.isHardwareAccelerated = isHardwareAccelerated;
+      this.isSoftwareOnly = isSoftwareOnly;
+      this.supportedTypes = supportedTypes;
+      this.colorFormats = colorFormats;
+      this.profileLevels = profileLevels;
+    }
+
+    boolean supportsType(VideoCodecMimeType type) {
+      return indexOf(type) >= 0;
+    }
+
+    /** Color formats for |type|, empty if the type is not supported. */
+    int[] getColorFormats(VideoCodecMimeType type) {
+      final int index = indexOf(type);
+      return index >= 0 ? colorFormats[index] : new int[0];
+    }
+
+    /** Profile and level pairs for |type|, flattened. Empty if the type is not supported. */
+    int[] getProfileLevels(VideoCodecMimeType type) {
+      final int index = indexOf(type);
+      return index >= 0 ? profileLevels[index] : new int[0];
+    }
+
+    private int indexOf(VideoCodecMimeType type) {
+      for (int i = 0; i < supportedTypes.length; i++) {
+        if (type.mimeType().equals(supportedTypes[i])) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  @Nullable private static List<CodecInfo> codecInfos;
+
+  /** Returns the codecs of the device, probing or loading them on the first call. */
+  static synchronized List<CodecInfo> getCodecInfos() {
+    if (codecInfos != null) {
+      return codecInfos;
+    }
+    final long startTimeMs = System.currentTimeMillis();
+    final AtomicFile file = getFile();
+    List<CodecInfo> infos = file != null ? load(file) : null;
+    if (infos != null) {
+      Logging.d(TAG, "Loaded " + infos.size() + " codecs in "
+              + (System.currentTimeMillis() - startTimeMs) + " ms");
+    } else {
+      infos = probe();
+      Logging.d(TAG, "Probed " + infos.size() + " codecs in "
+              + (System.currentTimeMillis() - startTimeMs) + " ms");
+      if (file != null) {
+        store(file, infos);
+      }
+    }
+    codecInfos = Collections.unmodifiableList(infos);
+    return codecInfos;
+  }
+
+  /**
+   * Looks up the MediaCodecInfo of codec |name|, for filters that need the platform object. This
+   * walks MediaCodecList, so it is only used for application supplied predicates.
+   */
+  static @Nullable MediaCodecInfo findMediaCodecInfo(String name, boolean isEncoder) {
+    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
+      MediaCodecInfo info = null;
+      try {
+        info = MediaCodecList.getCodecInfoAt(i);
+      } catch (IllegalArgumentException e) {
+        Logging.e(TAG, "Cannot retrieve codec info", e);
+      }
+      if (info != null && info.isEncoder() == isEncoder && info.getName().equals(name)) {
+        return info;
+      }
+    }
+    return null;
+  }
+
+  private static List<CodecInfo> probe() {
+    final List<CodecInfo> infos = new ArrayList<>();
+    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
+      MediaCodecInfo info = null;
+      try {
+        info = MediaCodecList.getCodecInfoAt(i);
+      } catch (IllegalArgumentException e) {
+        Logging.e(TAG, "Cannot retrieve codec info", e);
+      }
+      if (info == null) {
+        continue;
+      }
+
+      final List<String> types = new ArrayList<>();
+      final List<int[]> colorFormats = new ArrayList<>();
+      final List<int[]> profileLevels = new ArrayList<>();
+      for (VideoCodecMimeType type : VideoCodecMimeType.values()) {
+        if (!MediaCodecUtils.codecSupportsType(info, type)) {
+          continue;
+        }
+        final CodecCapabilities capabilities;
+        try {
+          capabilities = info.getCapabilitiesForType(type.mimeType());
+        } catch (IllegalArgumentException e) {
+          Logging.e(TAG, "Cannot retrieve capabilities of " + info.getName(), e);
+          continue;
+        }
+        types.add(type.mimeType());
+        colorFormats.add(capabilities.colorFormats.clone());
+        final CodecProfileLevel[] levels = capabilities.profileLevels;
+        final int[] flattened = new int[levels.length * 2];
+        for (int j = 0; j < levels.length; j++) {
+          flattened[2 * j] = levels[j].profile;
+          flattened[2 * j + 1] = levels[j].level;
+        }
+        profileLevels.add(flattened);
+      }
+      if (types.isEmpty()) {
+        continue;
+      }
+      infos.add(new CodecInfo(info.getName(), info.isEncoder(),
+          MediaCodecUtils.isHardwareAccelerated(info), MediaCodecUtils.isSoftwareOnly(info),
+          types.toArray(new String[0]), colorFormats.toArray(new int[0][]),
+          profileLevels.toArray(new int[0][])));
+    }
+    return infos;
+  }
+
+  private static @Nullable AtomicFile getFile() {
+    final Context context = ContextUtils.getApplicationContext();
+    if (context == null) {
+      return null;
+    }
+    return new AtomicFile(new File(context.getNoBackupFilesDir(), FILE_NAME));
+  }
+
+  private static String getFingerprint() {
+    return FORMAT_VERSION + "/" + Build.VERSION.SDK_INT + "/" + Build.FINGERPRINT;
+  }
+
+  private static @Nullable List<CodecInfo> load(AtomicFile file) {
+    try {
+      final JSONObject root =
+          new JSONObject(new String(file.readFully(), Charset.forName("UTF-8")));
+      if (!getFingerprint().equals(root.getString("fingerprint"))) {
+        return null;
+      }
+      final JSONArray codecs = root.getJSONArray("codecs");
+      final List<CodecInfo> infos = new ArrayList<>(codecs.length());
+      for (int i = 0; i < codecs.length(); i++) {
+        final JSONObject codec = codecs.getJSONObject(i);
+        final JSONArray types = codec.getJSONArray("types");
+        final String[] supportedTypes = new String[types.length()];
+        final int[][] colorFormats = new int[types.length()][];
+        final int[][] profileLevels = new int[types.length()][];
+        for (int j = 0; j < types.length(); j++) {
+          final JSONObject type = types.getJSONObject(j);
+          supportedTypes[j] = type.getString("mime");
+          colorFormats[j] = toIntArray(type.getJSONArray("colorFormats"));
+          profileLevels[j] = toIntArray(type.getJSONArray("profileLevels"));
+        }
+        infos.add(new CodecInfo(codec.getString("name"), codec.getBoolean("encoder"),
+            codec.getBoolean("hardware"), codec.getBoolean("softwareOnly"), supportedTypes,
+            colorFormats, profileLevels));
+      }
+      return infos;
+    } catch (IOException | JSONException e) {
+      // Missing on first run, or unreadable. Probe again.
+      return null;
+    }
+  }
+
+  private static void store(AtomicFile file, List<CodecInfo> infos) {
+    FileOutputStream stream = null;
+    try {
+      final JSONArray codecs = new JSONArray();
+      for (CodecInfo info : infos) {
+        final JSONArray types = new JSONArray();
+        for (int i = 0; i < info.supportedTypes.length; i++) {
+          types.put(new JSONObject()
+                        .put("mime", info.supportedTypes[i])
+                        .put("colorFormats", toJsonArray(info.colorFormats[i]))
+                        .put("profileLevels", toJsonArray(info.profileLevels[i])));
+        }
+        codecs.put(new JSONObject()
+                       .put("name", info.name)
+                       .put("encoder", info.isEncoder)
+                       .put("hardware", info.isHardwareAccelerated)
+                       .put("softwareOnly", info.isSoftwareOnly)
+                       .put("types", types));
+      }
+      final JSONObject root =
+          new JSONObject().put("fingerprint", getFingerprint()).put("codecs", codecs);
+      stream = file.startWrite();
+      stream.write(root.toString().getBytes(Charset.forName("UTF-8")));
+      file.finishWrite(stream);
+    } catch (IOException | JSONException e) {
+      Logging.e(TAG, "Failed to store codec capabilities", e);
+      if (stream != null) {
+        file.failWrite(stream);
+      }
+    }
+  }
+
+  private static int[] toIntArray(JSONArray array) throws JSONException {
+    final int[] values = new int[array.length()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = array.getInt(i);
+    }
+    return values;
+  }
+
+  private static JSONArray toJsonArray(int[] values) throws JSONException {
+    final JSONArray array = new JSONArray();
+    for (int value : values) {
+      array.put(value);
+    }
+    return array;
+  }
+
+  private MediaCodecCapabilities() {
+    // This class should not be instantiated.
+  }
+}
@@ -61,8 +61,12 @@ class MediaCodecUtils {
 
   static @Nullable Integer selectColorFormat(
       int[] supportedColorFormats, CodecCapabilities capabilities) {
+    return selectColorFormat(supportedColorFormats, capabilities.colorFormats);
+  }
+
+  static @Nullable Integer selectColorFormat(int[] supportedColorFormats, int[] codecColorFormats) {
     for (int supportedColorFormat : supportedColorFormats) {
-      for (int codecColorFormat : capabilities.colorFormats) {
+      for (int codecColorFormat : codecColorFormats) {
         if (codecColorFormat == supportedColorFormat) {
           return codecColorFormat;
         }
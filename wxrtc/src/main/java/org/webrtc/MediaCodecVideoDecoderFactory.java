@@ -14,8 +14,6 @@ import static org.webrtc.MediaCodecUtils.EXYNOS_PREFIX;
 import static org.webrtc.MediaCodecUtils.QCOM_PREFIX;
 
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecInfo.CodecCapabilities;
-import android.media.MediaCodecList;
 import android.os.Build;
 import androidx.annotation.Nullable;
 import java.util.ArrayList;
@@ -27,6 +25,7 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
   private static final String TAG = "MediaCodecVideoDecoderFactory";
 
   private final @Nullable EglBase.Context sharedContext;
+  private final @Nullable Predicate<MediaCodecCapabilities.CodecInfo> codecFilter;
   private final @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate;
 
   /**
@@ -39,7 +38,18 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
    */
   public MediaCodecVideoDecoderFactory(@Nullable EglBase.Context sharedContext,
       @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
+    this(sharedContext, /* codecFilter= */ null, codecAllowedPredicate);
+  }
+
+  /**
+   * @param codecFilter optional filter on the cached codec capabilities, tested before
+   *                    |codecAllowedPredicate|. Unlike the latter it does not need MediaCodecList.
+   */
+  MediaCodecVideoDecoderFactory(@Nullable EglBase.Context sharedContext,
+      @Nullable Predicate<MediaCodecCapabilities.CodecInfo> codecFilter,
+      @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
     this.sharedContext = sharedContext;
+    this.codecFilter = codecFilter;
     this.codecAllowedPredicate = codecAllowedPredicate;
   }
 
@@ -47,15 +57,15 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
   @Override
   public VideoDecoder createDecoder(VideoCodecInfo codecType) {
     VideoCodecMimeType type = VideoCodecMimeType.valueOf(codecType.getName());
-    MediaCodecInfo info = findCodecForType(type);
+    MediaCodecCapabilities.CodecInfo info = findCodecForType(type);
 
     if (info == null) {
       return null;
     }
 
-    CodecCapabilities capabilities = info.getCapabilitiesForType(type.mimeType());
-    return new AndroidVideoDecoder(new MediaCodecWrapperFactoryImpl(), info.getName(), type,
-        MediaCodecUtils.selectColorFormat(MediaCodecUtils.DECODER_COLOR_FORMATS, capabilities),
+    return new AndroidVideoDecoder(new MediaCodecWrapperFactoryImpl(), info.name, type,
+        MediaCodecUtils.selectColorFormat(
+            MediaCodecUtils.DECODER_COLOR_FORMATS, info.getColorFormats(type)),
         sharedContext);
   }
 
@@ -67,7 +77,7 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
     for (VideoCodecMimeType type :
         new VideoCodecMimeType[] {VideoCodecMimeType.VP8, VideoCodecMimeType.VP9,
             VideoCodecMimeType.H264, VideoCodecMimeType.AV1, VideoCodecMimeType.H265}) {
-      MediaCodecInfo codec = findCodecForType(type);
+      MediaCodecCapabilities.CodecInfo codec = findCodecForType(type);
       if (codec != null) {
         String name = type.name();
         if (type == VideoCodecMimeType.H264 && isH264HighProfileSupported(codec)) {
@@ -83,16 +93,9 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
     return supportedCodecInfos.toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
   }
 
-  private @Nullable MediaCodecInfo findCodecForType(VideoCodecMimeType type) {
-    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
-      MediaCodecInfo info = null;
-      try {
-        info = MediaCodecList.getCodecInfoAt(i);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve decoder codec info", e);
-      }
-
-      if (info == null || info.isEncoder()) {
+  private @Nullable MediaCodecCapabilities.CodecInfo findCodecForType(VideoCodecMimeType type) {
+    for (MediaCodecCapabilities.CodecInfo info : MediaCodecCapabilities.getCodecInfos()) {
+      if (info.isEncoder) {
         continue;
       }
 
@@ -105,28 +108,34 @@ class MediaCodecVideoDecoderFactory implements VideoDecoderFactory {
   }
 
   // Returns true if the given MediaCodecInfo indicates a supported encoder for the given type.
-  private boolean isSupportedCodec(MediaCodecInfo info, VideoCodecMimeType type) {
-    if (!MediaCodecUtils.codecSupportsType(info, type)) {
+  private boolean isSupportedCodec(MediaCodecCapabilities.CodecInfo info, VideoCodecMimeType type) {
+    if (!info.supportsType(type)) {
       return false;
     }
     // Check for a supported color format.
     if (MediaCodecUtils.selectColorFormat(
-            MediaCodecUtils.DECODER_COLOR_FORMATS, info.getCapabilitiesForType(type.mimeType()))
+            MediaCodecUtils.DECODER_COLOR_FORMATS, info.getColorFormats(type))
         == null) {
       return false;
     }
     return isCodecAllowed(info);
   }
 
-  private boolean isCodecAllowed(MediaCodecInfo info) {
+  private boolean isCodecAllowed(MediaCodecCapabilities.CodecInfo info) {
+    if (codecFilter != null && !codecFilter.test(info)) {
+      return false;
+    }
     if (codecAllowedPredicate == null) {
       return true;
     }
-    return codecAllowedPredicate.test(info);
+    // The predicate needs the platform object, which is not cached.
+    MediaCodecInfo mediaCodecInfo =
+        MediaCodecCapabilities.findMediaCodecInfo(info.name, /* isEncoder= */ false);
+    return mediaCodecInfo != null && codecAllowedPredicate.test(mediaCodecInfo);
   }
 
-  private boolean isH264HighProfileSupported(MediaCodecInfo info) {
-    String name = info.getName();
+  private boolean isH264HighProfileSupported(MediaCodecCapabilities.CodecInfo info) {
+    String name = info.name;
     // Support H.264 HP decoding on QCOM chips.
     if (name.startsWith(QCOM_PREFIX)) {
       return true;
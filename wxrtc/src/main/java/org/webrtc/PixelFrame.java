@@ -0,0 +1,53 @@
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RGBA pixels of a rendered frame, delivered to {@link EglRenderer.PixelFrameListener}. Rows are
+ * top-down and tightly packed (stride is width * 4). The buffer is borrowed from a pool owned by
+ * the renderer and must be released once the pixels are no longer needed, otherwise further
+ * frames are dropped.
+ */
+public class PixelFrame implements RefCounted {
+  private final ByteBuffer buffer;
+  private final int width;
+  private final int height;
+  private final long timestampNs;
+  private final RefCountDelegate refCountDelegate;
+
+  PixelFrame(ByteBuffer buffer, int width, int height, long timestampNs, Runnable releaseCallback) {
+    this.buffer = buffer;
+    this.width = width;
+    this.height = height;
+    this.timestampNs = timestampNs;
+    this.refCountDelegate = new RefCountDelegate(releaseCallback);
+  }
+
+  /** Read-only view of the pixels. Not valid after the last release(). */
+  public ByteBuffer getBuffer() {
+    return buffer.asReadOnlyBuffer();
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Timestamp of the VideoFrame the pixels were read from. */
+  public long getTimestampNs() {
+    return timestampNs;
+  }
+
+  @Override
+  public void retain() {
+    refCountDelegate.retain();
+  }
+
+  @Override
+  public void release() {
+    refCountDelegate.release();
+  }
+}
@@ -10,7 +10,6 @@
 
 package org.webrtc;
 
-import android.media.MediaCodecInfo;
 import androidx.annotation.Nullable;
 import java.util.Arrays;
 
@@ -19,11 +18,11 @@ public class PlatformSoftwareVideoDecoderFactory extends MediaCodecVideoDecoderF
   /**
    * Default allowed predicate.
    */
-  private static final Predicate<MediaCodecInfo> defaultAllowedPredicate =
-      new Predicate<MediaCodecInfo>() {
+  private static final Predicate<MediaCodecCapabilities.CodecInfo> defaultAllowedPredicate =
+      new Predicate<MediaCodecCapabilities.CodecInfo>() {
         @Override
-        public boolean test(MediaCodecInfo arg) {
-          return MediaCodecUtils.isSoftwareOnly(arg);
+        public boolean test(MediaCodecCapabilities.CodecInfo arg) {
+          return arg.isSoftwareOnly;
         }
       };
 
@@ -34,6 +33,6 @@ public class PlatformSoftwareVideoDecoderFactory extends MediaCodecVideoDecoderF
    *                      this disables texture support.
    */
   public PlatformSoftwareVideoDecoderFactory(@Nullable EglBase.Context sharedContext) {
-    super(sharedContext, defaultAllowedPredicate);
+    super(sharedContext, defaultAllowedPredicate, /* codecAllowedPredicate= */ null);
   }
 }
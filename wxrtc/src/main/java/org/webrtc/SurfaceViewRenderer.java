@@ -133,6 +133,19 @@ public class SurfaceViewRenderer extends SurfaceView
     eglRenderer.removeFrameListener(listener);
   }
 
+  /**
+   * Register a callback to be invoked with the pixels of every rendered frame until it is removed.
+   * See EglRenderer.addPixelFrameListener().
+   */
+  public void addPixelFrameListener(
+      EglRenderer.PixelFrameListener listener, float scale, boolean applyFpsReduction) {
+    eglRenderer.addPixelFrameListener(listener, scale, applyFpsReduction);
+  }
+
+  public void removePixelFrameListener(EglRenderer.PixelFrameListener listener) {
+    eglRenderer.removePixelFrameListener(listener);
+  }
+
   /**
    * Enables fixed size for the surface. This provides better performance but might be buggy on some
    * devices. By default this is turned off.
@@ -0,0 +1,180 @@
+package com.wx.rtc.rtc
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Arrays
+import java.util.regex.Pattern
+
+/**
+ * Times the parsed model against the regex/split munging it replaced, on the rewrites both
+ * can do: ISAC and H264 preference and the Opus start bitrate. Runs as a plain JVM test, the
+ * numbers are printed rather than asserted so a slow machine does not fail the build.
+ */
+class ParsedSdpBenchmarkTest {
+
+    @Test
+    fun sameOutputAsRegexPath() {
+        assertEquals(RegexSdp.munge(ParsedSdpTest.OFFER), mungeParsed(ParsedSdpTest.OFFER))
+    }
+
+    @Test
+    fun benchmark() {
+        val sdp = ParsedSdpTest.OFFER
+        var sink = 0
+        repeat(WARMUP_ITERATIONS) {
+            sink += RegexSdp.munge(sdp).length + mungeParsed(sdp).length
+        }
+        var start = System.nanoTime()
+        repeat(ITERATIONS) {
+            sink += RegexSdp.munge(sdp).length
+        }
+        val regexNs = (System.nanoTime() - start) / ITERATIONS
+        start = System.nanoTime()
+        repeat(ITERATIONS) {
+            sink += mungeParsed(sdp).length
+        }
+        val parsedNs = (System.nanoTime() - start) / ITERATIONS
+        println("SDP munge: regex $regexNs ns/op, parsed $parsedNs ns/op ($sink)")
+    }
+
+    private fun mungeParsed(sdpDescription: String): String {
+        val sdp = ParsedSdp.parse(sdpDescription)
+        for (section in sdp.media) {
+            when (section.kind) {
+                "audio" -> {
+                    section.preferCodec("ISAC")
+                    section.addCodecParameter("opus", "maxaveragebitrate", 32 * 1000)
+                }
+                "video" -> section.preferCodec("H264")
+            }
+        }
+        return sdp.toString()
+    }
+
+    /**
+     * The helpers PeerConnectionClient used before the parsed model, without logging.
+     */
+    private object RegexSdp {
+        fun munge(sdpDescription: String): String {
+            var sdp = preferCodec(sdpDescription, "ISAC", true)
+            sdp = preferCodec(sdp, "H264", false)
+            return setStartBitrate("opus", sdp, 32)
+        }
+
+        private fun setStartBitrate(codec: String, sdpDescription: String, bitrateKbps: Int): String {
+            val lines =
+                sdpDescription.split("\r\n".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
+            var rtpmapLineIndex = -1
+            var sdpFormatUpdated = false
+            var codecRtpMap: String? = null
+            var regex = "^a=rtpmap:(\\d+) $codec(/\\d+)+[\r]?$"
+            var codecPattern = Pattern.compile(regex)
+            for (i in lines.indices) {
+                val codecMatcher = codecPattern.matcher(lines[i])
+                if (codecMatcher.matches()) {
+                    codecRtpMap = codecMatcher.group(1)
+                    rtpmapLineIndex = i
+                    break
+                }
+            }
+            if (codecRtpMap == null) {
+                return sdpDescription
+            }
+            regex = "^a=fmtp:$codecRtpMap \\w+=\\d+.*[\r]?$"
+            codecPattern = Pattern.compile(regex)
+            for (i in lines.indices) {
+                val codecMatcher = codecPattern.matcher(lines[i])
+                if (codecMatcher.matches()) {
+                    lines[i] += "; maxaveragebitrate=" + (bitrateKbps * 1000)
+                    sdpFormatUpdated = true
+                    break
+                }
+            }
+            val newSdpDescription = StringBuilder()
+            for (i in lines.indices) {
+                newSdpDescription.append(lines[i]).append("\r\n")
+                if (!sdpFormatUpdated && i == rtpmapLineIndex) {
+                    newSdpDescription.append("a=fmtp:$codecRtpMap maxaveragebitrate=${bitrateKbps * 1000}")
+                        .append("\r\n")
+                }
+            }
+            return newSdpDescription.toString()
+        }
+
+        private fun findMediaDescriptionLine(isAudio: Boolean, sdpLines: Array<String>): Int {
+            val mediaDescription = if (isAudio) "m=audio " else "m=video "
+            for (i in sdpLines.indices) {
+                if (sdpLines[i].startsWith(mediaDescription)) {
+                    return i
+                }
+            }
+            return -1
+        }
+
+        private fun joinString(
+            s: Iterable<CharSequence?>, delimiter: String, delimiterAtEnd: Boolean
+        ): String {
+            val iter = s.iterator()
+            if (!iter.hasNext()) {
+                return ""
+            }
+            val buffer = StringBuilder(iter.next()!!)
+            while (iter.hasNext()) {
+                buffer.append(delimiter).append(iter.next())
+            }
+            if (delimiterAtEnd) {
+                buffer.append(delimiter)
+            }
+            return buffer.toString()
+        }
+
+        private fun movePayloadTypesToFront(
+            preferredPayloadTypes: List<String?>, mLine: String
+        ): String? {
+            val origLineParts =
+                Arrays.asList(*mLine.split(" ".toRegex()).dropLastWhile { it.isEmpty() }
+                    .toTypedArray())
+            if (origLineParts.size <= 3) {
+                return null
+            }
+            val header: List<String?> = origLineParts.subList(0, 3)
+            val unpreferredPayloadTypes: MutableList<String?> =
+                ArrayList(origLineParts.subList(3, origLineParts.size))
+            unpreferredPayloadTypes.removeAll(preferredPayloadTypes)
+            val newLineParts: MutableList<String?> = ArrayList()
+            newLineParts.addAll(header)
+            newLineParts.addAll(preferredPayloadTypes)
+            newLineParts.addAll(unpreferredPayloadTypes)
+            return joinString(newLineParts, " ", false)
+        }
+
+        private fun preferCodec(sdpDescription: String, codec: String, isAudio: Boolean): String {
+            val lines =
+                sdpDescription.split("\r\n".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
+            val mLineIndex = findMediaDescriptionLine(isAudio, lines)
+            if (mLineIndex == -1) {
+                return sdpDescription
+            }
+            val codecPayloadTypes: MutableList<String?> = ArrayList()
+            val codecPattern = Pattern.compile("^a=rtpmap:(\\d+) $codec(/\\d+)+[\r]?$")
+            for (line in lines) {
+                val codecMatcher = codecPattern.matcher(line)
+                if (codecMatcher.matches()) {
+                    codecPayloadTypes.add(codecMatcher.group(1))
+                }
+            }
+            if (codecPayloadTypes.isEmpty()) {
+                return sdpDescription
+            }
+            val newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex])
+                ?: return sdpDescription
+            lines[mLineIndex] = newMLine
+            return joinString(Arrays.asList(*lines), "\r\n", true)
+        }
+    }
+
+    companion object {
+        private const val WARMUP_ITERATIONS = 2000
+        private const val ITERATIONS = 5000
+    }
+}
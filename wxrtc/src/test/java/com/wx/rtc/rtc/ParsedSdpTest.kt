@@ -0,0 +1,327 @@
+package com.wx.rtc.rtc
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ParsedSdpTest {
+
+    @Test
+    fun roundTripKeepsInput() {
+        assertEquals(OFFER, ParsedSdp.parse(OFFER).toString())
+    }
+
+    @Test
+    fun parsesSessionAndMediaSections() {
+        val sdp = ParsedSdp.parse(OFFER)
+        assertEquals("v=0", sdp.sessionLines[0])
+        assertTrue(sdp.hasSessionAttribute("a=group:BUNDLE 0 1"))
+        assertEquals(listOf("audio", "video"), sdp.media.map { it.kind })
+        assertEquals(listOf("111", "63", "103", "9"), sdp.mediaOf("audio")[0].payloadTypes)
+        assertEquals(listOf("96", "97", "102", "103", "35", "36"), sdp.mediaOf("video")[0].payloadTypes)
+    }
+
+    @Test
+    fun lfInputSerializesAsCrlf() {
+        val lf = OFFER.replace("\r\n", "\n")
+        assertEquals(OFFER, ParsedSdp.parse(lf).toString())
+    }
+
+    @Test
+    fun skipsEmptyLinesAndMissingTrailingNewline() {
+        val input = OFFER.removeSuffix("\r\n").replace("a=group:BUNDLE 0 1\r\n", "a=group:BUNDLE 0 1\r\n\r\n")
+        assertEquals(OFFER, ParsedSdp.parse(input).toString())
+    }
+
+    @Test
+    fun sessionOnlyDescription() {
+        val session = OFFER.substring(0, OFFER.indexOf("m=audio"))
+        val sdp = ParsedSdp.parse(session)
+        assertTrue(sdp.media.isEmpty())
+        assertTrue(sdp.mediaOf("video").isEmpty())
+        assertEquals(session, sdp.toString())
+    }
+
+    @Test
+    fun emptyDescription() {
+        val sdp = ParsedSdp.parse("")
+        assertTrue(sdp.sessionLines.isEmpty())
+        assertTrue(sdp.media.isEmpty())
+        assertEquals("", sdp.toString())
+    }
+
+    @Test
+    fun mLineWithoutPayloadTypes() {
+        val sdp = ParsedSdp.parse("v=0\r\nm=application 9 UDP/DTLS/SCTP\r\na=mid:2\r\n")
+        val section = sdp.media[0]
+        assertEquals("application", section.kind)
+        assertTrue(section.payloadTypes.isEmpty())
+        assertFalse(section.preferCodec("VP8"))
+        assertEquals("m=application 9 UDP/DTLS/SCTP", section.mLine)
+    }
+
+    @Test
+    fun insertSessionLineBeforeGroup() {
+        val sdp = ParsedSdp.parse(OFFER)
+        assertTrue(sdp.insertSessionLine("a=extmap-allow-mixed", "a=group"))
+        val lines = sdp.toString().split("\r\n")
+        assertEquals("a=extmap-allow-mixed", lines[lines.indexOf("a=group:BUNDLE 0 1") - 1])
+        // Nothing else is dropped, the last line included.
+        assertEquals(OFFER.split("\r\n").size + 1, lines.size)
+        assertTrue(sdp.toString().endsWith("a=fmtp:36 apt=35\r\n"))
+    }
+
+    @Test
+    fun insertSessionLineWithoutAnchor() {
+        val sdp = ParsedSdp.parse(OFFER)
+        assertFalse(sdp.insertSessionLine("a=extmap-allow-mixed", "a=missing"))
+        assertEquals(OFFER, sdp.toString())
+    }
+
+    @Test
+    fun payloadTypesOfMatchesWholeNameIgnoringCase() {
+        val video = ParsedSdp.parse(OFFER).mediaOf("video")[0]
+        assertEquals(listOf("96"), video.payloadTypesOf("vp8"))
+        assertEquals(listOf("97", "103", "36"), video.payloadTypesOf("rtx"))
+        assertEquals(listOf("102"), video.payloadTypesOf("H264"))
+        // Prefix of another codec name.
+        assertTrue(video.payloadTypesOf("H26").isEmpty())
+        assertTrue(video.payloadTypesOf("flexfec").isEmpty())
+    }
+
+    @Test
+    fun preferCodecMovesEveryPayloadTypeToFront() {
+        val sdp = ParsedSdp.parse(OFFER)
+        val video = sdp.mediaOf("video")[0]
+        assertTrue(video.preferCodec("H264"))
+        assertEquals(listOf("102", "96", "97", "103", "35", "36"), video.payloadTypes)
+        assertTrue(video.preferCodec("rtx"))
+        assertEquals(listOf("97", "103", "36", "102", "96", "35"), video.payloadTypes)
+        assertTrue(sdp.toString().contains("\r\nm=video 9 UDP/TLS/RTP/SAVPF 97 103 36 102 96 35\r\n"))
+        assertFalse(video.preferCodec("AV1"))
+    }
+
+    @Test
+    fun addCodecParameterAppendsToExistingFmtp() {
+        val sdp = ParsedSdp.parse(OFFER)
+        assertTrue(sdp.mediaOf("audio")[0].addCodecParameter("opus", "maxaveragebitrate", 32000))
+        assertTrue(
+            sdp.toString().contains(
+                "\r\na=fmtp:111 minptime=10;useinbandfec=1; maxaveragebitrate=32000\r\n"
+            )
+        )
+    }
+
+    @Test
+    fun addCodecParameterCreatesFmtpAfterRtpmap() {
+        val sdp = ParsedSdp.parse(OFFER)
+        assertTrue(sdp.mediaOf("audio")[0].addCodecParameter("G722", "ptime", 20))
+        assertTrue(sdp.toString().contains("\r\na=rtpmap:9 G722/8000\r\na=fmtp:9 ptime=20\r\n"))
+        assertFalse(sdp.mediaOf("audio")[0].addCodecParameter("PCMU", "ptime", 20))
+    }
+
+    @Test
+    fun addCodecParameterDoesNotMatchPayloadTypePrefix() {
+        // a=fmtp:1110 must not be taken for the fmtp of payload type 111.
+        val sdp = ParsedSdp.parse(
+            "v=0\r\nm=audio 9 RTP/SAVPF 111 1110\r\na=rtpmap:1110 red/48000/2\r\n" +
+                    "a=fmtp:1110 111/111\r\na=rtpmap:111 opus/48000/2\r\n"
+        )
+        assertTrue(sdp.media[0].addCodecParameter("opus", "maxaveragebitrate", 32000))
+        assertEquals(
+            "v=0\r\nm=audio 9 RTP/SAVPF 111 1110\r\na=rtpmap:1110 red/48000/2\r\n" +
+                    "a=fmtp:1110 111/111\r\na=rtpmap:111 opus/48000/2\r\n" +
+                    "a=fmtp:111 maxaveragebitrate=32000\r\n",
+            sdp.toString()
+        )
+    }
+
+    @Test
+    fun removeCodecsDropsRtxAndEveryAttributeLine() {
+        val sdp = ParsedSdp.parse(OFFER)
+        val video = sdp.mediaOf("video")[0]
+        assertTrue(video.removeCodecs(listOf("flexfec-03")))
+        assertEquals(listOf("96", "97", "102", "103"), video.payloadTypes)
+        val out = sdp.toString()
+        for (pt in listOf("35", "36")) {
+            assertFalse(out.contains("a=rtpmap:$pt "))
+            assertFalse(out.contains("a=fmtp:$pt "))
+            assertFalse(out.contains("a=rtcp-fb:$pt "))
+        }
+        // Multiple rtcp-fb and fmtp lines of the kept codecs survive in order.
+        assertTrue(
+            out.contains(
+                "a=rtcp-fb:102 goog-remb\r\na=rtcp-fb:102 transport-cc\r\na=rtcp-fb:102 ccm fir\r\n" +
+                        "a=rtcp-fb:102 nack\r\na=rtcp-fb:102 nack pli\r\n" +
+                        "a=fmtp:102 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"
+            )
+        )
+        assertFalse(video.removeCodecs(listOf("flexfec-03")))
+    }
+
+    @Test
+    fun removeCodecsLeavesOtherSectionsAlone() {
+        val sdp = ParsedSdp.parse(OFFER)
+        val audioBefore = sdp.mediaOf("audio")[0].lines.toList()
+        sdp.mediaOf("video")[0].removeCodecs(listOf("VP8", "H264"))
+        assertEquals(audioBefore, sdp.mediaOf("audio")[0].lines)
+        assertEquals(listOf("35", "36"), sdp.mediaOf("video")[0].payloadTypes)
+    }
+
+    @Test
+    fun mungeAppliesEveryRewriteInOnePass() {
+        val sdp = ParsedSdp.parse(OFFER)
+        sdp.insertSessionLine("a=extmap-allow-mixed", "a=group")
+        for (section in sdp.media) {
+            when (section.kind) {
+                "audio" -> section.addCodecParameter("opus", "maxaveragebitrate", 32000)
+                "video" -> {
+                    section.removeCodecs(listOf("flexfec-03"))
+                    section.preferCodec("H264")
+                }
+            }
+        }
+        val munged = sdp.toString()
+        // A munged description parses back to the same text.
+        assertEquals(munged, ParsedSdp.parse(munged).toString())
+        assertEquals(
+            listOf("102", "96", "97", "103"),
+            ParsedSdp.parse(munged).mediaOf("video")[0].payloadTypes
+        )
+    }
+
+    @Test
+    fun preferCodecInEveryMatchingSection() {
+        val twoVideos = OFFER + OFFER.substring(OFFER.indexOf("m=video")).replace("a=mid:1", "a=mid:2")
+        val sdp = ParsedSdp.parse(twoVideos)
+        assertEquals(2, sdp.mediaOf("video").size)
+        for (section in sdp.mediaOf("video")) {
+            assertTrue(section.preferCodec("H264"))
+        }
+        assertEquals(2, sdp.toString().split("m=video 9 UDP/TLS/RTP/SAVPF 102 96").size - 1)
+    }
+
+    @Test
+    fun midOfEachSection() {
+        val sdp = ParsedSdp.parse(OFFER)
+        assertEquals(listOf("0", "1"), sdp.media.map { it.mid })
+        assertNull(ParsedSdp.parse("v=0\r\nm=audio 9 UDP/TLS/RTP/SAVPF 0\r\n").media[0].mid)
+    }
+
+    @Test
+    fun findLineLooksAtSessionFirst() {
+        val sdp = ParsedSdp.parse(OFFER)
+        assertEquals("a=ice-ufrag:Ab12", sdp.findLine(ParsedSdp.ICE_UFRAG))
+        assertEquals("a=mid:0", sdp.findLine("a=mid:"))
+        assertNull(sdp.findLine("a=candidate:"))
+        val sessionLevel = ParsedSdp.parse(OFFER.replace("t=0 0\r\n", "t=0 0\r\na=ice-ufrag:Sess\r\n"))
+        assertEquals("a=ice-ufrag:Sess", sessionLevel.findLine(ParsedSdp.ICE_UFRAG))
+    }
+
+    @Test
+    fun replaceIceCredentialsInEverySection() {
+        val sdp = ParsedSdp.parse(OFFER.replace("a=mid:1\r\n", "a=mid:1\r\na=ice-ufrag:Ab12\r\na=ice-pwd:cdefghijklmnopqrstuvwx12\r\n"))
+        sdp.replaceIceCredentials("a=ice-ufrag:New1", null)
+        val output = sdp.toString()
+        assertEquals(2, output.split("a=ice-ufrag:New1").size - 1)
+        assertEquals(2, output.split("a=ice-pwd:cdefghijklmnopqrstuvwx12").size - 1)
+        assertFalse(output.contains("a=ice-ufrag:Ab12"))
+    }
+
+    @Test
+    fun replaceCandidatesMovesThemToFirstSection() {
+        val withCandidates = OFFER
+            .replace("a=mid:0\r\n", "a=mid:0\r\na=candidate:1 1 udp 1 10.0.0.1 5000 typ host\r\n")
+            .replace("a=mid:1\r\n", "a=mid:1\r\na=candidate:2 1 udp 1 10.0.0.1 5002 typ host\r\na=end-of-candidates\r\n")
+        val sdp = ParsedSdp.parse(withCandidates)
+        assertEquals(
+            listOf("a=candidate:1 1 udp 1 10.0.0.1 5000 typ host", "a=candidate:2 1 udp 1 10.0.0.1 5002 typ host",
+                "a=end-of-candidates"),
+            sdp.candidateLines()
+        )
+        val candidates = listOf("a=candidate:3 1 udp 1 10.0.0.2 6000 typ host", "a=end-of-candidates")
+        sdp.replaceCandidates(candidates)
+        assertEquals(candidates, sdp.media[0].lines.takeLast(2))
+        assertEquals(candidates, sdp.candidateLines())
+        assertEquals(OFFER, ParsedSdp.parse(withCandidates).apply { replaceCandidates(emptyList()) }.toString())
+    }
+
+    @Test
+    fun applyIceRestartSdpFrag() {
+        // The sdpfrag answered to an ICE restart, see RFC 9725.
+        val frag = ParsedSdp.parse(
+            "a=ice-ufrag:Zz99\r\na=ice-pwd:newpasswordnewpassword00\r\nm=audio 9 UDP/TLS/RTP/SAVPF 0\r\n" +
+                "a=mid:0\r\na=candidate:1 1 udp 2130706431 192.0.2.1 40000 typ host\r\na=end-of-candidates\r\n"
+        )
+        val sdp = ParsedSdp.parse(OFFER)
+        sdp.replaceIceCredentials(frag.findLine(ParsedSdp.ICE_UFRAG), frag.findLine(ParsedSdp.ICE_PWD))
+        sdp.replaceCandidates(frag.candidateLines())
+        val expected = OFFER
+            .replace("a=ice-ufrag:Ab12", "a=ice-ufrag:Zz99")
+            .replace("a=ice-pwd:cdefghijklmnopqrstuvwx12", "a=ice-pwd:newpasswordnewpassword00")
+            .replace("m=video", "a=candidate:1 1 udp 2130706431 192.0.2.1 40000 typ host\r\na=end-of-candidates\r\nm=video")
+        assertEquals(expected, sdp.toString())
+    }
+
+    companion object {
+        val OFFER = listOf(
+            "v=0",
+            "o=- 4611731400430051336 2 IN IP4 127.0.0.1",
+            "s=-",
+            "t=0 0",
+            "a=group:BUNDLE 0 1",
+            "a=msid-semantic: WMS stream",
+            "m=audio 9 UDP/TLS/RTP/SAVPF 111 63 103 9",
+            "c=IN IP4 0.0.0.0",
+            "a=rtcp:9 IN IP4 0.0.0.0",
+            "a=ice-ufrag:Ab12",
+            "a=ice-pwd:cdefghijklmnopqrstuvwx12",
+            "a=fingerprint:sha-256 00:11:22:33:44:55:66:77:88:99:AA:BB:CC:DD:EE:FF:00:11:22:33:44:55:66:77:88:99:AA:BB:CC:DD:EE:FF",
+            "a=setup:actpass",
+            "a=mid:0",
+            "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level",
+            "a=sendrecv",
+            "a=rtcp-mux",
+            "a=rtpmap:111 opus/48000/2",
+            "a=rtcp-fb:111 transport-cc",
+            "a=fmtp:111 minptime=10;useinbandfec=1",
+            "a=rtpmap:63 red/48000/2",
+            "a=fmtp:63 111/111",
+            "a=rtpmap:103 ISAC/16000",
+            "a=rtpmap:9 G722/8000",
+            "a=ssrc:1001 cname:abcd",
+            "m=video 9 UDP/TLS/RTP/SAVPF 96 97 102 103 35 36",
+            "c=IN IP4 0.0.0.0",
+            "a=rtcp:9 IN IP4 0.0.0.0",
+            "a=mid:1",
+            "a=sendrecv",
+            "a=rtcp-mux",
+            "a=rtcp-rsize",
+            "a=rtpmap:96 VP8/90000",
+            "a=rtcp-fb:96 goog-remb",
+            "a=rtcp-fb:96 transport-cc",
+            "a=rtcp-fb:96 ccm fir",
+            "a=rtcp-fb:96 nack",
+            "a=rtcp-fb:96 nack pli",
+            "a=rtpmap:97 rtx/90000",
+            "a=fmtp:97 apt=96",
+            "a=rtpmap:102 H264/90000",
+            "a=rtcp-fb:102 goog-remb",
+            "a=rtcp-fb:102 transport-cc",
+            "a=rtcp-fb:102 ccm fir",
+            "a=rtcp-fb:102 nack",
+            "a=rtcp-fb:102 nack pli",
+            "a=fmtp:102 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f",
+            "a=rtpmap:103 rtx/90000",
+            "a=fmtp:103 apt=102",
+            "a=rtpmap:35 flexfec-03/90000",
+            "a=rtcp-fb:35 goog-remb",
+            "a=rtcp-fb:35 transport-cc",
+            "a=fmtp:35 repair-window=10000000",
+            "a=rtpmap:36 rtx/90000",
+            "a=fmtp:36 apt=35",
+        ).joinToString("\r\n", postfix = "\r\n")
+    }
+}
@@ -0,0 +1,173 @@
+package com.wx.rtc.rtc
+
+import com.wx.rtc.WXRTCDef
+import com.wx.rtc.WXRTCDef.WXRTCAdaptiveParam
+import com.wx.rtc.WXRTCDef.WXRTCVideoEncParam
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class PublishQualityControllerTest {
+
+    private fun controller(
+        floorLevel: Int = -1, downgradeSamples: Int = 2, upgradeSamples: Int = 3
+    ): PublishQualityController {
+        val param = WXRTCAdaptiveParam(LADDER, floorLevel, downgradeSamples, upgradeSamples)
+        return PublishQualityController(LADDER[0], param)
+    }
+
+    /** A sample with enough bandwidth and encode time for an upgrade from |level|. */
+    private fun PublishQualityController.idle(): Int {
+        return onSample((LADDER[level].videoMaxBitrate * 1.3).toInt(), "none", 1.0)
+    }
+
+    private fun PublishQualityController.congested(): Int {
+        return onSample(0, "bandwidth", 1.0)
+    }
+
+    private fun PublishQualityController.repeatIdle(samples: Int): List<Int> {
+        return (0 until samples).map { idle() }
+    }
+
+    @Test
+    fun downgradesAfterConsecutiveCongestedSamples() {
+        val controller = controller()
+        assertEquals(-1, controller.congested())
+        assertEquals(1, controller.congested())
+        assertEquals(1, controller.level)
+    }
+
+    @Test
+    fun idleSampleResetsCongestionCount() {
+        val controller = controller()
+        controller.congested()
+        controller.idle()
+        assertEquals(-1, controller.congested())
+        assertEquals(0, controller.level)
+    }
+
+    @Test
+    fun congestionSignals() {
+        // Quality limited by cpu.
+        assertEquals(1, controller(downgradeSamples = 1).onSample(0, "cpu", 1.0))
+        // Estimate under the min bitrate of the level.
+        assertEquals(1, controller(downgradeSamples = 1).onSample(LADDER[0].videoMinBitrate - 1, "none", 1.0))
+        // Encoding takes most of the frame interval.
+        assertEquals(1, controller(downgradeSamples = 1).onSample(0, "none", 1000.0 / LADDER[0].videoFps))
+        // None of them.
+        assertEquals(-1, controller(downgradeSamples = 1).onSample(LADDER[0].videoMinBitrate, "none", 1.0))
+    }
+
+    @Test
+    fun neverGoesBelowFloor() {
+        val controller = controller(floorLevel = 2, downgradeSamples = 1)
+        assertEquals(1, controller.congested())
+        assertEquals(2, controller.congested())
+        repeat(10) {
+            assertEquals(-1, controller.congested())
+        }
+        assertEquals(2, controller.level)
+    }
+
+    @Test
+    fun defaultFloorIsLastLevel() {
+        val controller = controller(downgradeSamples = 1)
+        repeat(10) {
+            controller.congested()
+        }
+        assertEquals(LADDER.lastIndex, controller.level)
+    }
+
+    @Test
+    fun upgradesWithHeadroomOverCurrentRate() {
+        val controller = controller(downgradeSamples = 1)
+        controller.congested()
+        assertEquals(1, controller.level)
+        // Sending at the max of level 1 lets the estimate reach 1.2x of it, well below the
+        // max of level 0.
+        val availableKbps = (LADDER[1].videoMaxBitrate * 1.2).toInt()
+        assertEquals(-1, controller.onSample(availableKbps, "none", 1.0))
+        assertEquals(-1, controller.onSample(availableKbps, "none", 1.0))
+        assertEquals(0, controller.onSample(availableKbps, "none", 1.0))
+    }
+
+    @Test
+    fun noUpgradeWithoutBandwidthHeadroom() {
+        val controller = controller(downgradeSamples = 1)
+        controller.congested()
+        val availableKbps = LADDER[1].videoMaxBitrate
+        repeat(20) {
+            assertEquals(-1, controller.onSample(availableKbps, "none", 1.0))
+        }
+        assertEquals(1, controller.level)
+    }
+
+    @Test
+    fun unknownBandwidthAllowsUpgrade() {
+        val controller = controller(downgradeSamples = 1)
+        controller.congested()
+        assertEquals(listOf(-1, -1, 0), (0 until 3).map { controller.onSample(0, "none", 1.0) })
+    }
+
+    @Test
+    fun noUpgradeWhenNextLevelWouldOverloadCpu() {
+        val controller = controller(downgradeSamples = 1)
+        controller.congested()
+        controller.congested()
+        assertEquals(2, controller.level)
+        // Level 1 runs at 20 fps, half of its 50 ms budget is too slow.
+        repeat(20) {
+            assertEquals(-1, controller.onSample(0, "none", 30.0))
+        }
+        assertEquals(2, controller.level)
+    }
+
+    @Test
+    fun upgradeUndoneSoonDoublesTheWait() {
+        val controller = controller(downgradeSamples = 1, upgradeSamples = 3)
+        controller.congested()
+        assertEquals(listOf(-1, -1, 0), controller.repeatIdle(3))
+        // The upgrade does not hold.
+        assertEquals(1, controller.congested())
+        assertEquals(listOf(-1, -1, -1, -1, -1, 0), controller.repeatIdle(6))
+        assertEquals(1, controller.congested())
+        assertEquals(listOf(-1, 0), controller.repeatIdle(12).takeLast(2))
+    }
+
+    @Test
+    fun backoffIsCapped() {
+        val controller = controller(downgradeSamples = 1, upgradeSamples = 1)
+        val waits = ArrayList<Int>()
+        repeat(6) {
+            controller.congested()
+            var samples = 0
+            while (controller.idle() == -1) {
+                samples++
+            }
+            waits.add(samples + 1)
+        }
+        assertEquals(listOf(1, 2, 4, 8, 8, 8), waits)
+    }
+
+    @Test
+    fun heldUpgradeResetsBackoff() {
+        val controller = controller(downgradeSamples = 1, upgradeSamples = 2)
+        controller.congested()
+        controller.repeatIdle(2)
+        controller.congested()
+        // Backoff doubled to 4 samples.
+        assertEquals(listOf(-1, -1, -1, 0), controller.repeatIdle(4))
+        // At level 0 the upgrade holds once the backoff window has passed.
+        controller.repeatIdle(9)
+        controller.congested()
+        assertEquals(listOf(-1, 0), controller.repeatIdle(2))
+    }
+
+    companion object {
+        private val LADDER = listOf(
+            WXRTCVideoEncParam(WXRTCDef.WXRTC_VIDEO_RESOLUTION_1280_720, WXRTCDef.WXRTC_VIDEO_RESOLUTION_MODE_LANDSCAPE, 25, 1200, 2500),
+            WXRTCVideoEncParam(WXRTCDef.WXRTC_VIDEO_RESOLUTION_960_540, WXRTCDef.WXRTC_VIDEO_RESOLUTION_MODE_LANDSCAPE, 20, 800, 1500),
+            WXRTCVideoEncParam(WXRTCDef.WXRTC_VIDEO_RESOLUTION_640_360, WXRTCDef.WXRTC_VIDEO_RESOLUTION_MODE_LANDSCAPE, 15, 400, 800),
+            WXRTCVideoEncParam(WXRTCDef.WXRTC_VIDEO_RESOLUTION_320_180, WXRTCDef.WXRTC_VIDEO_RESOLUTION_MODE_LANDSCAPE, 10, 120, 300),
+        )
+    }
+}
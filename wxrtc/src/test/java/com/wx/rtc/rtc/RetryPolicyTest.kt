@@ -0,0 +1,94 @@
+package com.wx.rtc.rtc
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class RetryPolicyTest {
+    private var nowMs = 0L
+
+    private fun policy(jitter: Double = 0.0) = RetryPolicy(
+        initialDelayMs = 500L, maxDelayMs = 8000L, multiplier = 2.0, jitter = jitter,
+        maxAttempts = 8, deadlineMs = 60_000L, cooldownMs = 30_000L, clock = { nowMs }
+    )
+
+    /** Runs |session| like the client does, advancing the clock by each delay. */
+    private fun exhaust(session: RetryPolicy.Session): List<Long> {
+        val delays = ArrayList<Long>()
+        while (true) {
+            val delayMs = session.nextDelayMs() ?: return delays
+            delays.add(delayMs)
+            nowMs += delayMs
+        }
+    }
+
+    @Test
+    fun backoffDoublesUpToMax() {
+        val policy = policy()
+        assertEquals(listOf(500L, 1000L, 2000L, 4000L, 8000L, 8000L),
+            (0 until 6).map { policy.backoffMs(it) })
+    }
+
+    @Test
+    fun givesUpAfterMaxAttempts() {
+        val session = policy().newSession()
+        assertEquals(listOf(500L, 1000L, 2000L, 4000L, 8000L, 8000L, 8000L), exhaust(session))
+        assertEquals(8, session.attempts)
+    }
+
+    @Test
+    fun givesUpAtDeadline() {
+        val session = policy().newSession()
+        // The request itself takes time, e.g. connect timeouts during the outage.
+        nowMs += 50_000L
+        assertEquals(500L, session.nextDelayMs())
+        nowMs += 9_500L
+        assertNull(session.nextDelayMs())
+        assertEquals(2, session.attempts)
+    }
+
+    @Test
+    fun restartsAfterCooldownWhenExhausted() {
+        val session = policy().newSession()
+        exhaust(session)
+        assertNull(session.nextDelayMs())
+
+        assertEquals(30_000L, session.restartAfterCooldown())
+        assertEquals(1, session.attempts)
+        nowMs += 30_000L
+        // A fresh budget with the backoff starting over.
+        assertEquals(listOf(500L, 1000L, 2000L, 4000L, 8000L, 8000L, 8000L), exhaust(session))
+    }
+
+    @Test
+    fun deadlineOfRestartedSessionStartsAfterCooldown() {
+        val session = policy().newSession()
+        nowMs += 61_000L
+        assertNull(session.nextDelayMs())
+        session.restartAfterCooldown()
+        // The cool-down itself does not use up the new deadline.
+        nowMs += 30_000L + 50_000L
+        assertNotNull(session.nextDelayMs())
+    }
+
+    @Test
+    fun retriesNeverStopForGood() {
+        val session = policy().newSession()
+        repeat(100) {
+            exhaust(session)
+            nowMs += session.restartAfterCooldown()
+            assertNotNull(session.nextDelayMs())
+        }
+    }
+
+    @Test
+    fun jitterStaysWithinBounds() {
+        val policy = policy(jitter = 0.3)
+        repeat(1000) {
+            val delayMs = policy.newSession().nextDelayMs()!!
+            assertTrue("delay $delayMs", delayMs in 350L..650L)
+        }
+    }
+}
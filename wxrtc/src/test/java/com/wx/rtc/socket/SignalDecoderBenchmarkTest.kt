@@ -0,0 +1,45 @@
+package com.wx.rtc.socket
+
+import org.junit.Test
+
+/**
+ * Times [StreamingSignalDecoder] against [JsonObjectSignalDecoder] on the frames of
+ * [StreamingSignalDecoderTest]. The numbers are printed rather than asserted so a slow
+ * machine does not fail the build.
+ */
+class SignalDecoderBenchmarkTest {
+
+    @Test
+    fun benchmark() {
+        val frames = StreamingSignalDecoderTest.FRAMES +
+            StreamingSignalDecoderTest.FRAMES.map { StreamingSignalDecoderTest.moveSignalLast(it) }
+        val streaming = StreamingSignalDecoder()
+        val reference = JsonObjectSignalDecoder()
+        var sink = 0
+        repeat(WARMUP_ITERATIONS) {
+            for (frame in frames) {
+                sink += reference.decode(frame).code + streaming.decode(frame).code
+            }
+        }
+        var start = System.nanoTime()
+        repeat(ITERATIONS) {
+            for (frame in frames) {
+                sink += reference.decode(frame).code
+            }
+        }
+        val referenceNs = (System.nanoTime() - start) / (ITERATIONS * frames.size)
+        start = System.nanoTime()
+        repeat(ITERATIONS) {
+            for (frame in frames) {
+                sink += streaming.decode(frame).code
+            }
+        }
+        val streamingNs = (System.nanoTime() - start) / (ITERATIONS * frames.size)
+        println("Signal decode: JSONObject $referenceNs ns/frame, streaming $streamingNs ns/frame ($sink)")
+    }
+
+    companion object {
+        private const val WARMUP_ITERATIONS = 2000
+        private const val ITERATIONS = 5000
+    }
+}
@@ -0,0 +1,169 @@
+package com.wx.rtc.socket
+
+import com.wx.rtc.bean.SignalCommand
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.fail
+import org.junit.Test
+
+/**
+ * Checks [StreamingSignalDecoder] against the [JsonObjectSignalDecoder] it replaced.
+ *
+ * The reference decoder needs a real org.json on the test classpath, the android.jar stubs
+ * throw in local unit tests.
+ */
+class StreamingSignalDecoderTest {
+    private val streaming = StreamingSignalDecoder()
+    private val reference = JsonObjectSignalDecoder()
+
+    private fun assertParity(text: String) {
+        assertEquals(text, dump(reference.decode(text)), dump(streaming.decode(text)))
+    }
+
+    @Test
+    fun everySignalShape() {
+        for (frame in FRAMES) {
+            assertParity(frame)
+        }
+    }
+
+    @Test
+    fun signalLast() {
+        // Until the signal is known every field is decoded, as the reference does.
+        for (frame in FRAMES) {
+            assertParity(moveSignalLast(frame))
+        }
+    }
+
+    @Test
+    fun signalFirstSkipsFieldsNotDispatched() {
+        val text = """{"signal":"remote_exit_room","user_id":"u2","pull_url":"p","available":true,""" +
+            """"p2p_msg":{"from":"a"},"record_file_name":"r.mp4"}"""
+        val message = streaming.decode(text)
+        assertEquals("u2", message.userId)
+        assertNull(message.pullUrl)
+        assertNull(message.p2pMsg)
+        assertNull(message.recordFileName)
+        // Fields dispatched with the signal still match the reference.
+        assertEquals(reference.decode(text).userId, message.userId)
+    }
+
+    @Test
+    fun resultDecodedForEverySignal() {
+        assertParity("""{"signal":"login_back","code":0,"result":{"rst":1,"pid":"p"}}""")
+        assertParity("""{"signal":"unknown_signal","result":{"rst":2}}""")
+        assertParity("""{"result":{"rst":3},"signal":"exit_room_back"}""")
+    }
+
+    @Test
+    fun escapes() {
+        assertParity("""{"signal":"p2p_msg_rev","p2p_msg":{"from":"a\"b","to":"c\\d",""" +
+            """"message":"line\nnext\ttab 你好 \/ \b\f\r"}}""")
+        assertParity("""{"signal":"room_msg_rev","user_id":"u1",""" +
+            """"room_msg":{"cmd":"{\"k\":[1,2]}","message":"}]"}}""")
+        // Escaped names are decoded before matching.
+        assertParity("""{"sign\u0061l":"remote_exit_room","user\u005fid":"u3"}""")
+    }
+
+    @Test
+    fun unknownAndNestedFieldsAreSkipped() {
+        assertParity("""{"extra":{"a":[1,{"b":"}"}],"c":null},"signal":"enter_room_back",""" +
+            """"publish_url":"pub","list":[[],{}],"n":-1.5e3,"t":true,"subscribe_url":"sub"}""")
+        assertParity("""{"signal":"call_msg_rev","call_msg":{"cmd":"invite","ext":{"x":[1]},""" +
+            """"user_id":"u1","room_id":"r1","more":"}"}}""")
+        assertParity("""{"signal":"login_back","result":{"rst":7,"unknown":{"x":1},""" +
+            """"right_eye":{"normal":1,"extra":[0],"astigmatism":1}}}""")
+    }
+
+    @Test
+    fun whitespace() {
+        assertParity("{ \"signal\" : \"video_available\" ,\n\t\"user_id\" : \"u1\" ,\r\n \"available\" : false }")
+    }
+
+    @Test
+    fun coercedScalars() {
+        // Quoted numbers and booleans, as org.json coerces them.
+        assertParity("""{"code":"12","signal":"audio_available","user_id":"u1","available":"true"}""")
+        assertParity("""{"signal":"login_back","result":{"rst":"4","need_focus":1.0,""" +
+            """"focus_point":[1,"2.5",-3e-1],"gesture":2}}""")
+    }
+
+    @Test
+    fun nullsDecodeAsAbsent() {
+        // JSONObject refuses nulls for typed getters, the streaming decoder leaves the field
+        // unset so dispatch treats it as missing.
+        val message = streaming.decode(
+            """{"code":null,"message":null,"signal":"p2p_msg_rev","p2p_msg":null,"result":null}"""
+        )
+        assertEquals(0, message.code)
+        assertNull(message.message)
+        assertNull(message.p2pMsg)
+        assertNull(message.result)
+        val eyes = streaming.decode("""{"signal":"x","result":{"left_eye":null,"rst":null,"pid":null,"focus_point":null}}""")
+        assertNull(eyes.result!!.left_eye)
+        assertNull(eyes.result!!.rst)
+        assertNull(eyes.result!!.pid)
+        assertNull(eyes.result!!.focus_point)
+    }
+
+    @Test
+    fun malformedFramesThrow() {
+        for (text in listOf("", "[]", "{\"signal\":", "{\"signal\":\"a", "{\"result\":{\"rst\":1}")) {
+            try {
+                streaming.decode(text)
+                fail("Decoded $text")
+            } catch (expected: Exception) {
+            }
+        }
+    }
+
+    companion object {
+        /** One frame per signal SocketManager dispatches, with the fields it reads. */
+        val FRAMES = listOf(
+            """{"code":0,"message":"ok","signal":"${SignalCommand.LOGIN_BACK}"}""",
+            """{"code":-1,"message":"fail","signal":"${SignalCommand.LOGOUT_BACK}"}""",
+            """{"code":0,"signal":"${SignalCommand.ENTER_ROOM_BACK}","publish_url":"https://sfu/whip/1",""" +
+                """"subscribe_url":"https://sfu/whep/1"}""",
+            """{"code":0,"signal":"${SignalCommand.EXIT_ROOM_BACK}"}""",
+            """{"signal":"${SignalCommand.GET_UNPUBLISH}","unpublish_url":"https://sfu/unpublish/1"}""",
+            """{"signal":"${SignalCommand.REMOTE_ENTER_ROOM}","user_id":"u2","pull_url":"https://sfu/pull/2"}""",
+            """{"signal":"${SignalCommand.REMOTE_EXIT_ROOM}","user_id":"u2"}""",
+            """{"signal":"${SignalCommand.VIDEO_AVAILABLE}","user_id":"u2","available":true}""",
+            """{"signal":"${SignalCommand.AUDIO_AVAILABLE}","user_id":"u2","available":false}""",
+            """{"code":0,"signal":"${SignalCommand.START_RECORD_BACK}","record_file_name":"a.mp4"}""",
+            """{"code":0,"signal":"${SignalCommand.END_RECORD_BACK}","record_file_name":"a.mp4"}""",
+            """{"signal":"${SignalCommand.P2P_MSG_REV}","p2p_msg":{"from":"u1","to":"u2","message":"hi"}}""",
+            """{"signal":"${SignalCommand.ROOM_MSG_REV}","user_id":"u1","room_msg":{"cmd":"c","message":"m"}}""",
+            """{"signal":"${SignalCommand.CALL_MSG_REV}","call_msg":{"cmd":"invite","user_id":"u1","room_id":"r1"}}""",
+            """{"code":0,"signal":"${SignalCommand.START_PROCESS}","result":{"rst":7,"need_focus":1,""" +
+                """"focus_point":[0.25,0.5,0.75,1],"drop_speed":"1.5","scale":"2","need_magnify":0,""" +
+                """"barcodeDate":"690","high_pressure":"120","low_pressure":"80","pulse":"70","has_csf":1,""" +
+                """"right_eye":{"normal":1,"femtosecond":0,"astigmatism":1},""" +
+                """"left_eye":{"normal":0,"femtosecond":1,"astigmatism":0},"pid":"p1","asr_result":"text",""" +
+                """"gesture":3,"oxygen_saturation":"98","weight_scale":"60.5","respiratory_rate":"16",""" +
+                """"capture_image_url":"https://img/1.jpg","blood_sugar":"5.6","bed_number":"12"}}""",
+        )
+
+        private val SIGNAL = Regex("\"signal\":\"[^\"]*\",?")
+
+        fun moveSignalLast(frame: String): String {
+            val signal = SIGNAL.find(frame)!!.value.removeSuffix(",")
+            val rest = frame.replaceFirst(SIGNAL, "").removeSuffix("}").removeSuffix(",")
+            return if (rest == "{") "{$signal}" else "$rest,$signal}"
+        }
+
+        /** Renders every field of a decoded bean, the beans do not implement equals. */
+        fun dump(value: Any?): String {
+            if (value == null || value is String || value is Number || value is Boolean || value is List<*>) {
+                return value.toString()
+            }
+            return value.javaClass.declaredFields
+                .filter { !java.lang.reflect.Modifier.isStatic(it.modifiers) }
+                .sortedBy { it.name }
+                .joinToString(prefix = "{", postfix = "}") {
+                    it.isAccessible = true
+                    it.name + "=" + dump(it.get(value))
+                }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import org.junit.Test;
+
+public class FrameInfoQueueTest {
+  private static final int CAPACITY = 64;
+
+  @Test
+  public void testCapacityRoundsUpToPowerOfTwo() {
+    FrameInfoQueue queue = new FrameInfoQueue(10);
+    for (int i = 0; i < 20; i++) {
+      queue.offer(i, 0, 0, 0);
+    }
+    assertEquals(16, queue.size());
+    assertTrue(queue.poll());
+    assertEquals(4, queue.getPolledTimestamp());
+  }
+
+  @Test
+  public void testPollInOrder() {
+    FrameInfoQueue queue = new FrameInfoQueue(CAPACITY);
+    assertFalse(queue.poll());
+    queue.offer(100, 90, 640, 480);
+    queue.offer(200, 180, 1280, 720);
+    assertEquals(2, queue.size());
+
+    assertTrue(queue.poll());
+    assertEquals(100, queue.getPolledTimestamp());
+    assertEquals(90, queue.getPolledRotation());
+    assertEquals(640, queue.getPolledWidth());
+    assertEquals(480, queue.getPolledHeight());
+
+    assertTrue(queue.poll());
+    assertEquals(200, queue.getPolledTimestamp());
+    assertEquals(180, queue.getPolledRotation());
+    assertEquals(1280, queue.getPolledWidth());
+    assertEquals(720, queue.getPolledHeight());
+
+    assertFalse(queue.poll());
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testWraparound() {
+    FrameInfoQueue queue = new FrameInfoQueue(CAPACITY);
+    long next = 0;
+    long expected = 0;
+    // Keep the queue partly filled while the indices wrap many times.
+    for (int round = 0; round < 10 * CAPACITY; round++) {
+      for (int i = 0; i < 3; i++) {
+        queue.offer(next, (int) (next % 4) * 90, (int) next, (int) next + 1);
+        next++;
+      }
+      for (int i = 0; i < 3; i++) {
+        assertTrue(queue.poll());
+        assertEquals(expected, queue.getPolledTimestamp());
+        assertEquals((int) (expected % 4) * 90, queue.getPolledRotation());
+        assertEquals((int) expected, queue.getPolledWidth());
+        assertEquals((int) expected + 1, queue.getPolledHeight());
+        expected++;
+      }
+    }
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testDropsOldestAtCapacity() {
+    FrameInfoQueue queue = new FrameInfoQueue(CAPACITY);
+    for (int i = 0; i < CAPACITY + 10; i++) {
+      queue.offer(i, 0, 0, 0);
+    }
+    assertEquals(CAPACITY, queue.size());
+    for (int i = 10; i < CAPACITY + 10; i++) {
+      assertTrue(queue.poll());
+      assertEquals(i, queue.getPolledTimestamp());
+    }
+    assertFalse(queue.poll());
+  }
+
+  @Test
+  public void testRemoveLast() {
+    FrameInfoQueue queue = new FrameInfoQueue(CAPACITY);
+    queue.removeLast();
+    assertEquals(0, queue.size());
+    queue.offer(1, 0, 0, 0);
+    queue.offer(2, 0, 0, 0);
+    queue.removeLast();
+    queue.offer(3, 0, 0, 0);
+    assertTrue(queue.poll());
+    assertEquals(1, queue.getPolledTimestamp());
+    assertTrue(queue.poll());
+    assertEquals(3, queue.getPolledTimestamp());
+    assertFalse(queue.poll());
+  }
+
+  @Test
+  public void testClear() {
+    FrameInfoQueue queue = new FrameInfoQueue(CAPACITY);
+    queue.offer(1, 0, 0, 0);
+    queue.offer(2, 0, 0, 0);
+    queue.clear();
+    assertEquals(0, queue.size());
+    assertFalse(queue.poll());
+    queue.offer(3, 0, 0, 0);
+    assertTrue(queue.poll());
+    assertEquals(3, queue.getPolledTimestamp());
+  }
+
+  @Test
+  public void testSteadyStateDoesNotAllocate() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    FrameInfoQueue queue = new FrameInfoQueue(CAPACITY);
+    long sum = 0;
+    // Warm up so the loop below runs compiled code.
+    for (int i = 0; i < 100_000; i++) {
+      sum += offerAndPoll(queue, i);
+    }
+    long threadId = Thread.currentThread().getId();
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 100_000; i++) {
+      sum += offerAndPoll(queue, i);
+    }
+    long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+    assertTrue(sum > 0);
+    // Boxing one value per frame alone would take over 1 MB; allow for the bean's own usage.
+    assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+  }
+
+  private static long offerAndPoll(FrameInfoQueue queue, int i) {
+    queue.offer(i, 90, 1280, 720);
+    queue.offer(i + 1, 90, 1280, 720);
+    queue.poll();
+    final long timestamp = queue.getPolledTimestamp();
+    queue.poll();
+    return timestamp + queue.getPolledTimestamp();
+  }
+}